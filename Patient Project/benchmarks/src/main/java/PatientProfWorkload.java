@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import com.med.MedCond;
+import com.med.bench.Workload;
+
+/**
+ * Workload of PatientProfDBBenchmark, over a database of generated profiles (see ProfileGenerator).
+ */
+public class PatientProfWorkload implements Workload {
+
+    private String fileName;
+    private PatientProfDB.StorageBackend backend;
+    private PatientProfDB db;
+
+    // Keys of the loaded profiles, in file order. Kept as strings since COLUMNAR views go stale on compaction.
+    private String[] adminIDs;
+    private String[] lastNames;
+    private int nextFind = 0;
+    private int nextDelete = 0;
+
+    private ProfileGenerator generator; // Continues past the loaded profiles, so its keys are new
+    private final ArrayList<PatientProf> inserted = new ArrayList<>();
+    private PatientProf[] prepared = new PatientProf[0]; // Copies of the profiles the next deletes delete (null if missing)
+    private int deletes = 0; // Calls to delete() since prepareDeletes()
+
+    @Override
+    public void setUp(Path dir, int rows, String storage) throws IOException {
+        fileName = dir.resolve("db").toString();
+        backend = PatientProfDB.StorageBackend.valueOf(storage);
+        ProfileGenerator.write(fileName, rows, 1);
+        generator = new ProfileGenerator(1);
+        generator.setSequence(rows);
+
+        db = open();
+        adminIDs = new String[rows];
+        lastNames = new String[rows];
+        PatientProf profile = db.findFirstProfile();
+        for (int i = 0; i < rows; i++, profile = db.findNextProfile()) {
+            adminIDs[i] = profile.getAdminID();
+            lastNames[i] = profile.getLastName();
+        }
+    }
+
+    private PatientProfDB open() {
+        PatientProfDB db = new PatientProfDB(fileName, backend);
+        db.setJournalEnabled(false); // Measure the in-memory operations, not the disk
+        db.initializeDatabase();
+        return db;
+    }
+
+    @Override
+    public void insert() {
+        PatientProf profile = generator.next();
+        db.insertNewProfile(profile);
+        inserted.add(profile);
+    }
+
+    @Override
+    public void undoInserts() {
+        for (PatientProf profile : inserted)
+            db.deleteProfile(profile.getAdminID(), profile.getLastName());
+        inserted.clear();
+    }
+
+    @Override
+    public Object find() {
+        int i = nextFind;
+        nextFind = (i + 1) % adminIDs.length;
+        return db.findProfile(adminIDs[i], lastNames[i]);
+    }
+
+    @Override
+    public void prepareDeletes(int count) {
+        // Keep detached copies to reinsert, as COLUMNAR views become unreadable once their profile is deleted
+        prepared = new PatientProf[count];
+        for (int j = 0; j < count; j++) {
+            int i = (nextDelete + j) % adminIDs.length;
+            PatientProf profile = db.findProfile(adminIDs[i], lastNames[i]);
+            if (profile == null) continue;
+            MedCond mc = profile.getMedCondInfo();
+            prepared[j] = new PatientProf(profile.getAdminID(), profile.getFirstName(), profile.getLastName(),
+                    profile.getAddress(), profile.getPhone(), profile.getCoPay(), profile.getInsuType(),
+                    profile.getPatientType(),
+                    new MedCond(mc.getMdContact(), mc.getMdPhone(), mc.getAlgType(), mc.getIllType()));
+        }
+        deletes = 0;
+    }
+
+    @Override
+    public boolean delete() {
+        if (deletes == prepared.length)
+            throw new IllegalStateException("More deletes than prepared: " + prepared.length);
+        deletes++;
+        int i = nextDelete;
+        nextDelete = (i + 1) % adminIDs.length;
+        return db.deleteProfile(adminIDs[i], lastNames[i]);
+    }
+
+    @Override
+    public void undoDeletes() {
+        for (int j = 0; j < deletes; j++)
+            if (prepared[j] != null)
+                db.insertNewProfile(prepared[j]);
+        prepared = new PatientProf[0];
+        deletes = 0;
+    }
+
+    @Override
+    public int iterate() {
+        if (db.findFirstProfile() == null) return 0;
+        int n = 1;
+        for (int size = db.size(); n < size; n++)
+            db.findNextProfile();
+        return n;
+    }
+
+    @Override
+    public int load() {
+        PatientProfDB loaded = open();
+        int size = loaded.size();
+        loaded.close();
+        return size;
+    }
+
+    @Override
+    public boolean write() {
+        return db.writeAllPatientProf();
+    }
+
+}
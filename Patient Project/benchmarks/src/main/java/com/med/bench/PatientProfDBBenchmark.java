@@ -0,0 +1,107 @@
+package com.med.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks of the main PatientProfDB operations over databases of generated profiles, with either storage
+ * backend. Run with
+ * <pre>
+ * mvn -B package -DskipTests && java -jar "Patient Project/benchmarks/target/benchmarks.jar"
+ * </pre>
+ * adding e.g. {@code -p rows=100000 -p storage=COLUMNAR} to pick parameters, and {@code -rf json} to keep results
+ * for comparison across releases. Inserts and deletes are measured in batches of BATCH operations per iteration,
+ * undone between iterations, so the database stays the same size throughout.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PatientProfDBBenchmark {
+
+    private static final int BATCH = 100; // At most a tenth of the smallest database
+
+    @Param({"1000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"OBJECT", "COLUMNAR", "OFF_HEAP"})
+    public String storage;
+
+    private Path dir;
+    private Workload workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("patientdb-bench");
+        workload = (Workload) Class.forName("PatientProfWorkload").getDeclaredConstructor().newInstance();
+        workload.setUp(dir, rows, storage);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void prepare() {
+        workload.prepareDeletes(BATCH);
+    }
+
+    @TearDown(Level.Iteration)
+    public void undo() {
+        workload.undoInserts();
+        workload.undoDeletes();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 200, batchSize = BATCH)
+    @Measurement(iterations = 200, batchSize = BATCH)
+    public void insertNewProfile() {
+        workload.insert();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 200, batchSize = BATCH)
+    @Measurement(iterations = 200, batchSize = BATCH)
+    public boolean deleteProfile() {
+        return workload.delete();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public Object findProfile() {
+        return workload.find();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int iterateAll() {
+        return workload.iterate();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int initializeDatabase() {
+        return workload.load();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean writeAllPatientProf() {
+        return workload.write();
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.med.bench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Operations on a PatientProfDB measured by PatientProfDBBenchmark. PatientProfDB lives in the default package,
+ * which classes of a named package (such as JMH benchmarks) cannot refer to, so the benchmark drives it through this
+ * interface, implemented by PatientProfWorkload in the default package.
+ */
+public interface Workload {
+
+    /**
+     * Writes a database file of generated profiles and loads it.
+     * @param dir Directory to write the database file in
+     * @param rows Number of profiles
+     * @param storage Name of a PatientProfDB.StorageBackend
+     */
+    void setUp(Path dir, int rows, String storage) throws IOException;
+
+    /**
+     * Inserts a generated profile with a new key.
+     */
+    void insert();
+
+    /**
+     * Deletes the profiles inserted since the last call.
+     */
+    void undoInserts();
+
+    /**
+     * Looks up an existing profile by key, cycling through all of them.
+     * @return the profile found
+     */
+    Object find();
+
+    /**
+     * Copies the profiles which the next calls to delete() will delete, so that undoDeletes() can reinsert them
+     * without delete() copying them while it is measured.
+     * @param count Number of calls to delete() until the next undoDeletes()
+     */
+    void prepareDeletes(int count);
+
+    /**
+     * Deletes an existing profile, cycling through all of them.
+     * @return true if a profile was deleted
+     */
+    boolean delete();
+
+    /**
+     * Reinserts the profiles deleted since the last call, and forgets those prepared but not deleted.
+     */
+    void undoDeletes();
+
+    /**
+     * Walks all profiles with findFirstProfile() and findNextProfile().
+     * @return the number of profiles walked
+     */
+    int iterate();
+
+    /**
+     * Loads the database file into a new database.
+     * @return the number of profiles loaded
+     */
+    int load();
+
+    /**
+     * Writes all profiles back to the database file.
+     * @return true if succeeded
+     */
+    boolean write();
+
+}
@@ -0,0 +1,129 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Index of the slots holding each admin's profiles in insertion order, walked by the per-admin cursors of
+ * PatientProfDB. A removal only marks its entry, so that deleting profiles costs O(1) however many the admin has;
+ * the marked entries are dropped in one pass once they outnumber the others, or when the slots are remapped.
+ */
+final class AdminIndex implements ProfileIndex {
+
+    private final HashMap<String, AdminProfiles> admins = new HashMap<>();
+
+    /**
+     * Slots of the profiles created by a single admin, in ascending (insertion) order.
+     */
+    private static final class AdminProfiles {
+        private int[] slots = new int[4];
+        private int size = 0; // Number of entries, including removed ones
+        private final BitSet removed = new BitSet(); // Indexes of the entries of removed slots
+        private int removedCount = 0;
+
+        int count() {
+            return size - removedCount;
+        }
+
+        /**
+         * Drops the removed entries, mapping the others through newSlots if it isn't null.
+         */
+        void purge(int[] newSlots) {
+            int n = 0;
+            for (int i = removed.nextClearBit(0); i < size; i = removed.nextClearBit(i + 1))
+                slots[n++] = newSlots == null ? slots[i] : newSlots[slots[i]];
+            size = n;
+            removed.clear();
+            removedCount = 0;
+        }
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profiles
+     * @param from Slot to start at
+     * @return the admin's lowest slot at or after from, or -1 if there is none
+     */
+    int nextSlot(String adminID, int from) {
+        AdminProfiles admin = admins.get(adminID);
+        if (admin == null) return -1;
+
+        int i = Arrays.binarySearch(admin.slots, 0, admin.size, from);
+        if (i < 0) i = -i - 1; // Insertion point: index of the first slot above from
+        i = admin.removed.nextClearBit(i);
+        return i < admin.size ? admin.slots[i] : -1;
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profiles
+     * @return a copy of the admin's slots in ascending order
+     */
+    int[] slots(String adminID) {
+        AdminProfiles admin = admins.get(adminID);
+        if (admin == null) return new int[0];
+        if (admin.removedCount == 0) return Arrays.copyOf(admin.slots, admin.size);
+
+        // Readers share the read lock, so copy the live entries rather than purging
+        int[] slots = new int[admin.count()];
+        int n = 0;
+        for (int i = admin.removed.nextClearBit(0); i < admin.size; i = admin.removed.nextClearBit(i + 1))
+            slots[n++] = admin.slots[i];
+        return slots;
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profiles
+     * @return the number of profiles created by the given admin
+     */
+    int count(String adminID) {
+        AdminProfiles admin = admins.get(adminID);
+        return admin == null ? 0 : admin.count();
+    }
+
+    @Override
+    public void add(int slot, PatientProf profile) {
+        add(slot, profile.getAdminID());
+    }
+
+    /**
+     * Indexes a slot by its admin ID alone, as read from a ProfileRowIndex without decoding the profile.
+     * @param slot Slot holding a live profile, above every slot indexed so far
+     * @param adminID Admin ID of the creator of the profile
+     */
+    void add(int slot, String adminID) {
+        AdminProfiles admin = admins.computeIfAbsent(adminID, id -> new AdminProfiles());
+        if (admin.size == admin.slots.length)
+            admin.slots = Arrays.copyOf(admin.slots, admin.size * 2);
+        admin.slots[admin.size++] = slot; // New slots are always the highest, so the list stays sorted
+    }
+
+    @Override
+    public void remove(int slot, PatientProf profile) {
+        AdminProfiles admin = admins.get(profile.getAdminID());
+        int i = Arrays.binarySearch(admin.slots, 0, admin.size, slot);
+        if (i < 0 || admin.removed.get(i)) return;
+
+        admin.removed.set(i);
+        admin.removedCount++;
+        if (admin.count() == 0)
+            admins.remove(profile.getAdminID());
+        else if (admin.removedCount > admin.count())
+            admin.purge(null);
+    }
+
+    @Override
+    public void update(int slot, PatientProf profile, ProfileField field, String oldValue) {
+        // The admin ID of a profile never changes
+    }
+
+    @Override
+    public void remap(int[] newSlots) {
+        // Compaction preserves the order of live slots, so the lists stay sorted
+        for (AdminProfiles admin : admins.values())
+            admin.purge(newSlots);
+    }
+
+    @Override
+    public void clear() {
+        admins.clear();
+    }
+
+}
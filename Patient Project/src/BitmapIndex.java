@@ -0,0 +1,95 @@
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+
+/**
+ * Index from each value of some low-cardinality fields to the set of slots holding it, stored as compressed bitmaps
+ * (see SlotBitmap). Combined conditions such as "Adult AND Government" are answered by intersecting bitmaps, and
+ * counted without listing or materializing a single profile.
+ */
+final class BitmapIndex implements ProfileIndex {
+
+    private final EnumMap<ProfileField, HashMap<String, SlotBitmap>> fields = new EnumMap<>(ProfileField.class);
+
+    /**
+     * @param indexedFields Fields whose values are indexed
+     */
+    BitmapIndex(ProfileField... indexedFields) {
+        for (ProfileField field : indexedFields)
+            fields.put(field, new HashMap<>());
+    }
+
+    /**
+     * @param field A profile field
+     * @return true if the values of field are indexed
+     */
+    boolean covers(ProfileField field) {
+        return fields.containsKey(field);
+    }
+
+    /**
+     * @param field An indexed field
+     * @param values Values of the field
+     * @return the slots of the profiles whose field holds any of values. Must not be modified, as it may be the
+     * index's own bitmap.
+     */
+    SlotBitmap any(ProfileField field, Collection<String> values) {
+        HashMap<String, SlotBitmap> index = fields.get(field);
+        SlotBitmap result = null;
+        for (String value : values) {
+            SlotBitmap slots = index.get(value);
+            if (slots != null)
+                result = result == null ? slots : result.or(slots);
+        }
+        return result == null ? new SlotBitmap() : result;
+    }
+
+    @Override
+    public void add(int slot, PatientProf profile) {
+        for (ProfileField field : fields.keySet())
+            fields.get(field).computeIfAbsent(field.get(profile), value -> new SlotBitmap()).add(slot);
+    }
+
+    @Override
+    public void remove(int slot, PatientProf profile) {
+        for (ProfileField field : fields.keySet())
+            delete(field, field.get(profile), slot);
+    }
+
+    private void delete(ProfileField field, String value, int slot) {
+        HashMap<String, SlotBitmap> index = fields.get(field);
+        SlotBitmap slots = index.get(value);
+        if (slots == null) return;
+        slots.remove(slot);
+        if (slots.cardinality() == 0)
+            index.remove(value);
+    }
+
+    @Override
+    public void update(int slot, PatientProf profile, ProfileField field, String oldValue) {
+        if (covers(field)) {
+            delete(field, oldValue, slot);
+            fields.get(field).computeIfAbsent(field.get(profile), value -> new SlotBitmap()).add(slot);
+        }
+    }
+
+    @Override
+    public void remap(int[] newSlots) {
+        // Slots move down by varying amounts, so rebuild each bitmap; they come out in ascending order
+        for (HashMap<String, SlotBitmap> index : fields.values()) {
+            for (HashMap.Entry<String, SlotBitmap> entry : index.entrySet()) {
+                SlotBitmap remapped = new SlotBitmap();
+                for (int slot : entry.getValue().toArray())
+                    remapped.add(newSlots[slot]);
+                entry.setValue(remapped);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (HashMap<String, SlotBitmap> index : fields.values())
+            index.clear();
+    }
+
+}
@@ -0,0 +1,175 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Index of the slots holding each copay in ascending order of copay, for range queries, together with running
+ * totals per insurance type for billing reports. Copays are money amounts, so there are far fewer distinct copays
+ * than profiles; each is a tree entry holding a bitmap of its slots (see SlotBitmap).
+ */
+final class CoPayIndex implements ProfileIndex {
+
+    private final TreeMap<Float, SlotBitmap> slotsByCoPay = new TreeMap<>();
+    private final HashMap<String, Summary> summaries = new HashMap<>(); // Keyed by insurance type
+
+    /**
+     * Running count and sum of the copays of one insurance type, and how many profiles have each copay, from which
+     * the lowest and highest are read.
+     */
+    private static final class Summary {
+        private int count = 0;
+        private double sum = 0;
+        private final TreeMap<Float, Integer> counts = new TreeMap<>();
+
+        void add(float coPay) {
+            count++;
+            sum += coPay;
+            counts.merge(coPay, 1, Integer::sum);
+        }
+
+        void remove(float coPay) {
+            // Restart from zero when empty, so that rounding errors of the running sum don't outlive the group
+            sum = --count == 0 ? 0 : sum - coPay;
+            counts.computeIfPresent(coPay, (value, n) -> n == 1 ? null : n - 1);
+        }
+
+        CoPayStats stats() {
+            return count == 0 ? new CoPayStats(0, 0, Float.NaN, Float.NaN)
+                    : new CoPayStats(count, sum, counts.firstKey(), counts.lastKey());
+        }
+    }
+
+    /**
+     * @param insuType An insurance type
+     * @return statistics of the copays of the profiles with that insurance type, in time logarithmic in the number
+     * of distinct copays
+     */
+    CoPayStats stats(String insuType) {
+        Summary summary = summaries.get(insuType);
+        return summary == null ? new Summary().stats() : summary.stats();
+    }
+
+    /**
+     * @return statistics of the copays of each insurance type, in the order of the types' names
+     */
+    Map<String, CoPayStats> statsByInsuType() {
+        TreeMap<String, CoPayStats> stats = new TreeMap<>();
+        for (Map.Entry<String, Summary> entry : summaries.entrySet())
+            stats.put(entry.getKey(), entry.getValue().stats());
+        return stats;
+    }
+
+    /**
+     * @param min Lowest copay
+     * @param max Highest copay
+     * @return statistics of the copays within [min, max], in time proportional to the number of distinct copays in
+     * the range
+     */
+    CoPayStats stats(float min, float max) {
+        NavigableMap<Float, SlotBitmap> range = range(min, max);
+        int count = 0;
+        double sum = 0;
+        for (Map.Entry<Float, SlotBitmap> entry : range.entrySet()) {
+            count += entry.getValue().cardinality();
+            sum += (double) entry.getKey() * entry.getValue().cardinality();
+        }
+        return count == 0 ? new CoPayStats(0, 0, Float.NaN, Float.NaN)
+                : new CoPayStats(count, sum, range.firstKey(), range.lastKey());
+    }
+
+    /**
+     * @param min Lowest copay
+     * @param max Highest copay
+     * @return the number of profiles whose copay lies within [min, max]
+     */
+    int count(float min, float max) {
+        int count = 0;
+        for (SlotBitmap slots : range(min, max).values())
+            count += slots.cardinality();
+        return count;
+    }
+
+    /**
+     * @param min Lowest copay
+     * @param max Highest copay
+     * @return the slots, in ascending order, of the profiles whose copay lies within [min, max]
+     */
+    int[] slots(float min, float max) {
+        NavigableMap<Float, SlotBitmap> range = range(min, max);
+        int[] result = new int[count(min, max)];
+        int n = 0;
+        for (SlotBitmap slots : range.values()) {
+            int[] some = slots.toArray();
+            System.arraycopy(some, 0, result, n, some.length);
+            n += some.length;
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    private NavigableMap<Float, SlotBitmap> range(float min, float max) {
+        return !(min <= max) ? new TreeMap<>() : slotsByCoPay.subMap(min, true, max, true);
+    }
+
+    @Override
+    public void add(int slot, PatientProf profile) {
+        put(slot, profile.getCoPay(), profile.getInsuType());
+    }
+
+    private void put(int slot, float coPay, String insuType) {
+        slotsByCoPay.computeIfAbsent(coPay, value -> new SlotBitmap()).add(slot);
+        summaries.computeIfAbsent(insuType, type -> new Summary()).add(coPay);
+    }
+
+    @Override
+    public void remove(int slot, PatientProf profile) {
+        delete(slot, profile.getCoPay(), profile.getInsuType());
+    }
+
+    private void delete(int slot, float coPay, String insuType) {
+        SlotBitmap slots = slotsByCoPay.get(coPay);
+        if (slots != null) {
+            slots.remove(slot);
+            if (slots.cardinality() == 0)
+                slotsByCoPay.remove(coPay);
+        }
+
+        Summary summary = summaries.get(insuType);
+        if (summary != null) {
+            summary.remove(coPay);
+            if (summary.count == 0)
+                summaries.remove(insuType);
+        }
+    }
+
+    @Override
+    public void update(int slot, PatientProf profile, ProfileField field, String oldValue) {
+        if (field == ProfileField.CO_PAY) {
+            delete(slot, Float.parseFloat(oldValue), profile.getInsuType());
+            put(slot, profile.getCoPay(), profile.getInsuType());
+        } else if (field == ProfileField.INSU_TYPE) {
+            delete(slot, profile.getCoPay(), oldValue);
+            put(slot, profile.getCoPay(), profile.getInsuType());
+        }
+    }
+
+    @Override
+    public void remap(int[] newSlots) {
+        // Slots move down by varying amounts, so rebuild each bitmap; the summaries don't refer to slots
+        for (Map.Entry<Float, SlotBitmap> entry : slotsByCoPay.entrySet()) {
+            SlotBitmap remapped = new SlotBitmap();
+            for (int slot : entry.getValue().toArray())
+                remapped.add(newSlots[slot]);
+            entry.setValue(remapped);
+        }
+    }
+
+    @Override
+    public void clear() {
+        slotsByCoPay.clear();
+        summaries.clear();
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Count, sum, minimum and maximum of the copays of a group of profiles, as returned by PatientProfDB.coPayStats().
+ */
+public final class CoPayStats {
+
+    private final int count;
+    private final double sum;
+    private final float min;
+    private final float max;
+
+    CoPayStats(int count, double sum, float min, float max) {
+        this.count = count;
+        this.sum = sum;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return the number of profiles in the group
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of their copays
+     */
+    public double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the average copay, or NaN if the group is empty
+     */
+    public double getAverage() {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /**
+     * @return the lowest copay, or NaN if the group is empty
+     */
+    public float getMin() {
+        return min;
+    }
+
+    /**
+     * @return the highest copay, or NaN if the group is empty
+     */
+    public float getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d sum=%.2f avg=%.2f min=%.2f max=%.2f", count, sum, getAverage(), min, max);
+    }
+
+}
@@ -0,0 +1,443 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import com.med.MedCond;
+
+/**
+ * Storage backend holding profiles column by column in primitive arrays rather than as PatientProf/MedCond objects:
+ * <ul>
+ * <li>CO_PAY in a float[],</li>
+ * <li>each categorical field (ProfileField.isCategorical()) in an int[] of codes into a table of distinct values,</li>
+ * <li>the six free-text fields of a row in one record of length-prefixed UTF-8 strings, appended to large shared
+ * byte pages and addressed by a long[] (an update appends a new record and leaves the old one as garbage, which
+ * the store reclaims once it outweighs the records in use, by copying those into new pages).</li>
+ * </ul>
+ * A row takes roughly a quarter of the heap of its object form, and the collector has a few large arrays to trace
+ * instead of fourteen objects per profile. Inserted profiles are copied in, so the caller's object is not retained;
+ * get() hands out a transient view (a ProfileRowView) whose getters read the columns and whose update methods write
+ * them. A view is only valid until the next compaction.
+ * The profiles of a frozen snapshot are detached copies, since the rows may since have moved.
+ */
+final class ColumnarProfileStore implements ProfileStore, ProfileRowView.Rows {
+
+    private static final ProfileField[] FIELDS = ProfileField.values();
+
+    // Column of each field within codes (categorical fields) or within a text record (free-text fields)
+    private static final int[] COLUMN = new int[FIELDS.length];
+    private static final int CODED_COLUMNS;
+    private static final int TEXT_COLUMNS;
+
+    static {
+        int coded = 0, text = 0;
+        for (ProfileField field : FIELDS)
+            if (field != ProfileField.CO_PAY)
+                COLUMN[field.ordinal()] = field.isCategorical() ? coded++ : text++;
+        CODED_COLUMNS = coded;
+        TEXT_COLUMNS = text;
+    }
+
+    private static final int PAGE_SIZE = 1 << 20; // Size of the byte pages text records are appended to
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 64;
+    private static final long MIN_GARBAGE_TO_RECLAIM = PAGE_SIZE;
+
+    private final PatientProfDB database; // Database the views handed out are bound to
+
+    private int end = 0; // Slot at which next profile is added
+    private int size = 0; // Number of live profiles
+    private int generation = 0; // Incremented whenever slots are renumbered, which invalidates outstanding views
+    private final BitSet live = new BitSet();
+
+    private float[] coPay = new float[16];
+    private int[][] codes = new int[CODED_COLUMNS][16];
+    private long[] textRecords = new long[16]; // Page index << 32 | offset of each row's text record
+
+    private final HashMap<String, Integer> codeOf = new HashMap<>();
+    private final ArrayList<String> values = new ArrayList<>(); // Distinct categorical values, indexed by code
+
+    private ArrayList<byte[]> pages = new ArrayList<>();
+    private int pagePos = PAGE_SIZE; // Write position in the last page; PAGE_SIZE forces a new page
+    private long textBytes = 0; // Bytes of all text records written to pages
+    private long garbageBytes = 0; // Bytes of text records replaced by updates, which no slot refers to
+    private boolean shared = false; // True while the columns are also held by a snapshot, which must not see changes
+
+    ColumnarProfileStore(PatientProfDB database) {
+        this.database = database;
+    }
+
+    @Override
+    public int add(PatientProf profile) {
+        if (end == coPay.length) {
+            int capacity = coPay.length * 2;
+            coPay = Arrays.copyOf(coPay, capacity);
+            for (int c = 0; c < CODED_COLUMNS; c++)
+                codes[c] = Arrays.copyOf(codes[c], capacity);
+            textRecords = Arrays.copyOf(textRecords, capacity);
+            shared = false;
+        }
+        // Otherwise the slot is beyond the end of any snapshot, so it may be written even if the columns are shared
+
+        int slot = end++;
+        String[] text = new String[TEXT_COLUMNS];
+        for (ProfileField field : FIELDS) {
+            if (field == ProfileField.CO_PAY)
+                coPay[slot] = profile.getCoPay();
+            else if (field.isCategorical())
+                codes[COLUMN[field.ordinal()]][slot] = code(field.get(profile));
+            else
+                text[COLUMN[field.ordinal()]] = field.get(profile);
+        }
+        textRecords[slot] = writeText(text);
+        live.set(slot);
+        size++;
+        return slot;
+    }
+
+    @Override
+    public PatientProf get(int slot) {
+        return isLive(slot) ? new ProfileRowView(this, database, slot) : null;
+    }
+
+    @Override
+    public String get(int slot, ProfileField field) {
+        if (field == ProfileField.CO_PAY) return String.valueOf(coPay[slot]);
+        return field.isCategorical() ? values.get(codes[COLUMN[field.ordinal()]][slot])
+                : readText(pages, textRecords[slot], COLUMN[field.ordinal()]);
+    }
+
+    @Override
+    public float getCoPay(int slot) {
+        return coPay[slot];
+    }
+
+    @Override
+    public boolean isLive(int slot) {
+        return live.get(slot);
+    }
+
+    @Override
+    public boolean contains(PatientProf profile) {
+        return profile instanceof ProfileRowView && ((ProfileRowView) profile).isCurrent(this) && live.get(profile.slot);
+    }
+
+    @Override
+    public void remove(int slot) {
+        // The row's columns are left in place, so views of it stay readable until the next compaction
+        live.clear(slot);
+        size--;
+    }
+
+    @Override
+    public int end() {
+        return end;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean wantsCompaction() {
+        int tombstones = end - size;
+        return tombstones >= MIN_TOMBSTONES_TO_COMPACT && tombstones > size;
+    }
+
+    @Override
+    public int[] compact() {
+        unshare();
+        int[] newSlots = new int[end];
+        ArrayList<byte[]> oldPages = pages;
+        pages = new ArrayList<>();
+        pagePos = PAGE_SIZE;
+        textBytes = garbageBytes = 0;
+
+        int liveCount = 0;
+        for (int i = 0; i < end; i++) {
+            if (!live.get(i)) {
+                newSlots[i] = -1;
+                continue;
+            }
+            coPay[liveCount] = coPay[i];
+            for (int c = 0; c < CODED_COLUMNS; c++)
+                codes[c][liveCount] = codes[c][i];
+
+            // Copy the text record as is into the new pages, leaving all garbage behind
+            long address = textRecords[i];
+            byte[] page = oldPages.get((int) (address >>> 32));
+            textRecords[liveCount] = append(page, (int) address, recordLength(page, (int) address));
+            newSlots[i] = liveCount++;
+        }
+
+        live.clear();
+        live.set(0, liveCount);
+        end = liveCount;
+        generation++;
+
+        // Give memory back if the columns are now mostly empty
+        if (coPay.length > 4 * end && coPay.length > 16) {
+            int capacity = Math.max(16, end * 2);
+            coPay = Arrays.copyOf(coPay, capacity);
+            for (int c = 0; c < CODED_COLUMNS; c++)
+                codes[c] = Arrays.copyOf(codes[c], capacity);
+            textRecords = Arrays.copyOf(textRecords, capacity);
+        }
+        return newSlots;
+    }
+
+    /**
+     * Copies the text records of every slot (tombstones included, as views of deleted rows stay readable) into new
+     * pages, leaving the garbage of updates behind. Unlike compact(), keeps the slots, so outstanding views stay
+     * valid and the database may call it in the middle of an update.
+     */
+    private void reclaim() {
+        unshare();
+        ArrayList<byte[]> oldPages = pages;
+        pages = new ArrayList<>();
+        pagePos = PAGE_SIZE;
+        textBytes = garbageBytes = 0;
+        for (int i = 0; i < end; i++) {
+            long address = textRecords[i];
+            byte[] page = oldPages.get((int) (address >>> 32));
+            textRecords[i] = append(page, (int) address, recordLength(page, (int) address));
+        }
+    }
+
+    @Override
+    public void clear() {
+        end = size = 0;
+        generation++;
+        live.clear();
+        coPay = new float[16];
+        codes = new int[CODED_COLUMNS][16];
+        textRecords = new long[16];
+        codeOf.clear();
+        values.clear();
+        pages = new ArrayList<>();
+        pagePos = PAGE_SIZE;
+        textBytes = garbageBytes = 0;
+        shared = false;
+    }
+
+    @Override
+    public Frozen freeze() {
+        // Pages are only ever appended to, so the snapshot can share the bytes of every record it refers to
+        shared = true;
+        float[] coPay = this.coPay;
+        int[][] codes = this.codes.clone();
+        long[] textRecords = this.textRecords;
+        BitSet live = (BitSet) this.live.clone();
+        ArrayList<byte[]> pages = new ArrayList<>(this.pages);
+        String[] values = this.values.toArray(new String[0]);
+        int end = this.end, size = this.size;
+
+        return new Frozen() {
+            @Override
+            public boolean isLive(int slot) {
+                return live.get(slot);
+            }
+
+            @Override
+            public String get(int slot, ProfileField field) {
+                if (field == ProfileField.CO_PAY) return String.valueOf(coPay[slot]);
+                int column = COLUMN[field.ordinal()];
+                return field.isCategorical() ? values[codes[column][slot]] : readText(pages, textRecords[slot], column);
+            }
+
+            @Override
+            public float getCoPay(int slot) {
+                return coPay[slot];
+            }
+
+            @Override
+            public PatientProf get(int slot) {
+                if (!live.get(slot)) return null;
+
+                String[] row = new String[FIELDS.length];
+                for (ProfileField field : FIELDS)
+                    if (field != ProfileField.CO_PAY)
+                        row[field.ordinal()] = get(slot, field);
+                return new PatientProf(row[0], row[1], row[2], row[3], row[4], coPay[slot], row[6], row[7],
+                        new MedCond(row[8], row[9], row[10], row[11]));
+            }
+
+            @Override
+            public int end() {
+                return end;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Copies the columns if a snapshot holds them, before they are changed in place.
+     */
+    private void unshare() {
+        if (!shared) return;
+
+        coPay = coPay.clone();
+        for (int c = 0; c < CODED_COLUMNS; c++)
+            codes[c] = codes[c].clone();
+        textRecords = textRecords.clone();
+        shared = false;
+    }
+
+    /**
+     * @return the code of a categorical value, assigning the next free code the first time the value is seen
+     */
+    private int code(String value) {
+        Integer code = codeOf.get(value);
+        if (code == null) {
+            code = values.size();
+            codeOf.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    /**
+     * Appends a text record holding the given values (in column order) to the pages.
+     * @return the record's address
+     */
+    private long writeText(String[] text) {
+        byte[][] encoded = new byte[text.length][];
+        int length = 0;
+        for (int c = 0; c < text.length; c++) {
+            encoded[c] = text[c].getBytes(StandardCharsets.UTF_8);
+            length += varintSize(encoded[c].length) + encoded[c].length;
+        }
+
+        long address = reserve(length);
+        byte[] page = pages.get((int) (address >>> 32));
+        int pos = (int) address;
+        for (byte[] bytes : encoded) {
+            for (int n = bytes.length; ; n >>>= 7) { // Unsigned LEB128 length
+                if ((n & ~0x7F) == 0) {
+                    page[pos++] = (byte) n;
+                    break;
+                }
+                page[pos++] = (byte) ((n & 0x7F) | 0x80);
+            }
+            System.arraycopy(bytes, 0, page, pos, bytes.length);
+            pos += bytes.length;
+        }
+        return address;
+    }
+
+    private long append(byte[] source, int offset, int length) {
+        long address = reserve(length);
+        System.arraycopy(source, offset, pages.get((int) (address >>> 32)), (int) address, length);
+        return address;
+    }
+
+    /**
+     * Reserves space for a record of the given length, starting a new page if the current one is too full.
+     * Records longer than a page get a page of their own.
+     * @return the address of the reserved space
+     */
+    private long reserve(int length) {
+        textBytes += length;
+        if (length > PAGE_SIZE) {
+            pages.add(new byte[length]);
+            pagePos = PAGE_SIZE;
+            return (long) (pages.size() - 1) << 32;
+        }
+        if (pagePos + length > PAGE_SIZE) {
+            pages.add(new byte[PAGE_SIZE]);
+            pagePos = 0;
+        }
+        long address = (long) (pages.size() - 1) << 32 | pagePos;
+        pagePos += length;
+        return address;
+    }
+
+    /**
+     * Decodes one value of a text record.
+     */
+    private static String readText(ArrayList<byte[]> pages, long address, int column) {
+        byte[] page = pages.get((int) (address >>> 32));
+        int pos = (int) address;
+        for (int c = 0; ; c++) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = page[pos++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            if (c == column) return new String(page, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+        }
+    }
+
+    /**
+     * @return the length in bytes of a text record
+     */
+    private int recordLength(long address) {
+        return recordLength(pages.get((int) (address >>> 32)), (int) address);
+    }
+
+    private static int recordLength(byte[] page, int start) {
+        int pos = start;
+        for (int c = 0; c < TEXT_COLUMNS; c++) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = page[pos++];
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            pos += length;
+        }
+        return pos - start;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public String set(int slot, ProfileField field, String value) {
+        unshare();
+        String oldValue = get(slot, field);
+        if (field.isCategorical()) {
+            codes[COLUMN[field.ordinal()]][slot] = code(value);
+        } else {
+            String[] text = new String[TEXT_COLUMNS];
+            for (ProfileField f : FIELDS)
+                if (f != ProfileField.CO_PAY && !f.isCategorical())
+                    text[COLUMN[f.ordinal()]] = f == field ? value : get(slot, f);
+            garbageBytes += recordLength(textRecords[slot]);
+            textRecords[slot] = writeText(text);
+            if (garbageBytes >= MIN_GARBAGE_TO_RECLAIM && garbageBytes > textBytes - garbageBytes)
+                reclaim();
+        }
+        return oldValue;
+    }
+
+    @Override
+    public void setCoPay(int slot, float coPay) {
+        unshare();
+        this.coPay[slot] = coPay;
+    }
+
+    @Override
+    public int generation() {
+        return generation;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("columnar[%d rows, %d distinct values, %d text pages, %d of %d text bytes garbage]",
+                end, values.size(), pages.size(), garbageBytes, textBytes);
+    }
+
+}
@@ -0,0 +1,189 @@
+import java.util.Arrays;
+
+/**
+ * Index of the slots holding each (adminID, lastName) pair. An open-addressing hash table of plain ints: entries
+ * store only the slot and its hash, and key equality is checked by reading the fields back from the store, so the
+ * index costs 8 bytes per entry (16 at its minimum load factor) instead of a map entry plus a key object.
+ * Several profiles may carry the same pair; find() returns the earliest inserted.
+ */
+final class KeyIndex implements ProfileIndex {
+
+    private final ProfileStore store;
+
+    private int[] slots = new int[16]; // Slot + 1 of each entry, or 0 for an empty bucket
+    private int[] hashes = new int[16];
+    private int mask = 15;
+    private int size = 0;
+
+    KeyIndex(ProfileStore store) {
+        this.store = store;
+    }
+
+    /**
+     * @return the hash under which the key (adminID, lastName) is indexed
+     */
+    static int hash(String adminID, String lastName) {
+        int h = 31 * adminID.hashCode() + lastName.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profile
+     * @param lastName Last name of the patient represented by the profile
+     * @return the lowest (earliest inserted) slot holding the pair, or -1 if there is none
+     */
+    int find(String adminID, String lastName) {
+        int h = hash(adminID, lastName);
+        int found = -1;
+        for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int slot = slots[i] - 1;
+            if (hashes[i] == h && (found < 0 || slot < found) && matches(slot, adminID, lastName))
+                found = slot;
+        }
+        return found;
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profile
+     * @param lastName Last name of the patient represented by the profile
+     * @param earlier Number of profiles holding the pair in lower slots, as returned by countEarlier()
+     * @return the slot holding the pair with that many others before it, or -1 if there is none
+     */
+    int find(String adminID, String lastName, int earlier) {
+        if (earlier == 0) return find(adminID, lastName);
+
+        int h = hash(adminID, lastName);
+        int[] found = new int[8];
+        int n = 0;
+        for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+            int slot = slots[i] - 1;
+            if (hashes[i] == h && matches(slot, adminID, lastName)) {
+                if (n == found.length) found = Arrays.copyOf(found, n * 2);
+                found[n++] = slot;
+            }
+        }
+        if (earlier >= n) return -1;
+        Arrays.sort(found, 0, n);
+        return found[earlier];
+    }
+
+    /**
+     * Tells profiles sharing a key apart, as the number of them inserted earlier (which compaction preserves).
+     * @param slot Slot of a profile, which need not be indexed under the pair (e.g. while it is renamed)
+     * @param adminID Admin ID of the creator of the profile
+     * @param lastName Last name of the patient represented by the profile
+     * @return the number of slots lower than the given one holding the pair
+     */
+    int countEarlier(int slot, String adminID, String lastName) {
+        int h = hash(adminID, lastName);
+        int earlier = 0;
+        for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask)
+            if (hashes[i] == h && slots[i] - 1 < slot && matches(slots[i] - 1, adminID, lastName))
+                earlier++;
+        return earlier;
+    }
+
+    private boolean matches(int slot, String adminID, String lastName) {
+        return store.get(slot, ProfileField.LAST_NAME).equals(lastName)
+                && store.get(slot, ProfileField.ADMIN_ID).equals(adminID);
+    }
+
+    @Override
+    public void add(int slot, PatientProf profile) {
+        put(slot, profile.getAdminID(), profile.getLastName());
+    }
+
+    private void put(int slot, String adminID, String lastName) {
+        add(slot, hash(adminID, lastName));
+    }
+
+    /**
+     * Indexes a slot by the hash of its key alone, as read from a ProfileRowIndex without decoding the profile.
+     * @param slot Slot holding a live profile
+     * @param h Hash of the profile's key, as returned by hash()
+     */
+    void add(int slot, int h) {
+        if (2 * (size + 1) > slots.length)
+            rehash(slots.length * 2);
+
+        int i = h & mask;
+        while (slots[i] != 0)
+            i = (i + 1) & mask;
+        slots[i] = slot + 1;
+        hashes[i] = h;
+        size++;
+    }
+
+    @Override
+    public void remove(int slot, PatientProf profile) {
+        delete(slot, profile.getAdminID(), profile.getLastName());
+    }
+
+    private void delete(int slot, String adminID, String lastName) {
+        int h = hash(adminID, lastName);
+        for (int i = h & mask; slots[i] != 0; i = (i + 1) & mask) {
+            if (slots[i] == slot + 1) {
+                deleteAt(i);
+                size--;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Empties a bucket, shifting later entries of its probe run back so that no lookup stops short of them.
+     */
+    private void deleteAt(int i) {
+        for (int j = (i + 1) & mask; slots[j] != 0; j = (j + 1) & mask) {
+            int home = hashes[j] & mask;
+            // Move entry j into the hole unless its home bucket lies cyclically in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                slots[i] = slots[j];
+                hashes[i] = hashes[j];
+                i = j;
+            }
+        }
+        slots[i] = 0;
+    }
+
+    @Override
+    public void update(int slot, PatientProf profile, ProfileField field, String oldValue) {
+        if (field == ProfileField.LAST_NAME) {
+            delete(slot, profile.getAdminID(), oldValue);
+            put(slot, profile.getAdminID(), profile.getLastName());
+        }
+    }
+
+    @Override
+    public void remap(int[] newSlots) {
+        // Compaction preserves the relative order of slots, so find() keeps returning the earliest inserted profile
+        for (int i = 0; i < slots.length; i++)
+            if (slots[i] != 0)
+                slots[i] = newSlots[slots[i] - 1] + 1;
+    }
+
+    @Override
+    public void clear() {
+        slots = new int[16];
+        hashes = new int[16];
+        mask = 15;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldSlots = slots, oldHashes = hashes;
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == 0) continue;
+            int i = oldHashes[j] & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = oldSlots[j];
+            hashes[i] = oldHashes[j];
+        }
+    }
+
+}
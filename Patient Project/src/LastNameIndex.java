@@ -0,0 +1,329 @@
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Search index over normalized last names (see normalize()). Answers prefix queries, and when too few names start
+ * with the query, also finds names starting with a string one edit away from it (an inserted, deleted, substituted
+ * or transposed character), so that a mistyped search still finds the patient.
+ * <p>
+ * Entries are (name, slot) pairs kept in a sorted array, which binary searches reach in O(log n) without a tree
+ * node per entry. Each entry also holds a code for the admin who created the profile, so that searches restricted
+ * to one admin skip the others' entries without reading the store. Additions go to a small unsorted buffer first
+ * and are merged into the array in bulk; removals only mark their entry. The buffer must be merged with merge()
+ * before searching once it outgrows MAX_SEARCHED_BUFFER.
+ */
+final class LastNameIndex implements ProfileIndex {
+
+    // Largest buffer search() scans linearly; bigger ones must be merged first
+    static final int MAX_SEARCHED_BUFFER = 64;
+
+    // Merge once the buffer holds this many entries, or a sixteenth of the array if that is more, which keeps the
+    // amortized cost of merging constant per addition
+    private static final int MIN_MERGE = 4096;
+
+    // Shortest variant of the query searched for as a prefix: shorter ones (e.g. the deletion of a one-letter
+    // query, which is empty) start nearly every name, so they would only bury the real matches
+    private static final int MIN_VARIANT_LENGTH = 2;
+
+    private static final int ANY_ADMIN = -1; // Admin code searching every admin's entries
+
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789".toCharArray();
+
+    // Code of each admin ID seen, in the order they were first seen. Admin IDs never change, so codes are kept.
+    private final HashMap<String, Integer> adminCodes = new HashMap<>();
+
+    private String[] names = new String[0]; // Normalized names in ascending order
+    private int[] slots = new int[0]; // Slot of each entry, ascending among equal names; -1 marks a removed entry
+    private int[] admins = new int[0]; // Admin code of each entry
+    private int removedCount = 0;
+
+    private String[] addedNames = new String[16]; // Unsorted buffer of entries added since the last merge
+    private int[] addedSlots = new int[16];
+    private int[] addedAdmins = new int[16];
+    private int addedCount = 0;
+
+    /**
+     * Normalizes a name for searching: accents are stripped, letters lower-cased, and everything but letters and
+     * digits dropped, so "O'Brien", "obrien" and "OBrien" are all found as "obrien".
+     * @param name Name to normalize
+     * @return the normalized name
+     */
+    static String normalize(String name) {
+        String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c))
+                normalized.append(Character.toLowerCase(c));
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * @return true if the buffer is small enough for search() to be called without merging first
+     */
+    boolean isSearchable() {
+        return addedCount <= MAX_SEARCHED_BUFFER;
+    }
+
+    /**
+     * Finds the best matches for a last name typed so far: names starting with the query, then (if there are fewer
+     * than limit of those) names starting with a string one edit away from it, if that string has at least
+     * MIN_VARIANT_LENGTH characters. Within each group, an exact match comes first and the rest follow in
+     * alphabetical order.
+     * @param adminID Admin ID the profiles must have been created by, or null for any admin
+     * @param query Last name, or the beginning of one
+     * @param limit Maximum number of matches
+     * @return slots of the best matches, best first
+     */
+    int[] search(String adminID, String query, int limit) {
+        String prefix = normalize(query);
+        Integer admin = adminID == null ? Integer.valueOf(ANY_ADMIN) : adminCodes.get(adminID);
+        if (prefix.isEmpty() || limit <= 0 || admin == null) return new int[0];
+
+        ArrayList<Match> matches = new ArrayList<>();
+        HashSet<Integer> found = new HashSet<>();
+        collect(prefix, 0, admin, limit, matches, found);
+
+        if (matches.size() < limit) {
+            Set<String> variants = editsOf(prefix);
+            variants.remove(prefix);
+            variants.removeIf(variant -> variant.length() < Math.max(MIN_VARIANT_LENGTH, prefix.length() - 1));
+            ArrayList<Match> fuzzy = new ArrayList<>();
+            for (String variant : variants)
+                collect(variant, 1, admin, limit - matches.size(), fuzzy, found);
+            Collections.sort(fuzzy);
+            matches.addAll(fuzzy.subList(0, Math.min(fuzzy.size(), limit - matches.size())));
+        }
+
+        int[] result = new int[matches.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = matches.get(i).slot;
+        return result;
+    }
+
+    /**
+     * Adds up to limit of the entries starting with prefix (the alphabetically first of the array's, and all of the
+     * buffer's) to matches, in order.
+     */
+    private void collect(String prefix, int distance, int admin, int limit, List<Match> matches,
+                         Set<Integer> found) {
+        ArrayList<Match> prefixMatches = new ArrayList<>();
+        for (int i = lowerBound(prefix); i < names.length && prefixMatches.size() < limit
+                && names[i].startsWith(prefix); i++)
+            if (slots[i] >= 0 && accept(slots[i], admins[i], admin, found))
+                prefixMatches.add(new Match(names[i], slots[i], distance, names[i].length() == prefix.length()));
+        for (int i = 0; i < addedCount; i++)
+            if (addedNames[i].startsWith(prefix) && accept(addedSlots[i], addedAdmins[i], admin, found))
+                prefixMatches.add(new Match(addedNames[i], addedSlots[i], distance,
+                        addedNames[i].length() == prefix.length()));
+
+        Collections.sort(prefixMatches);
+        matches.addAll(prefixMatches.subList(0, Math.min(prefixMatches.size(), limit)));
+    }
+
+    private static boolean accept(int slot, int entryAdmin, int admin, Set<Integer> found) {
+        return (admin == ANY_ADMIN || entryAdmin == admin) && found.add(slot);
+    }
+
+    /**
+     * @return every string one insertion, deletion, substitution or transposition away from s
+     */
+    private static Set<String> editsOf(String s) {
+        HashSet<String> edits = new HashSet<>();
+        StringBuilder sb = new StringBuilder(s.length() + 1);
+        for (int i = 0; i <= s.length(); i++) {
+            for (char c : ALPHABET) {
+                sb.setLength(0);
+                edits.add(sb.append(s, 0, i).append(c).append(s, i, s.length()).toString()); // Insertion
+            }
+            if (i == s.length()) break;
+
+            sb.setLength(0);
+            edits.add(sb.append(s, 0, i).append(s, i + 1, s.length()).toString()); // Deletion
+            for (char c : ALPHABET) {
+                sb.setLength(0);
+                edits.add(sb.append(s, 0, i).append(c).append(s, i + 1, s.length()).toString()); // Substitution
+            }
+            if (i + 1 < s.length()) {
+                sb.setLength(0);
+                edits.add(sb.append(s, 0, i).append(s.charAt(i + 1)).append(s.charAt(i))
+                        .append(s, i + 2, s.length()).toString()); // Transposition
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * A candidate result, ordered by edit distance, then exact matches first, then alphabetically and by slot.
+     */
+    private static final class Match implements Comparable<Match> {
+        private final String name;
+        private final int slot;
+        private final int distance;
+        private final boolean exact;
+
+        Match(String name, int slot, int distance, boolean exact) {
+            this.name = name;
+            this.slot = slot;
+            this.distance = distance;
+            this.exact = exact;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            if (distance != other.distance) return Integer.compare(distance, other.distance);
+            if (exact != other.exact) return exact ? -1 : 1;
+            int byName = name.compareTo(other.name);
+            return byName != 0 ? byName : Integer.compare(slot, other.slot);
+        }
+    }
+
+    /**
+     * @return index of the first entry of the array whose name is not less than name
+     */
+    private int lowerBound(String name) {
+        int low = 0, high = names.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (names[mid].compareTo(name) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    @Override
+    public void add(int slot, PatientProf profile) {
+        put(normalize(profile.getLastName()), adminCode(profile.getAdminID()), slot);
+    }
+
+    private int adminCode(String adminID) {
+        Integer code = adminCodes.get(adminID);
+        if (code == null) {
+            code = adminCodes.size();
+            adminCodes.put(adminID, code);
+        }
+        return code;
+    }
+
+    private void put(String name, int admin, int slot) {
+        if (addedCount == addedNames.length) {
+            addedNames = Arrays.copyOf(addedNames, addedCount * 2);
+            addedSlots = Arrays.copyOf(addedSlots, addedCount * 2);
+            addedAdmins = Arrays.copyOf(addedAdmins, addedCount * 2);
+        }
+        addedNames[addedCount] = name;
+        addedAdmins[addedCount] = admin;
+        addedSlots[addedCount++] = slot;
+
+        if (addedCount >= Math.max(MIN_MERGE, names.length / 16))
+            merge();
+    }
+
+    @Override
+    public void remove(int slot, PatientProf profile) {
+        delete(normalize(profile.getLastName()), slot);
+    }
+
+    private void delete(String name, int slot) {
+        for (int i = lowerBound(name); i < names.length && names[i].equals(name); i++) {
+            if (slots[i] == slot) {
+                slots[i] = -1;
+                removedCount++;
+                return;
+            }
+        }
+        for (int i = 0; i < addedCount; i++) {
+            if (addedSlots[i] == slot && addedNames[i].equals(name)) {
+                addedNames[i] = addedNames[--addedCount];
+                addedSlots[i] = addedSlots[addedCount];
+                addedAdmins[i] = addedAdmins[addedCount];
+                addedNames[addedCount] = null;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void update(int slot, PatientProf profile, ProfileField field, String oldValue) {
+        if (field == ProfileField.LAST_NAME) {
+            delete(normalize(oldValue), slot);
+            put(normalize(profile.getLastName()), adminCode(profile.getAdminID()), slot);
+        }
+    }
+
+    @Override
+    public void remap(int[] newSlots) {
+        // Compaction preserves the relative order of slots, so the array stays sorted
+        for (int i = 0; i < slots.length; i++)
+            if (slots[i] >= 0)
+                slots[i] = newSlots[slots[i]];
+        for (int i = 0; i < addedCount; i++)
+            addedSlots[i] = newSlots[addedSlots[i]];
+        merge(); // Drops the removed entries, as their space is being reclaimed anyway
+    }
+
+    @Override
+    public void clear() {
+        adminCodes.clear();
+        names = new String[0];
+        slots = new int[0];
+        admins = new int[0];
+        removedCount = 0;
+        addedNames = new String[16];
+        addedSlots = new int[16];
+        addedAdmins = new int[16];
+        addedCount = 0;
+    }
+
+    /**
+     * Sorts the buffer into the array, dropping removed entries.
+     */
+    void merge() {
+        Integer[] order = new Integer[addedCount];
+        for (int i = 0; i < addedCount; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> {
+            int byName = addedNames[a].compareTo(addedNames[b]);
+            return byName != 0 ? byName : Integer.compare(addedSlots[a], addedSlots[b]);
+        });
+
+        int size = names.length - removedCount + addedCount;
+        String[] mergedNames = new String[size];
+        int[] mergedSlots = new int[size];
+        int[] mergedAdmins = new int[size];
+        int i = 0, j = 0, k = 0;
+        while (i < names.length || j < addedCount) {
+            if (i < names.length && slots[i] < 0) {
+                i++;
+                continue;
+            }
+            boolean takeArray = j == addedCount || (i < names.length && compare(names[i], slots[i],
+                    addedNames[order[j]], addedSlots[order[j]]) <= 0);
+            if (takeArray) {
+                mergedNames[k] = names[i];
+                mergedAdmins[k] = admins[i];
+                mergedSlots[k++] = slots[i++];
+            } else {
+                mergedNames[k] = addedNames[order[j]];
+                mergedAdmins[k] = addedAdmins[order[j]];
+                mergedSlots[k++] = addedSlots[order[j++]];
+            }
+        }
+
+        names = mergedNames;
+        slots = mergedSlots;
+        admins = mergedAdmins;
+        removedCount = 0;
+        Arrays.fill(addedNames, 0, addedCount, null);
+        addedCount = 0;
+    }
+
+    private static int compare(String name1, int slot1, String name2, int slot2) {
+        int byName = name1.compareTo(name2);
+        return byName != 0 ? byName : Integer.compare(slot1, slot2);
+    }
+
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, which any number of threads may record into without locking. Like an HDR
+ * histogram, values are counted in buckets whose width grows with the value, so that every value from 1 ns to hours
+ * is kept to within 2% in a fixed 30 KB, and percentiles are read off the bucket counts.
+ */
+public final class LatencyHistogram {
+
+    // Each power of two from 2^SUB_BITS up is split into 2^(SUB_BITS-1) buckets of equal width
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * HALF_COUNT + HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos A latency; negative ones are counted as 0
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        for (long m = max.get(); value > m && !max.compareAndSet(m, value); m = max.get()) ;
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        // Keep the SUB_BITS highest bits: the leading one picks the power of two, the rest the bucket within it
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the highest value counted in the given bucket
+     */
+    private static long highestValue(int bucket) {
+        if (bucket < SUB_COUNT) return bucket;
+        int shift = bucket / HALF_COUNT - 1;
+        long sub = bucket - shift * HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @param other Histogram whose counts are added to this one's
+     */
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0)
+                counts.addAndGet(i, n);
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        for (long m = max.get(), value = other.max.get(); value > m && !max.compareAndSet(m, value); m = max.get()) ;
+    }
+
+    /**
+     * Forgets every recorded value. Values recorded meanwhile by other threads may be partly kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean of the recorded values, or NaN if there are none
+     */
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? Double.NaN : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the highest recorded value, exactly
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile A percentile from 0 to 100
+     * @return a value at least as high as that percentile of the recorded values and within 2% of it, or 0 if there
+     * are none
+     */
+    public long percentile(double percentile) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return count, mean and percentiles in microseconds
+     */
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f (us)", getCount(),
+                getMean() / 1e3, percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+                percentile(99.9) / 1e3, getMax() / 1e3);
+    }
+
+}
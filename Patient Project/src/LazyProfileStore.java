@@ -0,0 +1,413 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Storage backend which leaves the rows of the database file in the file, holding only the offset of each, and
+ * decodes a row into a PatientProf when it is first accessed. Decoded profiles are kept in a bounded cache which
+ * evicts the least recently used; profiles inserted or updated since the file was opened are held in memory until
+ * it is next opened, like the OBJECT backend holds every profile.
+ * <p>
+ * A profile handed out by get() is bound to the database while it is cached or held. Once evicted, its update
+ * methods apply the change to the profile the database now holds for the same row of the file (see rebind()), or
+ * throw IllegalStateException if that row was deleted, but its getters may be out of date, so look it up again rather
+ * than holding on to it. The profiles of a frozen snapshot are detached copies; those held in memory are copied
+ * before they change (see ProfileVersions), so that the snapshot goes on seeing them as they were.
+ * <p>
+ * The file is read through a channel opened with the store, which goes on reading the rows it was opened on even
+ * after writeAllPatientProf() replaces the file.
+ */
+final class LazyProfileStore implements ProfileStore {
+
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 64;
+    private static final long IN_MEMORY = -1; // Offset of a row held in memory rather than in the file
+
+    private final PatientProfDB database; // Database the profiles handed out are bound to
+    private final StringDictionary dictionary; // Interns the categorical fields of decoded rows
+    private final int cacheCapacity;
+
+    private FileChannel channel; // Channel on the database file, or null before a file was opened
+    private long[] rowOffsets = new long[16]; // File offset of each slot's row, or IN_MEMORY
+    private int end = 0; // Slot at which next profile is added
+    private int size = 0; // Number of live profiles
+    private final BitSet live = new BitSet();
+    private boolean shared = false; // True while rowOffsets is also held by a snapshot, which must not see changes
+
+    // Profiles inserted or updated since the file was opened, which are never evicted, keyed by slot
+    private HashMap<Integer, PatientProf> held = new HashMap<>();
+    private final ProfileVersions versions = new ProfileVersions(); // Keeps held profiles as snapshots saw them
+
+    // Recently accessed rows of the file, least recently used first. Reads share the database's read lock, so
+    // every access synchronizes on the cache.
+    private LinkedHashMap<Integer, PatientProf> cache = newCache();
+    // Offset of the row each profile evicted from the cache was read from, for those which may still be referenced;
+    // detached by clear(). Keyed by identity, as PatientProf doesn't override equals().
+    private final WeakHashMap<PatientProf, Long> evicted = new WeakHashMap<>();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param database Database the profiles are bound to
+     * @param dictionary Dictionary the database interns categorical values in
+     * @param cacheCapacity Largest number of decoded rows to keep
+     */
+    LazyProfileStore(PatientProfDB database, StringDictionary dictionary, int cacheCapacity) {
+        if (cacheCapacity < 1)
+            throw new IllegalArgumentException("cacheCapacity must be at least 1: " + cacheCapacity);
+        this.database = database;
+        this.dictionary = dictionary;
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    private LinkedHashMap<Integer, PatientProf> newCache() {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, PatientProf> eldest) {
+                if (size() <= cacheCapacity) return false;
+                eldest.getValue().slot = -1; // Still bound to the database, which rebinds its updates by row
+                evicted.put(eldest.getValue(), rowOffsets[eldest.getKey()]);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Replaces the contents of the store with the rows of a database file.
+     * @param channel Channel open on the file, which the store now owns
+     * @param rows Row index of the file
+     */
+    void open(FileChannel channel, ProfileRowIndex rows) {
+        clear();
+        this.channel = channel;
+        rowOffsets = Arrays.copyOf(rows.offsets(), Math.max(16, rows.size()));
+        end = size = rows.size();
+        live.set(0, end);
+    }
+
+    /**
+     * @return the number of get() calls answered from the cache or the profiles held in memory
+     */
+    long getHits() {
+        synchronized (cache) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return the number of get() calls which had to read and decode the row from the file
+     */
+    long getMisses() {
+        synchronized (cache) {
+            return misses;
+        }
+    }
+
+    @Override
+    public int add(PatientProf profile) {
+        if (end == rowOffsets.length) {
+            rowOffsets = Arrays.copyOf(rowOffsets, end * 2);
+            shared = false;
+        }
+        // Otherwise the slot is beyond the end of any snapshot, so it may be written even if rowOffsets is shared
+
+        int slot = end++;
+        rowOffsets[slot] = IN_MEMORY;
+        profile.database = database;
+        profile.slot = slot;
+        held.put(slot, profile);
+        live.set(slot);
+        size++;
+        return slot;
+    }
+
+    @Override
+    public PatientProf get(int slot) {
+        if (!isLive(slot)) return null;
+
+        synchronized (cache) {
+            PatientProf profile = held.get(slot);
+            if (profile == null) profile = cache.get(slot);
+            if (profile != null) {
+                hits++;
+                return profile;
+            }
+
+            misses++;
+            profile = readRow(channel, rowOffsets[slot], dictionary);
+            profile.database = database;
+            profile.slot = slot;
+            cache.put(slot, profile);
+            return profile;
+        }
+    }
+
+    /**
+     * @return the profile in a live slot, from memory if it is there, else decoded but not cached (so that scans
+     * over many rows don't flush the cache)
+     */
+    private PatientProf peek(int slot) {
+        synchronized (cache) {
+            PatientProf profile = held.get(slot);
+            if (profile == null) profile = cache.get(slot);
+            if (profile != null) return profile;
+        }
+        return readRow(channel, rowOffsets[slot], dictionary);
+    }
+
+    @Override
+    public String get(int slot, ProfileField field) {
+        return field.get(peek(slot));
+    }
+
+    @Override
+    public float getCoPay(int slot) {
+        return peek(slot).getCoPay();
+    }
+
+    @Override
+    public boolean isLive(int slot) {
+        return slot >= 0 && slot < end && live.get(slot);
+    }
+
+    /**
+     * Finds the slot now holding the row of the file which an evicted profile was read from. Keys may repeat, so the
+     * row is found by its offset: rows of the file keep their order through compaction, and precede the rows
+     * added since, so the slots of the file are searched by bisection.
+     * @param profile Profile evicted from the cache
+     * @return the slot, or -1 if its row was deleted (or the profile was not evicted from this store)
+     */
+    int rebind(PatientProf profile) {
+        Long offset;
+        synchronized (cache) {
+            offset = evicted.get(profile);
+        }
+        if (offset == null) return -1;
+
+        int low = 0;
+        int high = end - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midOffset = rowOffsets[mid];
+            if (midOffset != IN_MEMORY && midOffset < offset) low = mid + 1;
+            else if (midOffset == IN_MEMORY || midOffset > offset) high = mid - 1;
+            else return live.get(mid) ? mid : -1;
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean contains(PatientProf profile) {
+        if (!isLive(profile.slot)) return false;
+        synchronized (cache) {
+            return held.get(profile.slot) == profile || cache.get(profile.slot) == profile;
+        }
+    }
+
+    @Override
+    public void beforeUpdate(PatientProf profile) {
+        // Snapshots read the others from the file, which doesn't change
+        synchronized (cache) {
+            if (held.get(profile.slot) != profile) return;
+        }
+        versions.preserve(profile);
+    }
+
+    @Override
+    public void updated(PatientProf profile) {
+        // The row in the file is now out of date, so keep the profile in memory for good
+        synchronized (cache) {
+            cache.remove(profile.slot);
+            held.put(profile.slot, profile);
+        }
+    }
+
+    @Override
+    public void remove(int slot) {
+        synchronized (cache) {
+            PatientProf profile = held.remove(slot);
+            if (profile != null) versions.preserve(profile); // Whoever holds it may go on changing it
+            else profile = cache.remove(slot);
+            if (profile != null) {
+                profile.database = null;
+                profile.slot = -1;
+            }
+        }
+        live.clear(slot);
+        size--;
+    }
+
+    @Override
+    public int end() {
+        return end;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean wantsCompaction() {
+        int tombstones = end - size;
+        return tombstones >= MIN_TOMBSTONES_TO_COMPACT && tombstones > size;
+    }
+
+    @Override
+    public int[] compact() {
+        if (shared) {
+            rowOffsets = rowOffsets.clone();
+            shared = false;
+        }
+        int[] newSlots = new int[end];
+        int liveCount = 0;
+        for (int i = 0; i < end; i++) {
+            if (live.get(i)) {
+                rowOffsets[liveCount] = rowOffsets[i];
+                newSlots[i] = liveCount++;
+            } else {
+                newSlots[i] = -1;
+            }
+        }
+
+        synchronized (cache) {
+            held = renumber(held, new HashMap<>(), newSlots);
+            cache = renumber(cache, newCache(), newSlots); // Iterated least recently used first, so the order stays
+        }
+        live.clear();
+        live.set(0, liveCount);
+        end = liveCount;
+        return newSlots;
+    }
+
+    private static <M extends Map<Integer, PatientProf>> M renumber(Map<Integer, PatientProf> profiles, M renumbered,
+                                                                   int[] newSlots) {
+        for (PatientProf profile : profiles.values()) {
+            profile.slot = newSlots[profile.slot];
+            renumbered.put(profile.slot, profile);
+        }
+        return renumbered;
+    }
+
+    @Override
+    public void clear() {
+        // Detach profiles so their updates no longer touch the database
+        synchronized (cache) {
+            boolean preserve = versions.inUse();
+            for (PatientProf profile : held.values()) {
+                if (preserve) versions.preserve(profile);
+                profile.database = null;
+            }
+            for (PatientProf profile : cache.values())
+                profile.database = null;
+            for (PatientProf profile : evicted.keySet())
+                profile.database = null;
+            evicted.clear();
+            held = new HashMap<>();
+            cache = newCache();
+        }
+        // The channel is not closed, as snapshots may still read through it; it is closed once unreachable
+        channel = null;
+        rowOffsets = new long[16];
+        end = size = 0;
+        live.clear();
+        shared = false;
+    }
+
+    @Override
+    public Frozen freeze() {
+        shared = true;
+        FileChannel channel = this.channel;
+        long[] rowOffsets = this.rowOffsets;
+        BitSet live = (BitSet) this.live.clone();
+        HashMap<Integer, PatientProf> held;
+        synchronized (cache) {
+            held = new HashMap<>(this.held);
+        }
+        ProfileVersions.Epoch epoch = versions.freeze();
+        int end = this.end, size = this.size;
+
+        return new Frozen() {
+            @Override
+            public boolean isLive(int slot) {
+                return live.get(slot);
+            }
+
+            @Override
+            public PatientProf get(int slot) {
+                if (!live.get(slot)) return null;
+                PatientProf profile = held.get(slot);
+                return profile != null ? epoch.get(profile) : readRow(channel, rowOffsets[slot], dictionary);
+            }
+
+            @Override
+            public String get(int slot, ProfileField field) {
+                PatientProf profile = held.get(slot);
+                return profile != null ? epoch.get(profile, field)
+                        : field.get(readRow(channel, rowOffsets[slot], dictionary));
+            }
+
+            @Override
+            public float getCoPay(int slot) {
+                PatientProf profile = held.get(slot);
+                return profile != null ? epoch.getCoPay(profile)
+                        : readRow(channel, rowOffsets[slot], dictionary).getCoPay();
+            }
+
+            @Override
+            public int end() {
+                return end;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Reads and decodes the row starting at the given offset of the file.
+     * @return a new, unbound profile
+     * @throws UncheckedIOException if the file cannot be read
+     */
+    private static PatientProf readRow(FileChannel channel, long offset, StringDictionary dictionary) {
+        try {
+            // Rows are about a hundred bytes, so one read nearly always gets the whole row
+            ByteBuffer buffer = ByteBuffer.allocate(256);
+            int newline = -1;
+            for (int scanned = 0; newline < 0; ) {
+                if (!buffer.hasRemaining())
+                    buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+                if (channel.read(buffer, offset + buffer.position()) < 0) break;
+                for (; scanned < buffer.position() && newline < 0; scanned++)
+                    if (buffer.get(scanned) == '\n')
+                        newline = scanned;
+            }
+
+            int length = newline < 0 ? buffer.position() : newline;
+            if (length > 0 && buffer.get(length - 1) == '\r') length--;
+            return PatientProfDB.parseProfile(new String(buffer.array(), 0, length, StandardCharsets.UTF_8),
+                    dictionary);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading row at offset " + offset, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        ArrayList<String> rows = new ArrayList<>();
+        for (int i = 0; i < end; i++)
+            rows.add(isLive(i) ? String.valueOf(peek(i)) : "null");
+        return rows.toString();
+    }
+
+}
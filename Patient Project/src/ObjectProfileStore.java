@@ -0,0 +1,191 @@
+import java.util.Arrays;
+
+/**
+ * Default storage backend, holding the inserted PatientProf objects themselves in a slot array.
+ */
+final class ObjectProfileStore implements ProfileStore {
+
+    // Compact once tombstones outnumber live profiles (and there are enough of them to be worth a pass), which keeps
+    // the amortized cost of a delete constant while never wasting more than half the populated slots.
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 64;
+
+    private final PatientProfDB database; // Database the stored profiles are bound to
+
+    private PatientProf[] patientList = new PatientProf[5];
+    private int next_insert_i = 0; // Index at which next patient is added
+    private int profileCount = 0; // Number of live (non-tombstone) profiles in patientList
+    private boolean shared = false; // True while patientList is also held by a snapshot, which must not see changes
+    private final ProfileVersions versions = new ProfileVersions(); // Keeps the profiles as snapshots saw them
+
+    ObjectProfileStore(PatientProfDB database) {
+        this.database = database;
+    }
+
+    @Override
+    public int add(PatientProf profile) {
+        // Double the patient array if it is full, so bulk inserts copy each profile a constant number of times.
+        if (next_insert_i >= patientList.length) {
+            patientList = Arrays.copyOf(patientList, Math.max(5, patientList.length * 2));
+            shared = false;
+        }
+        // Otherwise the slot is beyond the end of any snapshot, so it may be written even if patientList is shared
+
+        profile.database = database;
+        profile.slot = next_insert_i;
+        patientList[next_insert_i] = profile;
+        profileCount++;
+        return next_insert_i++;
+    }
+
+    @Override
+    public PatientProf get(int slot) {
+        return slot < next_insert_i ? patientList[slot] : null;
+    }
+
+    @Override
+    public String get(int slot, ProfileField field) {
+        return field.get(patientList[slot]);
+    }
+
+    @Override
+    public float getCoPay(int slot) {
+        return patientList[slot].getCoPay();
+    }
+
+    @Override
+    public boolean isLive(int slot) {
+        return slot < next_insert_i && patientList[slot] != null;
+    }
+
+    @Override
+    public boolean contains(PatientProf profile) {
+        return profile.slot >= 0 && profile.slot < next_insert_i && patientList[profile.slot] == profile;
+    }
+
+    @Override
+    public void beforeUpdate(PatientProf profile) {
+        versions.preserve(profile);
+    }
+
+    @Override
+    public void remove(int slot) {
+        unshare();
+        PatientProf profile = patientList[slot];
+        versions.preserve(profile); // Whoever holds it may go on changing it
+        profile.database = null;
+        profile.slot = -1;
+
+        patientList[slot] = null;
+        profileCount--;
+    }
+
+    @Override
+    public int end() {
+        return next_insert_i;
+    }
+
+    @Override
+    public int size() {
+        return profileCount;
+    }
+
+    @Override
+    public boolean wantsCompaction() {
+        int tombstones = next_insert_i - profileCount;
+        return tombstones >= MIN_TOMBSTONES_TO_COMPACT && tombstones > profileCount;
+    }
+
+    @Override
+    public int[] compact() {
+        unshare();
+        int[] newSlots = new int[next_insert_i];
+        int live = 0;
+        for (int i = 0; i < next_insert_i; i++) {
+            PatientProf profile = patientList[i];
+            if (profile == null) {
+                newSlots[i] = -1;
+            } else {
+                profile.slot = newSlots[i] = live;
+                patientList[live++] = profile;
+            }
+        }
+        Arrays.fill(patientList, live, next_insert_i, null);
+        next_insert_i = live;
+
+        // Give memory back if the array is now mostly empty
+        if (patientList.length > 4 * live && patientList.length > 5)
+            patientList = Arrays.copyOf(patientList, Math.max(5, live * 2));
+        return newSlots;
+    }
+
+    @Override
+    public void clear() {
+        // Detach profiles so their updates no longer touch the database
+        boolean preserve = versions.inUse();
+        for (int i = 0; i < next_insert_i; i++) {
+            if (patientList[i] != null) {
+                if (preserve) versions.preserve(patientList[i]);
+                patientList[i].database = null;
+            }
+        }
+
+        patientList = new PatientProf[5];
+        next_insert_i = profileCount = 0;
+        shared = false;
+    }
+
+    @Override
+    public Frozen freeze() {
+        shared = true;
+        PatientProf[] list = patientList;
+        ProfileVersions.Epoch epoch = versions.freeze();
+        int end = next_insert_i, size = profileCount;
+        return new Frozen() {
+            @Override
+            public boolean isLive(int slot) {
+                return list[slot] != null;
+            }
+
+            @Override
+            public PatientProf get(int slot) {
+                return list[slot] == null ? null : epoch.get(list[slot]);
+            }
+
+            @Override
+            public String get(int slot, ProfileField field) {
+                return epoch.get(list[slot], field);
+            }
+
+            @Override
+            public float getCoPay(int slot) {
+                return epoch.getCoPay(list[slot]);
+            }
+
+            @Override
+            public int end() {
+                return end;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Copies patientList if a snapshot holds it, before it is changed in place.
+     */
+    private void unshare() {
+        if (shared) {
+            patientList = patientList.clone();
+            shared = false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.deepToString(Arrays.copyOf(patientList, next_insert_i));
+    }
+
+}
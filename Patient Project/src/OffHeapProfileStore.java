@@ -0,0 +1,622 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.TreeMap;
+import com.med.MedCond;
+
+/**
+ * Storage backend holding each profile as one encoded row in direct (off-heap) memory, so that the heap and the
+ * collector's work stay flat however many profiles the database holds. A row is a block of
+ * <ul>
+ * <li>a byte giving the block's size class,</li>
+ * <li>CO_PAY as a float,</li>
+ * <li>an int per categorical field (ProfileField.isCategorical()), a code into a table of distinct values,</li>
+ * <li>the six free-text fields as length-prefixed UTF-8 strings,</li>
+ * </ul>
+ * carved out of 4 MB direct ByteBuffer arenas and addressed by a long[] indexed by slot. Blocks come in size classes
+ * of 16-byte steps up to 1 KB, and a block given up by an update (which writes the row into a new block) or by a
+ * compaction (which frees the rows of tombstones) goes on the free list of its class, threaded through the free
+ * blocks themselves, to be reused by the next row of that class. Rows longer than 1 KB get a block of a multiple of
+ * 1 KB, which likewise goes on a free list of the blocks of its size (rows longer than an arena get an arena of their
+ * own, without interrupting the arena being carved). On the heap remain the address table, the live bitmap and the
+ * table of categorical values: about 8 bytes per slot.
+ * <p>
+ * Like ColumnarProfileStore, get() hands out a transient view (a ProfileRowView) which is only valid until the next
+ * compaction, and the profiles of a frozen snapshot are detached copies. As a snapshot reads blocks without locking,
+ * a block a live snapshot may still read is only put on a free list once every such snapshot has been garbage
+ * collected; until then it waits on a pending list. Direct memory is limited by -XX:MaxDirectMemorySize, which
+ * defaults to the maximum heap size.
+ */
+final class OffHeapProfileStore implements ProfileStore, ProfileRowView.Rows {
+
+    private static final ProfileField[] FIELDS = ProfileField.values();
+
+    // Column of each field within the codes (categorical fields) or within the text (free-text fields) of a row
+    private static final int[] COLUMN = new int[FIELDS.length];
+    private static final int CODED_COLUMNS;
+    private static final int TEXT_COLUMNS;
+
+    static {
+        int coded = 0, text = 0;
+        for (ProfileField field : FIELDS)
+            if (field != ProfileField.CO_PAY)
+                COLUMN[field.ordinal()] = field.isCategorical() ? coded++ : text++;
+        CODED_COLUMNS = coded;
+        TEXT_COLUMNS = text;
+    }
+
+    // Offsets within a row
+    private static final int CO_PAY_OFFSET = 1;
+    private static final int CODES_OFFSET = CO_PAY_OFFSET + 4;
+    private static final int TEXT_OFFSET = CODES_OFFSET + 4 * CODED_COLUMNS;
+
+    private static final int ARENA_SIZE = 1 << 22;
+    private static final int BLOCK_STEP = 16; // Block sizes are multiples of this, which holds a free list link
+    private static final int SIZE_CLASSES = 64; // Size class n holds blocks of n * BLOCK_STEP bytes
+    private static final int UNSIZED = 0; // Size class of blocks of rows too long for any size class
+    private static final int LARGE_STEP = 1024; // Blocks of size class UNSIZED are multiples of this
+    private static final long NONE = -1; // End of a free list
+    private static final int MIN_TOMBSTONES_TO_COMPACT = 64;
+
+    private final PatientProfDB database; // Database the views handed out are bound to
+
+    private int end = 0; // Slot at which next profile is added
+    private int size = 0; // Number of live profiles
+    private int generation = 0; // Incremented whenever slots are renumbered, which invalidates outstanding views
+    private final BitSet live = new BitSet();
+    private long[] addresses = new long[16]; // Arena index << 32 | offset of each slot's row
+    private boolean shared = false; // True while addresses is also held by a snapshot, which must not see changes
+
+    private final HashMap<String, Integer> codeOf = new HashMap<>();
+    private final ArrayList<String> values = new ArrayList<>(); // Distinct categorical values, indexed by code
+
+    private ArrayList<ByteBuffer> arenas = new ArrayList<>();
+    private int arenaIndex = -1; // Arena blocks are carved from, or -1 before the first
+    private int arenaPos = 0; // Allocation position in that arena
+    private long arenaBytes = 0; // Capacity of all arenas
+    private final long[] freeLists = new long[SIZE_CLASSES + 1]; // First free block of each size class, or NONE
+    private final HashMap<Integer, Long> largeFreeLists = new HashMap<>(); // Same for UNSIZED blocks, by block size
+    private long freeBytes = 0; // Bytes of the blocks on the free lists
+
+    // Blocks given up while snapshots were live, oldest first, with the number of the last snapshot taken before.
+    // A block is freed once every snapshot up to that number is gone.
+    private long[] pendingBlocks = new long[16];
+    private long[] pendingSnapshots = new long[16];
+    private int pendingStart = 0;
+    private int pendingEnd = 0;
+
+    // Snapshots which may still be read, by number. Snapshots are taken under the database's read lock, possibly by
+    // several threads at once, so they are registered under a lock of their own.
+    private long snapshotsTaken = 0;
+    private final TreeMap<Long, SnapshotReference> liveSnapshots = new TreeMap<>();
+    private final ReferenceQueue<Snapshot> collectedSnapshots = new ReferenceQueue<>();
+
+    OffHeapProfileStore(PatientProfDB database) {
+        this.database = database;
+        Arrays.fill(freeLists, NONE);
+    }
+
+    /**
+     * @return the bytes of direct memory held by the arenas
+     */
+    long getOffHeapBytes() {
+        return arenaBytes;
+    }
+
+    @Override
+    public int add(PatientProf profile) {
+        if (end == addresses.length) {
+            addresses = Arrays.copyOf(addresses, end * 2);
+            shared = false;
+        }
+        // Otherwise the slot is beyond the end of any snapshot, so it may be written even if addresses is shared
+
+        int slot = end++;
+        int[] codes = new int[CODED_COLUMNS];
+        String[] text = new String[TEXT_COLUMNS];
+        for (ProfileField field : FIELDS) {
+            if (field == ProfileField.CO_PAY)
+                continue;
+            if (field.isCategorical())
+                codes[COLUMN[field.ordinal()]] = code(field.get(profile));
+            else
+                text[COLUMN[field.ordinal()]] = field.get(profile);
+        }
+        addresses[slot] = writeRow(profile.getCoPay(), codes, text);
+        live.set(slot);
+        size++;
+        return slot;
+    }
+
+    @Override
+    public PatientProf get(int slot) {
+        return isLive(slot) ? new ProfileRowView(this, database, slot) : null;
+    }
+
+    @Override
+    public String get(int slot, ProfileField field) {
+        if (field == ProfileField.CO_PAY) return String.valueOf(getCoPay(slot));
+        int column = COLUMN[field.ordinal()];
+        return field.isCategorical() ? values.get(readCode(arenas, addresses[slot], column))
+                : readText(arenas, addresses[slot], column);
+    }
+
+    @Override
+    public float getCoPay(int slot) {
+        return readCoPay(arenas, addresses[slot]);
+    }
+
+    @Override
+    public boolean isLive(int slot) {
+        return live.get(slot);
+    }
+
+    @Override
+    public boolean contains(PatientProf profile) {
+        return profile instanceof ProfileRowView && ((ProfileRowView) profile).isCurrent(this) && live.get(profile.slot);
+    }
+
+    @Override
+    public void remove(int slot) {
+        // The row's block is kept until the next compaction, so views of it stay readable until then
+        live.clear(slot);
+        size--;
+    }
+
+    @Override
+    public int end() {
+        return end;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean wantsCompaction() {
+        int tombstones = end - size;
+        return tombstones >= MIN_TOMBSTONES_TO_COMPACT && tombstones > size;
+    }
+
+    @Override
+    public int[] compact() {
+        // Rows stay where they are; only the address table is squeezed, and the blocks of tombstones are given up
+        unshare();
+        int[] newSlots = new int[end];
+        int liveCount = 0;
+        for (int i = 0; i < end; i++) {
+            if (live.get(i)) {
+                addresses[liveCount] = addresses[i];
+                newSlots[i] = liveCount++;
+            } else {
+                release(addresses[i]);
+                newSlots[i] = -1;
+            }
+        }
+
+        live.clear();
+        live.set(0, liveCount);
+        end = liveCount;
+        generation++;
+
+        // Give memory back if the address table is now mostly empty
+        if (addresses.length > 4 * end && addresses.length > 16)
+            addresses = Arrays.copyOf(addresses, Math.max(16, end * 2));
+        return newSlots;
+    }
+
+    @Override
+    public void clear() {
+        // The arenas are freed once no snapshot refers to them, and as they are no longer written, snapshots may go
+        // on reading them meanwhile
+        end = size = 0;
+        generation++;
+        live.clear();
+        addresses = new long[16];
+        shared = false;
+        codeOf.clear();
+        values.clear();
+        arenas = new ArrayList<>();
+        arenaIndex = -1;
+        arenaPos = 0;
+        arenaBytes = freeBytes = 0;
+        Arrays.fill(freeLists, NONE);
+        largeFreeLists.clear();
+        pendingStart = pendingEnd = 0;
+        synchronized (liveSnapshots) {
+            liveSnapshots.clear();
+        }
+    }
+
+    @Override
+    public Frozen freeze() {
+        shared = true;
+        Snapshot snapshot = new Snapshot(addresses, (BitSet) live.clone(), new ArrayList<>(arenas),
+                values.toArray(new String[0]), end, size);
+        synchronized (liveSnapshots) {
+            long number = ++snapshotsTaken;
+            liveSnapshots.put(number, new SnapshotReference(snapshot, number, collectedSnapshots));
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String set(int slot, ProfileField field, String value) {
+        String oldValue = get(slot, field);
+        float coPay = getCoPay(slot);
+        int[] codes = readCodes(slot);
+        String[] text = readText(slot);
+        if (field.isCategorical())
+            codes[COLUMN[field.ordinal()]] = code(value);
+        else
+            text[COLUMN[field.ordinal()]] = value;
+        rewrite(slot, coPay, codes, text);
+        return oldValue;
+    }
+
+    @Override
+    public void setCoPay(int slot, float coPay) {
+        rewrite(slot, coPay, readCodes(slot), readText(slot));
+    }
+
+    @Override
+    public int generation() {
+        return generation;
+    }
+
+    /**
+     * Writes a changed row into a new block, giving up its old block. A snapshot may be reading the old block, so
+     * rows are never changed in place.
+     */
+    private void rewrite(int slot, float coPay, int[] codes, String[] text) {
+        unshare();
+        release(addresses[slot]);
+        addresses[slot] = writeRow(coPay, codes, text);
+    }
+
+    private int[] readCodes(int slot) {
+        int[] codes = new int[CODED_COLUMNS];
+        for (int c = 0; c < CODED_COLUMNS; c++)
+            codes[c] = readCode(arenas, addresses[slot], c);
+        return codes;
+    }
+
+    private String[] readText(int slot) {
+        String[] text = new String[TEXT_COLUMNS];
+        for (int c = 0; c < TEXT_COLUMNS; c++)
+            text[c] = readText(arenas, addresses[slot], c);
+        return text;
+    }
+
+    /**
+     * Copies the address table if a snapshot holds it, before it is changed in place.
+     */
+    private void unshare() {
+        if (!shared) return;
+        addresses = addresses.clone();
+        shared = false;
+    }
+
+    /**
+     * @return the code of a categorical value, assigning the next free code the first time the value is seen
+     */
+    private int code(String value) {
+        Integer code = codeOf.get(value);
+        if (code == null) {
+            code = values.size();
+            codeOf.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    /**
+     * Encodes a row into a newly allocated block.
+     * @return the block's address
+     */
+    private long writeRow(float coPay, int[] codes, String[] text) {
+        byte[][] encoded = new byte[TEXT_COLUMNS][];
+        int length = TEXT_OFFSET;
+        for (int c = 0; c < TEXT_COLUMNS; c++) {
+            encoded[c] = text[c].getBytes(StandardCharsets.UTF_8);
+            length += varintSize(encoded[c].length) + encoded[c].length;
+        }
+
+        long address = allocate(length);
+        ByteBuffer arena = arenas.get((int) (address >>> 32));
+        int pos = (int) address;
+        arena.putFloat(pos + CO_PAY_OFFSET, coPay);
+        for (int c = 0; c < CODED_COLUMNS; c++)
+            arena.putInt(pos + CODES_OFFSET + 4 * c, codes[c]);
+        pos += TEXT_OFFSET;
+        for (byte[] bytes : encoded) {
+            for (int n = bytes.length; ; n >>>= 7) { // Unsigned LEB128 length
+                if ((n & ~0x7F) == 0) {
+                    arena.put(pos++, (byte) n);
+                    break;
+                }
+                arena.put(pos++, (byte) ((n & 0x7F) | 0x80));
+            }
+            arena.put(pos, bytes);
+            pos += bytes.length;
+        }
+        return address;
+    }
+
+    /**
+     * Allocates a block for a row of the given length, from the free list of its size class (or of its block size,
+     * for rows too long for any size class) if it has a block, else from the end of the arena being carved, starting
+     * a new arena if that one is too full. Rows longer than an arena get an arena of their own.
+     * @return the address of the block, whose size class is already written
+     */
+    private long allocate(int length) {
+        reclaim();
+        int sizeClass = length <= SIZE_CLASSES * BLOCK_STEP ? (length + BLOCK_STEP - 1) / BLOCK_STEP : UNSIZED;
+        int blockSize = sizeClass == UNSIZED ? largeBlockSize(length) : sizeClass * BLOCK_STEP;
+        long address = sizeClass == UNSIZED ? largeFreeLists.getOrDefault(blockSize, NONE) : freeLists[sizeClass];
+        if (address != NONE) {
+            long next = arenas.get((int) (address >>> 32)).getLong((int) address + 1);
+            if (sizeClass != UNSIZED)
+                freeLists[sizeClass] = next;
+            else if (next == NONE)
+                largeFreeLists.remove(blockSize);
+            else
+                largeFreeLists.put(blockSize, next);
+            freeBytes -= blockSize;
+        } else if (blockSize > ARENA_SIZE) {
+            address = (long) addArena(blockSize) << 32;
+        } else {
+            if (arenaIndex < 0 || arenaPos + blockSize > ARENA_SIZE) {
+                arenaIndex = addArena(ARENA_SIZE);
+                arenaPos = 0;
+            }
+            address = (long) arenaIndex << 32 | arenaPos;
+            arenaPos += blockSize;
+        }
+        arenas.get((int) (address >>> 32)).put((int) address, (byte) sizeClass);
+        return address;
+    }
+
+    /**
+     * @return the size of the block of size class UNSIZED holding a row of the given length
+     */
+    private static int largeBlockSize(int length) {
+        return ((length - 1) / LARGE_STEP + 1) * LARGE_STEP;
+    }
+
+    /**
+     * @return the index of a new arena of the given capacity
+     */
+    private int addArena(int capacity) {
+        arenas.add(ByteBuffer.allocateDirect(capacity));
+        arenaBytes += capacity;
+        return arenas.size() - 1;
+    }
+
+    /**
+     * Gives up a block: frees it right away if no live snapshot was taken before now, else once all of those are
+     * gone.
+     */
+    private void release(long address) {
+        long lastSnapshot;
+        synchronized (liveSnapshots) {
+            pollCollectedSnapshots();
+            if (liveSnapshots.isEmpty()) {
+                free(address);
+                return;
+            }
+            lastSnapshot = snapshotsTaken;
+        }
+
+        if (pendingEnd == pendingBlocks.length) {
+            if (pendingStart > 0) {
+                System.arraycopy(pendingBlocks, pendingStart, pendingBlocks, 0, pendingEnd - pendingStart);
+                System.arraycopy(pendingSnapshots, pendingStart, pendingSnapshots, 0, pendingEnd - pendingStart);
+                pendingEnd -= pendingStart;
+                pendingStart = 0;
+            } else {
+                pendingBlocks = Arrays.copyOf(pendingBlocks, pendingEnd * 2);
+                pendingSnapshots = Arrays.copyOf(pendingSnapshots, pendingEnd * 2);
+            }
+        }
+        pendingBlocks[pendingEnd] = address;
+        pendingSnapshots[pendingEnd++] = lastSnapshot;
+    }
+
+    /**
+     * Frees the pending blocks which no live snapshot can read any more.
+     */
+    private void reclaim() {
+        if (pendingStart == pendingEnd) return;
+
+        long oldestSnapshot;
+        synchronized (liveSnapshots) {
+            pollCollectedSnapshots();
+            oldestSnapshot = liveSnapshots.isEmpty() ? Long.MAX_VALUE : liveSnapshots.firstKey();
+        }
+        while (pendingStart < pendingEnd && pendingSnapshots[pendingStart] < oldestSnapshot)
+            free(pendingBlocks[pendingStart++]);
+        if (pendingStart == pendingEnd)
+            pendingStart = pendingEnd = 0;
+    }
+
+    /**
+     * Forgets the snapshots which were garbage collected. Must be called holding the liveSnapshots lock.
+     */
+    private void pollCollectedSnapshots() {
+        for (Reference<? extends Snapshot> collected; (collected = collectedSnapshots.poll()) != null; )
+            liveSnapshots.remove(((SnapshotReference) collected).number);
+    }
+
+    /**
+     * Puts a block on the free list of its size class, or of its block size if it is UNSIZED (which the length of
+     * the row it holds tells).
+     */
+    private void free(long address) {
+        ByteBuffer arena = arenas.get((int) (address >>> 32));
+        int sizeClass = arena.get((int) address);
+        if (sizeClass == UNSIZED) {
+            int blockSize = largeBlockSize(rowLength(arena, (int) address));
+            arena.putLong((int) address + 1, largeFreeLists.getOrDefault(blockSize, NONE));
+            largeFreeLists.put(blockSize, address);
+            freeBytes += blockSize;
+            return;
+        }
+        arena.putLong((int) address + 1, freeLists[sizeClass]);
+        freeLists[sizeClass] = address;
+        freeBytes += sizeClass * BLOCK_STEP;
+    }
+
+    /**
+     * @return the length of the row at a position of an arena, as writeRow() computed it
+     */
+    private static int rowLength(ByteBuffer arena, int pos) {
+        int textPos = pos + TEXT_OFFSET;
+        for (int c = 0; c < TEXT_COLUMNS; c++) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = arena.get(textPos++);
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            textPos += length;
+        }
+        return textPos - pos;
+    }
+
+    private static float readCoPay(ArrayList<ByteBuffer> arenas, long address) {
+        return arenas.get((int) (address >>> 32)).getFloat((int) address + CO_PAY_OFFSET);
+    }
+
+    private static int readCode(ArrayList<ByteBuffer> arenas, long address, int column) {
+        return arenas.get((int) (address >>> 32)).getInt((int) address + CODES_OFFSET + 4 * column);
+    }
+
+    /**
+     * Decodes one free-text field of the row at an address.
+     */
+    private static String readText(ArrayList<ByteBuffer> arenas, long address, int column) {
+        ByteBuffer arena = arenas.get((int) (address >>> 32));
+        int pos = (int) address + TEXT_OFFSET;
+        for (int c = 0; ; c++) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = arena.get(pos++);
+                length |= (b & 0x7F) << shift;
+                if (b >= 0) break;
+            }
+            if (c == column) {
+                byte[] bytes = new byte[length];
+                arena.get(pos, bytes);
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            pos += length;
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("off-heap[%d rows, %d distinct values, %d arenas of %d bytes, %d bytes free, "
+                + "%d blocks awaiting snapshots]", end, values.size(), arenas.size(), arenaBytes, freeBytes,
+                pendingEnd - pendingStart);
+    }
+
+    /**
+     * The contents of the store when a snapshot was taken. Its rows stay where they are for as long as it is
+     * reachable, which its methods make sure of until they have read them.
+     */
+    private static final class Snapshot implements Frozen {
+        private final long[] addresses;
+        private final BitSet live;
+        private final ArrayList<ByteBuffer> arenas;
+        private final String[] values;
+        private final int end;
+        private final int size;
+
+        Snapshot(long[] addresses, BitSet live, ArrayList<ByteBuffer> arenas, String[] values, int end, int size) {
+            this.addresses = addresses;
+            this.live = live;
+            this.arenas = arenas;
+            this.values = values;
+            this.end = end;
+            this.size = size;
+        }
+
+        @Override
+        public boolean isLive(int slot) {
+            return live.get(slot);
+        }
+
+        @Override
+        public PatientProf get(int slot) {
+            if (!live.get(slot)) return null;
+
+            String[] row = new String[FIELDS.length];
+            for (ProfileField field : FIELDS)
+                if (field != ProfileField.CO_PAY)
+                    row[field.ordinal()] = get(slot, field);
+            return new PatientProf(row[0], row[1], row[2], row[3], row[4], getCoPay(slot), row[6], row[7],
+                    new MedCond(row[8], row[9], row[10], row[11]));
+        }
+
+        @Override
+        public String get(int slot, ProfileField field) {
+            try {
+                if (field == ProfileField.CO_PAY) return String.valueOf(readCoPay(arenas, addresses[slot]));
+                int column = COLUMN[field.ordinal()];
+                return field.isCategorical() ? values[readCode(arenas, addresses[slot], column)]
+                        : readText(arenas, addresses[slot], column);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        @Override
+        public float getCoPay(int slot) {
+            try {
+                return readCoPay(arenas, addresses[slot]);
+            } finally {
+                Reference.reachabilityFence(this);
+            }
+        }
+
+        @Override
+        public int end() {
+            return end;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Tells the store when a snapshot was garbage collected, so that the blocks it could read may be reused.
+     */
+    private static final class SnapshotReference extends WeakReference<Snapshot> {
+        private final long number;
+
+        SnapshotReference(Snapshot snapshot, long number, ReferenceQueue<Snapshot> queue) {
+            super(snapshot, queue);
+            this.number = number;
+        }
+    }
+
+}
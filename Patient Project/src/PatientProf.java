@@ -1,6 +1,6 @@
 import com.med.MedCond;
 
-public class PatientProf  {
+public class PatientProf implements MedCond.Owner {
 
     String adminID;
     String firstName;
@@ -12,6 +12,9 @@ public class PatientProf  {
     String patientType;
     MedCond medCondInfo;
 
+    PatientProfDB database; // Database this profile is indexed in, or null if it has not been inserted anywhere.
+    int slot = -1; // Slot of this profile in the database's store, or -1 if not inserted.
+
     PatientProf(String adminID,String firstName,String lastName,String address, String phone,
                 float coPay, String insuType,String patientType,MedCond medCondInfo){
 
@@ -24,6 +27,7 @@ public class PatientProf  {
         this.insuType=insuType;
         this.patientType=patientType;
         this.medCondInfo=medCondInfo;
+        medCondInfo.setOwner(this);
 
     }
 
@@ -55,31 +59,63 @@ public class PatientProf  {
         return this.medCondInfo;
     }
 
+    // Updates go through the database, which makes the change and re-indexes the profile under its write lock, so
+    // that readers never see a new value while the indexes still hold the old one. Profiles not in a database are
+    // changed directly.
     public void updateFirstName(String firstName){
-        this.firstName=firstName;
+        update(()->this.firstName=firstName,ProfileField.FIRST_NAME);
     }
     public void updateLastName(String lastName){
-        this.lastName=lastName;
+        update(()->this.lastName=lastName,ProfileField.LAST_NAME);
     }
     public void updateAddress(String address){
-        this.address=address;
+        update(()->this.address=address,ProfileField.ADDRESS);
     }
     public void updatePhone(String phone){
-        this.phone=phone;
+        update(()->this.phone=phone,ProfileField.PHONE);
     }
     public void updateCoPay(float coPay){
-        this.coPay=coPay;
+        update(()->this.coPay=coPay,ProfileField.CO_PAY);
     }
     public void updatePatientType(String patientType){
-        this.patientType=patientType;
+        update(()->this.patientType=database!=null ? database.intern(patientType) : patientType,
+                ProfileField.PATIENT_TYPE);
     }
 
+    // The four fields of the new MedCond are re-indexed and journaled together, as one change.
     public void updateMedCondInfo(MedCond medCondInfo){
-        this.medCondInfo=medCondInfo;
-
+        update(()->{
+            this.medCondInfo.setOwner(null);
+            this.medCondInfo=medCondInfo;
+            medCondInfo.setOwner(this);
+        },ProfileField.MD_CONTACT,ProfileField.MD_PHONE,ProfileField.ALG_TYPE,ProfileField.ILL_TYPE);
     }
     public void updateInsuType(String insuType){
-        this.insuType=insuType;
+        update(()->this.insuType=database!=null ? database.intern(insuType) : insuType,ProfileField.INSU_TYPE);
+    }
+
+    @Override
+    public void updateMedCond(MedCond medCond,int field,Runnable change){
+        update(change,ProfileField.ofMedCond(field));
+    }
+
+    private void update(Runnable change,ProfileField... fields){
+        PatientProfDB db=database;
+        if(db!=null) db.updateProfile(this,change,fields);
+        else change.run();
+    }
+
+    // A copy of this profile which is not in any database, with a MedCond of its own.
+    synchronized PatientProf detachedCopy(){
+        MedCond medCond=getMedCondInfo();
+        return new PatientProf(getAdminID(),getFirstName(),getLastName(),getAddress(),getPhone(),getCoPay(),
+                getInsuType(),getPatientType(),new MedCond(medCond.getMdContact(),medCond.getMdPhone(),
+                medCond.getAlgType(),medCond.getIllType()));
+    }
+
+    @Override
+    public String intern(int field,String value){
+        return database!=null ? database.intern(value) : value;
     }
 
 
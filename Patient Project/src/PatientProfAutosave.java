@@ -0,0 +1,160 @@
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Rewrites the file of a PatientProfDB in the background once its journal has grown past the point where
+ * PatientProfDB.close() would (see PatientProfDB.wantsCheckpoint()), so that the journal stays short and closing the
+ * database has little left to do. Changes are coalesced: the journal is checked once changes pause for quietMillis,
+ * or at the latest maxDelayMillis after the first unsaved change, on a daemon thread of its own. The write is a
+ * checkpoint (see PatientProfDB.writeAllPatientProf()), which writes a consistent snapshot of the profiles while
+ * lookups and changes carry on; changes made meanwhile go to a new journal, and schedule the next check.
+ * <p>
+ * Changes are journaled as they happen, so none is lost if the process exits before they are saved: a save cut
+ * short leaves the previous file and the journal intact. This is what lets shutdown() give up after a time limit.
+ */
+public final class PatientProfAutosave {
+
+    private final PatientProfDB database;
+    private final long quietNanos;
+    private final long maxDelayNanos;
+    private final Runnable listener = this::changed;
+    private final ScheduledExecutorService saver;
+
+    // Guarded by this
+    private ScheduledFuture<?> pendingSave; // Next save, or null if none is scheduled
+    private long saveNumber = 0; // Number of the latest scheduled save; earlier ones were superseded
+    private long firstChangeTime; // System.nanoTime() of the first change pendingSave is for
+    private boolean shutDown = false;
+    private long saves = 0;
+    private long failures = 0;
+
+    /**
+     * Creates an autosave which does nothing until start() is called.
+     * @param database Database to save
+     * @param quietMillis Time without changes after which to save
+     * @param maxDelayMillis Longest time to put off saving a change while changes go on
+     */
+    public PatientProfAutosave(PatientProfDB database, long quietMillis, long maxDelayMillis) {
+        if (quietMillis < 0 || maxDelayMillis < quietMillis)
+            throw new IllegalArgumentException(String.format(
+                    "Need 0 <= quietMillis <= maxDelayMillis: %d, %d", quietMillis, maxDelayMillis));
+        this.database = database;
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PatientProfDB autosave");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts saving the database's changes, including any already made.
+     */
+    public void start() {
+        database.addChangeListener(listener);
+        if (database.isDirty())
+            changed();
+    }
+
+    /**
+     * Called on every change of the database, under its write lock: (re)schedules the save.
+     */
+    private synchronized void changed() {
+        if (shutDown) return;
+
+        long now = System.nanoTime();
+        if (pendingSave == null)
+            firstChangeTime = now;
+        else
+            pendingSave.cancel(false); // If it already started, the save scheduled here follows it
+        schedule(Math.max(0, Math.min(quietNanos, firstChangeTime + maxDelayNanos - now)));
+    }
+
+    private synchronized void schedule(long delayNanos) {
+        long number = ++saveNumber;
+        pendingSave = saver.schedule(() -> save(number), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Writes the database file if the journal has grown enough to be worth folding into it. Runs on the autosave
+     * thread.
+     * @param number Number the save was scheduled with
+     */
+    private void save(long number) {
+        synchronized (this) {
+            if (number != saveNumber) return; // Superseded by a save scheduled after this one had started
+            pendingSave = null; // Changes from now on schedule another save
+        }
+        if (!database.isDirty() || !database.wantsCheckpoint()) return;
+
+        boolean saved = database.checkpoint();
+        synchronized (this) {
+            if (saved) {
+                saves++;
+            } else {
+                failures++;
+                // Try again later, unless a change already scheduled a save
+                if (pendingSave == null && !shutDown) {
+                    firstChangeTime = System.nanoTime();
+                    schedule(maxDelayNanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of times the database file was written
+     */
+    public synchronized long getSaves() {
+        return saves;
+    }
+
+    /**
+     * @return the number of writes of the database file which failed (and were retried)
+     */
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Stops autosaving, then closes the database (which checkpoints if its journal has grown enough), waiting at
+     * most the given time. If that isn't long enough, the close goes on in the background, and the caller may exit
+     * regardless: the changes are in the journal. Progress can be followed meanwhile with
+     * PatientProfDB.getSaveProgress().
+     * @param timeout Longest time to wait
+     * @param unit Unit of timeout
+     * @return true if the database was saved and closed in time
+     * @throws InterruptedException if the calling thread was interrupted while waiting
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        synchronized (this) {
+            shutDown = true;
+            if (pendingSave != null) {
+                pendingSave.cancel(false);
+                pendingSave = null;
+            }
+        }
+        database.removeChangeListener(listener);
+
+        // Queued behind any save already under way, rather than racing it
+        Future<?> close = saver.submit(database::close);
+        saver.shutdown();
+        try {
+            close.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            System.out.println("Error saving the database on shutdown");
+            e.getCause().printStackTrace();
+            return false;
+        }
+    }
+
+}
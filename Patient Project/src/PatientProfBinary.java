@@ -0,0 +1,269 @@
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import com.med.MedCond;
+
+/**
+ * Compact binary database file format. All numbers are big-endian; "varint" is an unsigned LEB128 integer.
+ * <pre>
+ * header:     magic "PPDB" | int version | int rowCount | varint dictionarySize | dictionarySize strings
+ * each row:   the twelve fields in database file order, where
+ *             categorical fields (ProfileField.isCategorical()) are a varint index into the dictionary,
+ *             CO_PAY is a 4-byte IEEE float, and
+ *             all other fields are strings
+ * string:     varint byteLength | UTF-8 bytes
+ * </pre>
+ * Unlike the tab-separated format, values may contain any character. Files are read sequentially through a buffer,
+ * so may be of any size.
+ */
+public final class PatientProfBinary {
+
+    static final byte[] MAGIC = {'P', 'P', 'D', 'B'};
+    static final int VERSION = 1;
+
+    private static final ProfileField[] FIELDS = ProfileField.values();
+
+    private PatientProfBinary() {
+    }
+
+    /**
+     * @param fileName file to check
+     * @return true if the file exists and starts with the binary format's magic number
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static boolean isBinary(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        if (!Files.exists(path)) return false;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0);
+            return !magic.hasRemaining() && ByteBuffer.wrap(MAGIC).equals(magic.flip());
+        }
+    }
+
+    /**
+     * Writes profiles in the binary format.
+     * @param out stream to write to
+     * @param profiles profiles to write, in order
+     * @param count number of profiles in profiles
+     * @throws IOException if writing fails
+     */
+    public static void write(OutputStream out, Iterable<PatientProf> profiles, int count) throws IOException {
+        // First pass: number every distinct categorical value
+        HashMap<String, Integer> codes = new HashMap<>();
+        ArrayList<String> dictionary = new ArrayList<>();
+        for (PatientProf profile : profiles)
+            for (ProfileField field : FIELDS)
+                if (field.isCategorical() && codes.putIfAbsent(field.get(profile), dictionary.size()) == null)
+                    dictionary.add(field.get(profile));
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.write(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(count);
+        writeVarint(data, dictionary.size());
+        for (String value : dictionary)
+            writeString(data, value);
+
+        // Second pass: the rows
+        int written = 0;
+        for (PatientProf profile : profiles) {
+            for (ProfileField field : FIELDS) {
+                if (field == ProfileField.CO_PAY)
+                    data.writeFloat(profile.getCoPay());
+                else if (field.isCategorical())
+                    writeVarint(data, codes.get(field.get(profile)));
+                else
+                    writeString(data, field.get(profile));
+            }
+            written++;
+        }
+        if (written != count)
+            throw new IOException(String.format("Expected %d profiles but got %d", count, written));
+        data.flush();
+    }
+
+    /**
+     * Loads every profile in a binary database file.
+     * @param fileName file to load
+     * @param dictionary dictionary to intern the values of the file's string dictionary with
+     * @return loaded profiles in file order
+     * @throws IOException if the file cannot be read, or is not a supported version of the binary format
+     */
+    public static ArrayList<PatientProf> read(String fileName, StringDictionary dictionary) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            try {
+                Decoder decoder = new Decoder(channel);
+                byte[] magic = new byte[MAGIC.length];
+                decoder.readBytes(magic);
+                if (!ByteBuffer.wrap(magic).equals(ByteBuffer.wrap(MAGIC)))
+                    throw new IOException("Not a binary database file: " + fileName);
+                int version = decoder.readInt();
+                if (version != VERSION)
+                    throw new IOException("Unsupported binary database version " + version + ": " + fileName);
+
+                int count = decoder.readInt();
+                int dictionarySize = decoder.readVarint();
+                if (count < 0 || dictionarySize < 0 || dictionarySize > decoder.remaining()
+                        || count > decoder.remaining() / (Float.BYTES + FIELDS.length - 1)) // Smallest possible row
+                    throw new IOException("Corrupt binary database header: " + fileName);
+                String[] values = new String[dictionarySize];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = dictionary.intern(decoder.readString());
+                long[] uses = new long[dictionarySize]; // Every use but the first shares the interned String
+
+                ArrayList<PatientProf> profiles = new ArrayList<>(count);
+                String[] row = new String[FIELDS.length];
+                for (int i = 0; i < count; i++) {
+                    float coPay = 0;
+                    for (ProfileField field : FIELDS) {
+                        if (field == ProfileField.CO_PAY) {
+                            coPay = decoder.readFloat();
+                        } else if (field.isCategorical()) {
+                            int code = decoder.readVarint();
+                            row[field.ordinal()] = values[code];
+                            uses[code]++;
+                        } else {
+                            row[field.ordinal()] = decoder.readString();
+                        }
+                    }
+                    profiles.add(new PatientProf(row[0], row[1], row[2], row[3], row[4], coPay,
+                            row[6], row[7], new MedCond(row[8], row[9], row[10], row[11])));
+                }
+
+                for (int code = 0; code < values.length; code++)
+                    if (uses[code] > 1)
+                        dictionary.recordDuplicates(values[code], uses[code] - 1);
+                return profiles;
+            } catch (RuntimeException e) { // BufferUnderflowException, bad dictionary index...
+                throw new IOException("Corrupt binary database file: " + fileName, e);
+            }
+        }
+    }
+
+    /**
+     * Decodes numbers and strings from a file read front to back through a buffer, which is refilled whenever the
+     * next value may not be wholly in it, and grown for a string longer than it. A value cut short by the end of the
+     * file throws BufferUnderflowException.
+     */
+    private static final class Decoder {
+        private final FileChannel channel;
+        private ByteBuffer buf = ByteBuffer.allocate(1 << 20).flip();
+
+        Decoder(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Buffers at least the next n bytes of the file, or as many as it has left.
+         */
+        private void fill(int n) throws IOException {
+            if (buf.remaining() >= n) return;
+            if (buf.capacity() < n)
+                buf = ByteBuffer.allocate(Math.max(n, buf.capacity() * 2)).put(buf);
+            else
+                buf.compact();
+            int read = 0;
+            while (buf.position() < n && read >= 0)
+                read = channel.read(buf);
+            buf.flip();
+        }
+
+        /**
+         * @return the number of bytes of the file not yet decoded
+         */
+        long remaining() throws IOException {
+            return channel.size() - channel.position() + buf.remaining();
+        }
+
+        void readBytes(byte[] bytes) throws IOException {
+            fill(bytes.length);
+            buf.get(bytes);
+        }
+
+        int readInt() throws IOException {
+            fill(Integer.BYTES);
+            return buf.getInt();
+        }
+
+        float readFloat() throws IOException {
+            fill(Float.BYTES);
+            return buf.getFloat();
+        }
+
+        int readVarint() throws IOException {
+            fill(5); // The longest int
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buf.get();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) return value;
+            }
+        }
+
+        String readString() throws IOException {
+            int length = readVarint();
+            if (length < 0 || length > remaining())
+                throw new BufferUnderflowException();
+            fill(length);
+            String value = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+            buf.position(buf.position() + length);
+            return value;
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Converts database files between the tab-separated and binary formats.
+     * @param args args[0] is "tsv2bin" or "bin2tsv", args[1] the input file and args[2] the output file
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3 || !(args[0].equals("tsv2bin") || args[0].equals("bin2tsv"))) {
+            System.out.println("Usage: PatientProfBinary tsv2bin|bin2tsv <input file> <output file>");
+            return;
+        }
+
+        boolean toBinary = args[0].equals("tsv2bin");
+        StringDictionary dictionary = new StringDictionary();
+        ArrayList<PatientProf> profiles = toBinary
+                ? PatientProfLoader.loadMapped(args[1], dictionary) : read(args[1], dictionary);
+
+        long bytes = SnapshotWriter.write(Paths.get(args[2]), out -> {
+            if (toBinary) {
+                write(out, profiles, profiles.size());
+            } else {
+                BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                for (PatientProf profile : profiles) {
+                    PatientProfDB.writeProfile(bw, profile);
+                    bw.newLine();
+                }
+                bw.flush();
+            }
+        });
+        System.out.printf("Converted %d profiles: %s (%d bytes) -> %s (%d bytes)%n", profiles.size(),
+                args[1], Files.size(Paths.get(args[1])), args[2], bytes);
+    }
+
+}
@@ -1,22 +1,402 @@
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import com.med.MedCond;
 
+/**
+ * In-memory database of patient profiles backed by a file. Safe for use by several threads at once: lookups and
+ * walks share a read lock, while inserts, deletes, updates and reloads take the write lock. Each thread has its own
+ * sequential access cursors, and further independent cursors can be opened with openCursor().
+ * <p>
+ * initializeDatabaseInBackground() loads the file on a thread of its own, during which lookups see the profiles
+ * loaded so far, and changes (including writing the file and closing) wait for the load to finish.
+ * <p>
+ * isDirty() tells whether there are changes the database file doesn't hold yet, and change listeners are told of
+ * each change, so that the file can be rewritten in the background (see PatientProfAutosave).
+ */
 public class PatientProfDB {
 
     private final String DBFileName; // Hold onto the name of the file backing this database.
 
-    private PatientProf[] patientList = new PatientProf[5];
-    private int next_insert_i = 0; // Index at which next patient is added
-    private int next_access_i = 0; // Index at which next sequential access takes place
+    // Changes made since the database file was last written in full, replayed by initializeDatabase().
+    private final PatientProfJournal journal;
+    private boolean journalEnabled = true;
+    private boolean replaying = false; // True while the journal is being replayed, so replayed changes aren't re-logged
+
+    // Shared instances of the values of categorical fields (adminID, insurance type, patient type, allergy, illness).
+    private final StringDictionary dictionary = new StringDictionary();
+
+    /**
+     * Strategies used by initializeDatabase() to read the database file.
+     */
+    public enum LoadMode {
+        BUFFERED, // Read line by line through a BufferedReader
+        MAPPED, // Memory-map the file and parse fields directly from its bytes (see PatientProfLoader)
+        PARALLEL // Like MAPPED, but line-aligned chunks of the file are parsed concurrently
+    }
+
+    /**
+     * Formats of the database file.
+     */
+    public enum StorageFormat {
+        TEXT, // One tab-separated line per profile
+        BINARY // Compact binary format (see PatientProfBinary)
+    }
+
+    // Format of the database file, detected by initializeDatabase() and used by writeAllPatientProf()
+    private StorageFormat storageFormat = StorageFormat.TEXT;
+
+    // The system properties patientdb.loadMode and patientdb.loadThreads select the initial load mode and number of
+    // parsing threads, so the GUI can be switched without code.
+    private LoadMode loadMode = LoadMode.valueOf(System.getProperty("patientdb.loadMode", LoadMode.PARALLEL.name()));
+    private int loadThreads = Integer.getInteger("patientdb.loadThreads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * In-memory representations of the profiles, selected when the database is constructed.
+     */
+    public enum StorageBackend {
+        OBJECT, // The inserted PatientProf objects themselves (see ObjectProfileStore)
+        COLUMNAR, // Primitive arrays per field; profiles are copied in and read back as views (see ColumnarProfileStore)
+        LAZY, // Rows stay in the text database file and are decoded when first accessed (see LazyProfileStore)
+        OFF_HEAP // Encoded rows in direct memory outside the heap, read back as views (see OffHeapProfileStore)
+    }
+
+    // With the LAZY backend, the system property patientdb.cacheRows sets how many decoded rows are cached, and
+    // patientdb.persistRowIndex=false stops the row index of the database file from being saved next to it.
+    private final int cacheRows = Integer.getInteger("patientdb.cacheRows", 10000);
+    private boolean rowIndexPersisted = Boolean.parseBoolean(System.getProperty("patientdb.persistRowIndex", "true"));
+
+    // Profiles in insertion order, addressed by slot. Deleted profiles leave a tombstone behind until the store is
+    // compacted.
+    private final ProfileStore store;
+
+    // Maps each (adminID, lastName) pair to the slots carrying it.
+    private final KeyIndex keyIndex;
+
+    // Maps each adminID to the slots of that admin's profiles in insertion order.
+    private final AdminIndex adminIndex = new AdminIndex();
+
+    // Normalized last names in sorted order, for prefix and typo-tolerant search.
+    private final LastNameIndex lastNameIndex;
+
+    // Maps each allergy and illness type to the slots of the patients having it.
+    private final TermIndex medCondIndex = new TermIndex(ProfileField.ALG_TYPE, ProfileField.ILL_TYPE);
+
+    // Maps each insurance and patient type to a bitmap of the slots holding it.
+    private final BitmapIndex categoryIndex = new BitmapIndex(ProfileField.INSU_TYPE, ProfileField.PATIENT_TYPE);
+
+    // Maps each copay to the slots holding it in ascending order of copay, with copay totals per insurance type.
+    private final CoPayIndex coPayIndex = new CoPayIndex();
+
+    // Every index to keep up to date as profiles are inserted, deleted, updated and compacted.
+    private final ArrayList<ProfileIndex> indexes = new ArrayList<>();
+
+    // Indexes left empty by a LAZY open, which a background thread then builds (see buildIndexesInBackground()). The
+    // entries of slots below deferredBuilt are built, and kept up to date like those of the other indexes.
+    private final ArrayList<ProfileIndex> deferredIndexes = new ArrayList<>();
+    private int deferredBuilt = 0;
+    private volatile CompletableFuture<Void> deferredBuild; // Completed once they are built, or null if none are
+
+    // Rows the background build decodes at a time, without any lock, and then adds under the write lock
+    private static final int INDEX_BUILD_CHUNK = 4096;
+    // Times the build decodes a chunk again because of a change made meanwhile before decoding it under the lock
+    private static final int INDEX_BUILD_RETRIES = 3;
+
+    // Guards the store, the indexes and the cursors. Reads are far more frequent than changes, so they share.
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Held by writeAllPatientProf() and by loads, before the lock, so that they are made one after the other
+    private final Object saveLock = new Object();
+
+    // Counts, latencies and I/O volumes of the operations, measured while enabled
+    private final PatientProfMetrics metrics = new PatientProfMetrics(this);
+
+    // Background load started by initializeDatabaseInBackground(), which changes wait for, the thread running it,
+    // and the fraction of the database file it has loaded
+    private static final int LOAD_BATCH = 4096; // Profiles published at a time by a progressive load
+    private volatile CompletableFuture<Void> backgroundLoad;
+    private volatile Thread loader;
+    private volatile double loadProgress = 0;
+
+    // Number of changes made, written under the write lock, and its value when the profiles last matched the
+    // database file (once loaded or written in full). They differ while there are changes to save.
+    private volatile long changeCount = 0;
+    private volatile long savedChangeCount = 0;
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    private volatile double saveProgress = 1; // Fraction of the profiles written by the current or last write
+
+    // Open cursors, whose positions are remapped by compact(). Weakly held, so abandoned cursors cost nothing.
+    private final Set<Cursor> cursors = Collections.newSetFromMap(new WeakHashMap<>());
+
+    // Cursors behind findFirstProfile()/findNextProfile() and their per-admin variants, one set per thread
+    private final ThreadLocal<Cursor> threadCursor = ThreadLocal.withInitial(() -> openCursor(null));
+    private final ThreadLocal<HashMap<String, Cursor>> threadAdminCursors = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * Sequential access cursor over the profiles in the database, or over those of a single admin, in insertion
+     * order. A cursor keeps its place across inserts, deletes and compactions made through other cursors or
+     * threads. A single cursor must not be used by several threads at once.
+     * <p>
+     * next() wraps around to the first profile at the end, and the COLUMNAR and OFF_HEAP backends return a new view
+     * on every call, so a walk must stop when hasNext() returns false rather than when it meets its first profile
+     * again.
+     */
+    public final class Cursor {
+        private final String adminID; // Admin whose profiles are walked, or null to walk all profiles
+        private int next_access_i = 0; // Slot at which next sequential access takes place
+
+        private Cursor(String adminID) {
+            this.adminID = adminID;
+        }
+
+        /**
+         * Moves the cursor back to the first profile.
+         * @return the first profile, or null if there are none
+         */
+        public PatientProf first() {
+            lock.readLock().lock();
+            try {
+                next_access_i = 0;
+                return next();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return true if next() returns a profile after the last one returned, false if it would wrap around to the
+         * first profile (or there are none)
+         */
+        public boolean hasNext() {
+            lock.readLock().lock();
+            try {
+                return nextSlot(next_access_i) >= 0;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Advances the cursor. If the end was reached, returns the first profile.
+         * @return the next profile, or null if there are none
+         */
+        public PatientProf next() {
+            lock.readLock().lock();
+            try {
+                int slot = nextSlot(next_access_i);
+                if (slot < 0 && (slot = nextSlot(0)) < 0) return null; // Wrap around to the first profile
+                next_access_i = slot + 1;
+                return store.get(slot);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * @return the first live slot at or after from walked by this cursor, or -1 if there is none
+         */
+        private int nextSlot(int from) {
+            if (adminID != null)
+                return adminIndex.nextSlot(adminID, from);
+
+            // Skip over tombstones left by deleted profiles
+            while (from < store.end() && !store.isLive(from))
+                from++;
+            return from < store.end() ? from : -1;
+        }
+    }
 
     /**
      * Constructs a patient profile database.
      * @param db_filename File which backs the database (may exist or not at database creation)
      */
     PatientProfDB(String db_filename) {
+        this(db_filename, StorageBackend.valueOf(System.getProperty("patientdb.storage", StorageBackend.OBJECT.name())));
+    }
+
+    /**
+     * Constructs a patient profile database.
+     * @param db_filename File which backs the database (may exist or not at database creation)
+     * @param backend In-memory representation of the profiles
+     */
+    PatientProfDB(String db_filename, StorageBackend backend) {
         DBFileName = db_filename;
+        journal = new PatientProfJournal(db_filename + ".journal");
+        switch (backend) {
+            case COLUMNAR: store = new ColumnarProfileStore(this); break;
+            case LAZY: store = new LazyProfileStore(this, dictionary, cacheRows); break;
+            case OFF_HEAP: store = new OffHeapProfileStore(this); break;
+            default: store = new ObjectProfileStore(this);
+        }
+        keyIndex = new KeyIndex(store);
+        indexes.add(keyIndex);
+        indexes.add(adminIndex);
+        lastNameIndex = new LastNameIndex();
+        indexes.add(lastNameIndex);
+        indexes.add(medCondIndex);
+        indexes.add(categoryIndex);
+        indexes.add(coPayIndex);
+
+        // The system properties patientdb.metrics and patientdb.metrics.dumpSeconds turn on metrics and their
+        // periodic dump to standard output
+        if (Boolean.getBoolean("patientdb.metrics"))
+            setMetricsEnabled(true);
+        long dumpSeconds = Long.getLong("patientdb.metrics.dumpSeconds", 0);
+        if (dumpSeconds > 0)
+            metrics.startDump(dumpSeconds, System.out);
+    }
+
+    /**
+     * Enables or disables journaling of changes. While disabled, changes are only persisted by writeAllPatientProf().
+     * @param journalEnabled true to append every change to the journal as it happens
+     */
+    public void setJournalEnabled(boolean journalEnabled) {
+        this.journalEnabled = journalEnabled;
+    }
+
+    /**
+     * Starts or stops measuring the operations of this database. Enabling also registers the metrics as JMX MBeans
+     * named com.med:type=PatientProfDB,file=(database file). While disabled, measuring costs next to nothing.
+     * @param metricsEnabled true to measure operations from now on
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        metrics.setEnabled(metricsEnabled);
+        if (metricsEnabled)
+            metrics.registerMBeans(DBFileName);
+    }
+
+    /**
+     * @return the operation metrics of this database
+     */
+    public PatientProfMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the size in bytes of the journal of changes not yet written to the database file
+     */
+    long journalLength() {
+        return journal.length();
+    }
+
+    /**
+     * Changes are durable once journaled, so the database file only needs rewriting once replaying the journal would
+     * come to dominate initializeDatabase(). This is the policy of close() and of PatientProfAutosave.
+     * @return true if the journal has grown to more than a quarter of the size of the database file
+     */
+    public boolean wantsCheckpoint() {
+        return journal.length() > new File(DBFileName).length() / 4;
+    }
+
+    /**
+     * @return true if changes should be appended to the journal right now
+     */
+    private boolean journaling() {
+        return journalEnabled && !replaying;
+    }
+
+    /**
+     * Selects how initializeDatabase() reads the database file.
+     * @param loadMode the load strategy to use from now on
+     */
+    public void setLoadMode(LoadMode loadMode) {
+        this.loadMode = loadMode;
+    }
+
+    /**
+     * Selects the format writeAllPatientProf() writes the database file in. initializeDatabase() resets this to the
+     * format of the file it loads.
+     * @param storageFormat the format to write from now on
+     */
+    public void setStorageFormat(StorageFormat storageFormat) {
+        this.storageFormat = storageFormat;
+    }
+
+    /**
+     * @return the format writeAllPatientProf() writes the database file in
+     */
+    public StorageFormat getStorageFormat() {
+        return storageFormat;
+    }
+
+    /**
+     * Sets the number of threads used to parse the database file in LoadMode.PARALLEL.
+     * @param loadThreads number of parsing threads (at least 1)
+     */
+    public void setLoadThreads(int loadThreads) {
+        if (loadThreads < 1)
+            throw new IllegalArgumentException("loadThreads must be at least 1: " + loadThreads);
+        this.loadThreads = loadThreads;
+    }
+
+    /**
+     * Selects whether a LAZY open saves the row index it builds as (database file).idx, from which the next open of
+     * the unchanged file reads it instead of scanning the file.
+     * @param rowIndexPersisted true to save row indexes
+     */
+    public void setRowIndexPersisted(boolean rowIndexPersisted) {
+        this.rowIndexPersisted = rowIndexPersisted;
+    }
+
+    /**
+     * @return with the LAZY backend, the number of profile lookups answered without reading the database file;
+     * otherwise 0
+     */
+    public long getRowCacheHits() {
+        return store instanceof LazyProfileStore ? ((LazyProfileStore) store).getHits() : 0;
+    }
+
+    /**
+     * @return with the LAZY backend, the number of profile lookups which read and decoded a row of the database
+     * file; otherwise 0
+     */
+    public long getRowCacheMisses() {
+        return store instanceof LazyProfileStore ? ((LazyProfileStore) store).getMisses() : 0;
+    }
+
+    /**
+     * @return with the OFF_HEAP backend, the bytes of direct memory holding the profiles; otherwise 0
+     */
+    public long getOffHeapBytes() {
+        return store instanceof OffHeapProfileStore ? ((OffHeapProfileStore) store).getOffHeapBytes() : 0;
+    }
+
+    /**
+     * Opens a cursor of the caller's own.
+     * @param adminID Admin ID of the creator of the profiles to walk, or null to walk all profiles
+     * @return a new cursor positioned before the first profile
+     */
+    public Cursor openCursor(String adminID) {
+        lock.writeLock().lock();
+        try {
+            Cursor cursor = new Cursor(adminID);
+            cursors.add(cursor);
+            return cursor;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the lock which must be held to read the store from outside this class
+     */
+    Lock readLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * @return the lock which must be held to change the store from outside this class
+     */
+    Lock writeLock() {
+        return lock.writeLock();
     }
 
     /**
@@ -24,12 +404,23 @@ public class PatientProfDB {
      * @param profile Profile to be inserted
      */
     public void insertNewProfile(PatientProf profile) {
-        // Expand patient array (in increments of 10 spaces) if it is almost full.
-        if (next_insert_i >= patientList.length - 1)
-            patientList = Arrays.copyOf(patientList, patientList.length + 10);
+        awaitLoad();
+        long startTime = metrics.start();
+        internCategoricalFields(profile);
 
-        // Add profile to array and increment next_insert_i
-        patientList[next_insert_i++] = profile;
+        lock.writeLock().lock();
+        try {
+            int slot = store.add(profile);
+            for (ProfileIndex index : indexes)
+                index.add(slot, profile);
+
+            if (journaling())
+                journal.logInsert(profile);
+            changed();
+        } finally {
+            lock.writeLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.INSERT, startTime);
+        }
     }
 
     /**
@@ -39,25 +430,86 @@ public class PatientProfDB {
      * @return true if succeeded, false if failed (patient profile not found).
      */
     public boolean deleteProfile(String adminID, String lastName) {
-        for (int i = 0; i < next_insert_i; i++) { // Stop looking once we reach the end of the array population
+        awaitLoad();
+        long startTime = metrics.start();
+        lock.writeLock().lock();
+        try {
+            int slot = keyIndex.find(adminID, lastName);
+            if (slot < 0) {
+                metrics.failed(PatientProfMetrics.Operation.DELETE);
+                return false;
+            }
 
-            // True if we found the patient profile
-            if (patientList[i].getAdminID().equals(adminID) && patientList[i].getLastName().equals(lastName)) {
+            // Leave a tombstone in the profile's slot rather than shifting everything after it
+            PatientProf profile = store.get(slot);
+            for (ProfileIndex index : indexes)
+                index.remove(slot, profile);
+            if (slot < deferredBuilt)
+                for (ProfileIndex index : deferredIndexes)
+                    index.remove(slot, profile);
+            store.remove(slot);
 
-                // Shift profiles to right of removed patient one space to the left
-                while (i < patientList.length - 1
-                        && !(patientList[i] == null && patientList[i+1] == null)) { // Stop swapping once we reach the end of the array population
-                    patientList[i] = patientList[i + 1];
+            if (journaling())
+                journal.logDelete(adminID, lastName);
+            changed();
 
-                    i++;
-                }
+            if (store.wantsCompaction())
+                compact();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.DELETE, startTime);
+        }
+    }
 
-                next_insert_i--;
-                return true;
-            }
+    /**
+     * Squeezes out the tombstones left by deleted profiles, preserving insertion order and the position of the
+     * sequential access cursors. Called automatically by deleteProfile(), but may be called at any time.
+     * With the COLUMNAR and OFF_HEAP backends, profiles obtained before compacting must be looked up again afterwards.
+     */
+    public void compact() {
+        awaitLoad();
+        long startTime = metrics.start();
+        lock.writeLock().lock();
+        try {
+            int[] newSlots = store.compact();
+            for (ProfileIndex index : indexes)
+                index.remap(newSlots);
+            for (ProfileIndex index : deferredIndexes)
+                index.remap(newSlots);
+            deferredBuilt = firstLiveFrom(newSlots, deferredBuilt);
 
+            // Each cursor now points at the first live profile at or after its old slot
+            for (Cursor cursor : cursors)
+                cursor.next_access_i = firstLiveFrom(newSlots, cursor.next_access_i);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.COMPACT, startTime);
+        }
+    }
+
+    /**
+     * @param newSlots Array returned by ProfileStore.compact()
+     * @param slot Slot before the compaction
+     * @return the new slot of the first live profile at or after the old slot, or the new end() if there is none
+     */
+    private int firstLiveFrom(int[] newSlots, int slot) {
+        for (int i = slot; i < newSlots.length; i++)
+            if (newSlots[i] >= 0)
+                return newSlots[i];
+        return store.end();
+    }
+
+    /**
+     * @return the number of profiles currently in the database
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return store.size();
+        } finally {
+            lock.readLock().unlock();
         }
-        return false;
     }
 
     /**
@@ -67,97 +519,1113 @@ public class PatientProfDB {
      * @return the patient profile or null if not found.
      */
     public PatientProf findProfile(String adminID, String lastName) {
-        for (int i = 0; i < next_insert_i; i++) { // Stop looking once we reach the end of the array population
-            if (patientList[i].getAdminID().equals(adminID) && patientList[i].getLastName().equals(lastName))
-                return patientList[i];
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            int slot = keyIndex.find(adminID, lastName);
+            return slot < 0 ? null : store.get(slot);
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.FIND, startTime);
+        }
+    }
+
+    /**
+     * Retrieve one of several patient profiles sharing an adminID and lastName, as the journal identifies them.
+     * @param adminID Admin ID of the creator of the profile
+     * @param lastName Last name of the patient represented by the profile
+     * @param earlier Number of profiles with the same adminID and lastName inserted before it and not deleted
+     * @return the profile, or null if not found
+     */
+    PatientProf findProfile(String adminID, String lastName, int earlier) {
+        lock.readLock().lock();
+        try {
+            int slot = keyIndex.find(adminID, lastName, earlier);
+            return slot < 0 ? null : store.get(slot);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieve the first profile created by the given admin, and reset the calling thread's sequential access cursor
+     * over that admin's profiles. Walking an admin's profiles costs time proportional to their number, not to the
+     * size of the database.
+     * @param adminID Admin ID of the creator of the profiles
+     * @return the admin's first profile in insertion order, or null if the admin has no profiles
+     */
+    public PatientProf findFirstProfile(String adminID) {
+        long startTime = metrics.start();
+        try {
+            return adminCursor(adminID).first();
+        } finally {
+            metrics.end(PatientProfMetrics.Operation.WALK, startTime);
+        }
+    }
+
+    /**
+     * Retrieve the next profile created by the given admin (after the calling thread's last call to
+     * findNextProfile(adminID) or findFirstProfile(adminID)). If the end of the admin's profiles was reached, returns
+     * their first profile. Each admin has an independent cursor, which does not interfere with findNextProfile().
+     * @param adminID Admin ID of the creator of the profiles
+     * @return the admin's next profile, or null if the admin has no profiles
+     */
+    public PatientProf findNextProfile(String adminID) {
+        long startTime = metrics.start();
+        try {
+            return adminCursor(adminID).next();
+        } finally {
+            metrics.end(PatientProfMetrics.Operation.WALK, startTime);
+        }
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profiles
+     * @return true if findNextProfile(adminID) returns a profile after the last one it returned, false if it would
+     * wrap around to the admin's first profile (or the admin has no profiles)
+     */
+    public boolean hasNextProfile(String adminID) {
+        return adminCursor(adminID).hasNext();
+    }
+
+    private Cursor adminCursor(String adminID) {
+        return threadAdminCursors.get().computeIfAbsent(adminID, this::openCursor);
+    }
+
+    /**
+     * Searches profiles by last name as it is being typed: first profiles whose last name starts with the query, then
+     * (if there are fewer than limit of those) profiles whose last name starts with the query with one typo
+     * corrected. Case, accents and punctuation are ignored.
+     * @param adminID Admin ID of the creator of the profiles, or null to search all profiles
+     * @param lastName Last name, or the beginning of one
+     * @param limit Maximum number of profiles to return
+     * @return the best matching profiles, best first
+     */
+    public List<PatientProf> searchLastName(String adminID, String lastName, int limit) {
+        buildDeferredIndexes();
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            if (!lastNameIndex.isSearchable()) {
+                // Merge the additions since the last search under the write lock, then downgrade to the read lock
+                lock.readLock().unlock();
+                lock.writeLock().lock();
+                try {
+                    lastNameIndex.merge();
+                    lock.readLock().lock();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            ArrayList<PatientProf> profiles = new ArrayList<>();
+            for (int slot : lastNameIndex.search(adminID, lastName, limit))
+                profiles.add(store.get(slot));
+            return profiles;
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.SEARCH_LAST_NAME, startTime);
+        }
+    }
+
+    /**
+     * Starts a query over the profiles in the database.
+     * @return a query matching every profile, to be narrowed down and run
+     */
+    public ProfileQuery query() {
+        return new ProfileQuery(this);
+    }
+
+    /**
+     * Captures the profiles currently in the database, for walks which must see each of them exactly once even
+     * while other changes are being made (unlike cursors, which see the database as it changes).
+     * @return a snapshot of all profiles in insertion order
+     */
+    public ProfileSnapshot snapshot() {
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            return new ProfileSnapshot(store.freeze(), null);
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.SNAPSHOT, startTime);
+        }
+    }
+
+    /**
+     * Captures the profiles currently created by the given admin.
+     * @param adminID Admin ID of the creator of the profiles
+     * @return a snapshot of the admin's profiles in insertion order
+     */
+    public ProfileSnapshot snapshot(String adminID) {
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            return new ProfileSnapshot(store.freeze(), adminIndex.slots(adminID));
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.SNAPSHOT, startTime);
+        }
+    }
+
+    /**
+     * Captures the profiles that may meet a query's conditions, looking them up through the indexes rather than
+     * walking every slot where possible: the admin index if adminID is given, the allergy and illness index and the
+     * insurance and patient type bitmaps for conditions on those fields, and the copay index for a copay range.
+     * Conditions on fields no index covers are left for the caller to test.
+     * @param adminID Admin ID of the creator of the profiles, or null for all profiles
+     * @param conditions Conditions on the values of fields, all of which the profiles must meet
+     * @param coPayRange Range the profiles' copay must lie in, or null for any copay
+     * @return a snapshot of the candidate profiles in insertion order
+     */
+    ProfileSnapshot snapshot(String adminID, List<ProfileQuery.ValueCondition> conditions,
+                             ProfileQuery.CoPayRange coPayRange) {
+        long startTime = metrics.start();
+        if (!conditions.isEmpty() || coPayRange != null)
+            buildDeferredIndexes();
+        lock.readLock().lock();
+        try {
+            int[] slots = indexedSlots(adminID, conditions, coPayRange);
+            List<SlotBitmap> bitmaps = indexedBitmaps(conditions);
+            if (!bitmaps.isEmpty()) {
+                SlotBitmap bitmap = bitmaps.get(0);
+                for (int i = 1; i < bitmaps.size(); i++)
+                    bitmap = bitmap.and(bitmaps.get(i));
+                slots = slots == null ? bitmap.toArray() : bitmap.retain(slots);
+            }
+            return new ProfileSnapshot(store.freeze(), slots);
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.SNAPSHOT, startTime);
+        }
+    }
+
+    /**
+     * Counts the profiles meeting a query's conditions from the indexes alone, without visiting any profile. Two
+     * conditions on insurance and patient type are counted straight from their bitmaps.
+     * @param adminID Admin ID of the creator of the profiles, or null for all profiles
+     * @param conditions Conditions on the values of fields, all of which the profiles must meet
+     * @param coPayRange Range the profiles' copay must lie in, or null for any copay
+     * @return the number of profiles meeting the conditions, or -1 if some condition is on a field no index covers
+     */
+    int count(String adminID, List<ProfileQuery.ValueCondition> conditions, ProfileQuery.CoPayRange coPayRange) {
+        long startTime = metrics.start();
+        if (!conditions.isEmpty() || coPayRange != null)
+            buildDeferredIndexes();
+        lock.readLock().lock();
+        try {
+            for (ProfileQuery.ValueCondition condition : conditions)
+                if (!medCondIndex.covers(condition.field) && !categoryIndex.covers(condition.field))
+                    return -1;
+
+            List<SlotBitmap> bitmaps = indexedBitmaps(conditions);
+            if (adminID == null && conditions.isEmpty() && coPayRange != null)
+                return coPayIndex.count(coPayRange.min, coPayRange.max);
+            int[] slots = indexedSlots(adminID, conditions, coPayRange);
+            if (bitmaps.isEmpty())
+                return slots == null ? store.size() : slots.length;
+
+            SlotBitmap bitmap = bitmaps.get(0);
+            for (int i = 1; i < bitmaps.size() - 1; i++)
+                bitmap = bitmap.and(bitmaps.get(i));
+            if (slots != null) {
+                if (bitmaps.size() > 1)
+                    bitmap = bitmap.and(bitmaps.get(bitmaps.size() - 1));
+                return bitmap.countIn(slots);
+            }
+            return bitmaps.size() == 1 ? bitmap.cardinality()
+                    : bitmap.andCardinality(bitmaps.get(bitmaps.size() - 1));
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.COUNT, startTime);
+        }
+    }
+
+    /**
+     * Waits for the background build of the indexes a LAZY open left empty, unless they were built already.
+     * Must be called without holding the lock.
+     * @throws IllegalStateException if the build failed
+     */
+    private void buildDeferredIndexes() {
+        CompletableFuture<Void> build = deferredBuild;
+        if (build == null) return;
+        try {
+            build.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Error building the indexes of " + DBFileName, e.getCause());
+        }
+    }
+
+    /**
+     * Builds the indexes a LAZY open left empty, from every profile in the store, on a thread of its own. Rows are
+     * decoded a chunk at a time from a snapshot, without any lock, then added under the write lock, unless the
+     * database changed meanwhile, in which case the chunk is decoded again (after INDEX_BUILD_RETRIES times, under
+     * the lock). Changes to the slots built so far update the deferred indexes too, so they are complete once the
+     * last chunk is added, at which point they join the others.
+     * @param build Future of the build, set as deferredBuild by the open; the build stops if that is replaced
+     */
+    private void buildIndexesInBackground(CompletableFuture<Void> build) {
+        Thread thread = new Thread(() -> {
+            try {
+                for (int retries = 0; ; ) {
+                    // Past the retries, hold the write lock from the snapshot on, so that nothing can change
+                    boolean locked = retries >= INDEX_BUILD_RETRIES;
+                    Lock snapshotLock = locked ? lock.writeLock() : lock.readLock();
+                    ProfileStore.Frozen profiles;
+                    long changes;
+                    snapshotLock.lock();
+                    try {
+                        if (deferredBuild != build) return; // Cleared or opened again meanwhile
+                        profiles = store.freeze();
+                        changes = changeCount;
+                    } finally {
+                        if (!locked) snapshotLock.unlock();
+                    }
+
+                    try {
+                        int from = deferredBuilt;
+                        int to = Math.min(from + INDEX_BUILD_CHUNK, profiles.end());
+                        PatientProf[] chunk = new PatientProf[to - from];
+                        for (int slot = from; slot < to; slot++)
+                            if (profiles.isLive(slot))
+                                chunk[slot - from] = profiles.get(slot);
+
+                        if (!locked) lock.writeLock().lock();
+                        if (deferredBuild != build) return;
+                        if (changeCount != changes || store.end() != profiles.end() || deferredBuilt != from) {
+                            retries++; // The snapshot may be out of date
+                            continue;
+                        }
+                        for (int slot = from; slot < to; slot++)
+                            if (chunk[slot - from] != null)
+                                for (ProfileIndex index : deferredIndexes)
+                                    index.add(slot, chunk[slot - from]);
+                        deferredBuilt = to;
+                        retries = 0;
+
+                        if (to == store.end()) {
+                            indexes.addAll(deferredIndexes);
+                            deferredIndexes.clear();
+                            deferredBuilt = 0;
+                            deferredBuild = null;
+                            build.complete(null);
+                            return;
+                        }
+                    } finally {
+                        if (lock.isWriteLockedByCurrentThread())
+                            lock.writeLock().unlock();
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.out.println("Error building the indexes of " + DBFileName);
+                e.printStackTrace();
+                build.completeExceptionally(e);
+            }
+        }, "PatientProfDB indexer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Intersects the slot lists of the admin (if given) and of the conditions on allergy and illness types, by
+     * filtering the shortest of them through the others, then narrows them down to the copay range. Must be called
+     * holding the lock.
+     * @return the slots in every list in ascending order, or null if there are no such lists
+     */
+    private int[] indexedSlots(String adminID, List<ProfileQuery.ValueCondition> conditions,
+                               ProfileQuery.CoPayRange coPayRange) {
+        ArrayList<ProfileQuery.ValueCondition> terms = new ArrayList<>();
+        for (ProfileQuery.ValueCondition condition : conditions)
+            if (medCondIndex.covers(condition.field))
+                terms.add(condition);
+        terms.sort(Comparator.comparingInt(condition -> medCondIndex.countAny(condition.field, condition.values)));
+
+        int[] slots = adminID == null ? null : adminIndex.slots(adminID);
+        for (ProfileQuery.ValueCondition condition : terms)
+            slots = slots == null ? medCondIndex.any(condition.field, condition.values)
+                    : medCondIndex.retainAny(condition.field, condition.values, slots);
+
+        if (coPayRange == null) return slots;
+        if (slots == null) return coPayIndex.slots(coPayRange.min, coPayRange.max);
+        int n = 0;
+        for (int slot : slots) {
+            float coPay = store.getCoPay(slot);
+            if (coPay >= coPayRange.min && coPay <= coPayRange.max)
+                slots[n++] = slot;
+        }
+        return Arrays.copyOf(slots, n);
+    }
+
+    /**
+     * Must be called holding the lock.
+     * @return the bitmaps of the conditions on insurance and patient types, smallest first
+     */
+    private List<SlotBitmap> indexedBitmaps(List<ProfileQuery.ValueCondition> conditions) {
+        ArrayList<SlotBitmap> bitmaps = new ArrayList<>();
+        for (ProfileQuery.ValueCondition condition : conditions)
+            if (categoryIndex.covers(condition.field))
+                bitmaps.add(categoryIndex.any(condition.field, condition.values));
+        bitmaps.sort(Comparator.comparingInt(SlotBitmap::cardinality));
+        return bitmaps;
+    }
+
+    /**
+     * @return statistics of the copays of all profiles, kept up to date as profiles change
+     */
+    public CoPayStats coPayStats() {
+        return coPayStats(Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param insuType Insurance type
+     * @return statistics of the copays of the profiles with that insurance type, kept up to date as profiles change
+     */
+    public CoPayStats coPayStats(String insuType) {
+        buildDeferredIndexes();
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            return coPayIndex.stats(insuType);
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.CO_PAY_STATS, startTime);
         }
+    }
 
-        return null;
+    /**
+     * @return statistics of the copays of each insurance type, in the order of the types' names
+     */
+    public Map<String, CoPayStats> coPayStatsByInsuType() {
+        buildDeferredIndexes();
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            return coPayIndex.statsByInsuType();
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.CO_PAY_STATS, startTime);
+        }
     }
 
     /**
-     * Retrieve the first profile in the database.
+     * @param min Lowest copay
+     * @param max Highest copay
+     * @return statistics of the copays of the profiles whose copay lies within [min, max], read from the copay index
+     * without visiting any profile
+     */
+    public CoPayStats coPayStats(float min, float max) {
+        buildDeferredIndexes();
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            return coPayIndex.stats(min, max);
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.CO_PAY_STATS, startTime);
+        }
+    }
+
+    /**
+     * @param adminID Admin ID of the creator of the profiles
+     * @return the number of profiles created by the given admin
+     */
+    public int countProfiles(String adminID) {
+        long startTime = metrics.start();
+        lock.readLock().lock();
+        try {
+            return adminIndex.count(adminID);
+        } finally {
+            lock.readLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.COUNT, startTime);
+        }
+    }
+
+    /**
+     * Called by the update methods of PatientProf (and of its MedCond) to share instances of categorical values.
+     * @param value New value of a categorical field
+     * @return the dictionary's shared instance equal to value
+     */
+    String intern(String value) {
+        return dictionary.intern(value);
+    }
+
+    /**
+     * Replaces the values of a profile's categorical fields with the dictionary's shared instances.
+     * Must be called before the profile is linked to this database, so the MedCond updates aren't journaled.
+     * @param profile Profile not yet inserted
+     */
+    private void internCategoricalFields(PatientProf profile) {
+        profile.adminID = dictionary.intern(profile.adminID);
+        profile.insuType = dictionary.intern(profile.insuType);
+        profile.patientType = dictionary.intern(profile.patientType);
+
+        MedCond mc = profile.getMedCondInfo();
+        mc.updateAlgType(dictionary.intern(mc.getAlgType()));
+        mc.updateIllType(dictionary.intern(mc.getIllType()));
+    }
+
+    /**
+     * @return the dictionary holding shared instances of categorical field values, with heap savings statistics
+     */
+    public StringDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Called by the update methods of PatientProf (and of its MedCond) to change fields of a profile: runs the change,
+     * then re-indexes the fields and journals them, all under the write lock, so that readers never see a new value
+     * in the profile while the indexes still hold the old one. If another thread deleted the profile in the
+     * meantime, only runs the change. A profile the LAZY backend evicted from its cache is no longer the stored one,
+     * so the change is made to it and then copied to the profile now stored for its row of the file.
+     * @param profile Profile to update
+     * @param change Sets the fields
+     * @param fields The fields the change sets
+     */
+    void updateProfile(PatientProf profile, Runnable change, ProfileField... fields) {
+        awaitLoad();
+        long startTime = metrics.start();
+        lock.writeLock().lock();
+        try {
+            if (profile.database == this && profile.slot < 0) { // Evicted by the LAZY backend
+                int slot = ((LazyProfileStore) store).rebind(profile);
+                if (slot < 0) {
+                    metrics.failed(PatientProfMetrics.Operation.UPDATE);
+                    throw new IllegalStateException("Profile was deleted from the database");
+                }
+                PatientProf stored = store.get(slot);
+                synchronized (profile) {
+                    change.run();
+                }
+                for (ProfileField field : fields)
+                    field.set(stored, field.get(profile));
+                return;
+            }
+            if (profile.database != this || !store.contains(profile)) {
+                synchronized (profile) {
+                    change.run(); // The profile is no longer in the database, so there is nothing to re-index
+                }
+                return;
+            }
+
+            String[] oldValues = new String[fields.length];
+            for (int i = 0; i < fields.length; i++)
+                oldValues[i] = fields[i].get(profile);
+            store.beforeUpdate(profile);
+            synchronized (profile) { // For readers copying the profile without the lock
+                change.run();
+            }
+            for (int i = 0; i < fields.length; i++)
+                applyUpdate(profile, fields[i], oldValues[i]);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.UPDATE, startTime);
+        }
+    }
+
+    /**
+     * Called by the update methods of a ProfileRowView after they changed a field of its row, holding the write
+     * lock. Re-indexes and journals the change, like updateProfile(). Ignored if another thread deleted the profile in
+     * the meantime.
+     * @param profile Profile which was updated
+     * @param field The field which changed
+     * @param oldValue Value of the field before the change
+     */
+    void profileUpdated(PatientProf profile, ProfileField field, String oldValue) {
+        awaitLoad();
+        long startTime = metrics.start();
+        lock.writeLock().lock();
+        try {
+            if (!store.contains(profile)) return;
+            applyUpdate(profile, field, oldValue);
+        } finally {
+            lock.writeLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.UPDATE, startTime);
+        }
+    }
+
+    /**
+     * Re-keys a live profile if its last name changed, re-indexes the changed field and journals the change. Must be
+     * called holding the write lock.
+     */
+    private void applyUpdate(PatientProf profile, ProfileField field, String oldValue) {
+        store.updated(profile);
+        for (ProfileIndex index : indexes)
+            index.update(profile.slot, profile, field, oldValue);
+        if (profile.slot < deferredBuilt)
+            for (ProfileIndex index : deferredIndexes)
+                index.update(profile.slot, profile, field, oldValue);
+
+        if (journaling()) {
+            String keyLastName = field == ProfileField.LAST_NAME ? oldValue : profile.getLastName();
+            journal.logUpdate(profile.getAdminID(), keyLastName,
+                    keyIndex.countEarlier(profile.slot, profile.getAdminID(), keyLastName), field, field.get(profile));
+        }
+        changed();
+    }
+
+    /**
+     * Retrieve the first profile in the database, and reset the calling thread's sequential access cursor.
      * @return the first profile, or null if the database is empty
      */
     public PatientProf findFirstProfile() {
-        if (next_insert_i == 0) return null;
-
-        next_access_i = 1;
-        return patientList[0];
+        long startTime = metrics.start();
+        try {
+            return threadCursor.get().first();
+        } finally {
+            metrics.end(PatientProfMetrics.Operation.WALK, startTime);
+        }
     }
 
     /**
-     * Retrieve the next profile in the database (after the last call to findNextProfile() or findFirstProfile()).
-     * If the end of the database was reached, returns the first profile.
+     * Retrieve the next profile in the database (after the calling thread's last call to findNextProfile() or
+     * findFirstProfile()). If the end of the database was reached, returns the first profile: use hasNextProfile()
+     * to tell, as the profile returned may be a new object each time (see Cursor).
      * @return the next profile, or null if the database is empty
      */
     public PatientProf findNextProfile() {
-        if (next_insert_i == 0) return null;
+        long startTime = metrics.start();
+        try {
+            return threadCursor.get().next();
+        } finally {
+            metrics.end(PatientProfMetrics.Operation.WALK, startTime);
+        }
+    }
+
+    /**
+     * @return true if findNextProfile() returns a profile after the last one it returned, false if it would wrap
+     * around to the first profile (or the database is empty)
+     */
+    public boolean hasNextProfile() {
+        return threadCursor.get().hasNext();
+    }
+
+    /**
+     * Counts a change and tells the change listeners. Called under the write lock.
+     */
+    private void changed() {
+        changeCount++;
+        for (Runnable listener : changeListeners)
+            listener.run();
+    }
 
-        // Return first profile if we've reached the end, otherwise the next (and increment next_access_i)
-        return (next_access_i >= next_insert_i) ? findFirstProfile() : patientList[next_access_i++];
+    /**
+     * Registers a listener to be called after every insert, delete and update (including those replayed from the
+     * journal). It runs on the thread making the change, which holds the write lock, so it must return quickly
+     * (e.g. by scheduling work for another thread) and must not access the database itself.
+     * @param listener Listener to add
+     */
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(Objects.requireNonNull(listener));
+    }
+
+    /**
+     * @param listener Listener added by addChangeListener(), which is no longer called
+     */
+    public void removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+    }
+
+    /**
+     * @return true if profiles were inserted, deleted or updated since the database file was last loaded or written
+     * in full, i.e. if writeAllPatientProf() has changes to save
+     */
+    public boolean isDirty() {
+        return changeCount != savedChangeCount;
+    }
+
+    /**
+     * @return the fraction (from 0 to 1) of the profiles written by the current or last writeAllPatientProf()
+     */
+    public double getSaveProgress() {
+        return saveProgress;
+    }
+
+    /**
+     * Folds the journal into a new snapshot of the database file. Equivalent to writeAllPatientProf().
+     * @return true if succeeded, false if failed (the previous file and journal are left unchanged).
+     */
+    public boolean checkpoint() {
+        return writeAllPatientProf();
+    }
+
+    /**
+     * Flushes and closes the journal, checkpointing first if wantsCheckpoint().
+     */
+    public void close() {
+        awaitLoad();
+        long startTime = metrics.start();
+        if (wantsCheckpoint() && !checkpoint()) // Without the lock, which it takes itself after saveLock
+            metrics.failed(PatientProfMetrics.Operation.CLOSE); // The journal still holds the changes
+        lock.writeLock().lock();
+        try {
+            journal.close();
+            metrics.stopDump();
+            metrics.unregisterMBeans();
+        } finally {
+            lock.writeLock().unlock();
+            metrics.end(PatientProfMetrics.Operation.CLOSE, startTime);
+        }
     }
 
     /**
      * Writes all patient profile information to the file name specified at initialization
-     * (This erases any information prior stored in the file).
+     * (This erases any information prior stored in the file), then discards the journal whose changes it now holds.
+     * Profiles are streamed to a temporary file which then atomically replaces the database file, so a crash or
+     * error midway leaves the previous file (and journal) intact, and the journal records which of its changes the
+     * file holds (see PatientProfJournal), so that none is replayed twice after a crash. The profiles are written
+     * from a snapshot, so the lock is only held while taking it: other threads go on making changes while the file
+     * is written, which a new journal records. Writes made at once by several threads are made one after the other.
+     * Must be called without holding the lock.
+     * @return true if succeeded, false if failed (the previous file is left unchanged).
      */
-    public void writeAllPatientProf() {
-        String[] profiles = new String[next_insert_i];
+    public boolean writeAllPatientProf() {
+        awaitLoad();
+        long startTime = metrics.start();
+        try {
+            synchronized (saveLock) {
+                writeAll();
+            }
+            return true;
+        } catch (IOException e) {
+            metrics.failed(PatientProfMetrics.Operation.WRITE_ALL);
+            System.out.println("Error writing to file: " + DBFileName);
+            e.printStackTrace();
+            return false;
+        } finally {
+            saveProgress = 1;
+            metrics.end(PatientProfMetrics.Operation.WRITE_ALL, startTime);
+        }
+    }
 
-        for (int i = 0; i < profiles.length; i++) {
-            // Temp variables for patient profile
-            PatientProf p = patientList[i];
-            MedCond mc = p.getMedCondInfo();
-            // Join all fields into one String separated by tabs, store in profiles String array.
-            profiles[i] = String.join("\t", p.getAdminID(), p.getFirstName(), p.getLastName(), p.getAddress(),
-                    p.getPhone(), String.valueOf(p.getCoPay()), p.getInsuType(), p.getPatientType(), mc.getMdContact(),
-                    mc.getMdPhone(), mc.getAlgType(), mc.getIllType());
+    /**
+     * Does the work of writeAllPatientProf(). Must be called holding saveLock.
+     */
+    private void writeAll() throws IOException {
+        long changes;
+        File segment;
+        ProfileStore.Frozen snapshot;
+        StorageFormat format;
+        // The snapshot and the journaled changes it holds must match, so no change may be made in between
+        lock.writeLock().lock();
+        try {
+            changes = changeCount;
+            saveProgress = 0;
+            segment = journal.rotate();
+            snapshot = store.freeze();
+            format = storageFormat;
+        } finally {
+            lock.writeLock().unlock();
         }
 
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(DBFileName))) {
+        SnapshotWriter.write(Paths.get(DBFileName), out -> {
+            if (format == StorageFormat.BINARY) {
+                int[] pass = {0}; // The binary format makes two passes over the profiles
+                PatientProfBinary.write(out, () -> liveProfiles(snapshot, pass[0]++, 2), snapshot.size());
+                return;
+            }
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
 
-            // Write each profile followed by a newline.
-            for (String profile : profiles) {
-                bw.write(profile);
+            // Write each profile followed by a newline, straight from the snapshot (skipping tombstones).
+            Iterator<PatientProf> profiles = liveProfiles(snapshot, 0, 1);
+            while (profiles.hasNext()) {
+                writeProfile(bw, profiles.next());
                 bw.newLine();
             }
+            bw.flush();
+        }, (size, crc) -> PatientProfJournal.commit(segment, size, crc));
+
+        journal.discardSegments(segment);
+        savedChangeCount = changes;
+        metrics.written(new File(DBFileName).length(), snapshot.size());
+    }
+
+    /**
+     * @param profiles Snapshot of the store to write (which the LAZY backend decodes without caching every row)
+     * @param pass Number of the pass over the profiles the iterator is for, from 0
+     * @param passes Number of passes the write makes, over which saveProgress goes from 0 to 1
+     * @return an iterator over the profiles of the snapshot in insertion order, skipping tombstones
+     */
+    private Iterator<PatientProf> liveProfiles(ProfileStore.Frozen profiles, int pass, int passes) {
+        return new Iterator<>() {
+            private int i = nextLive(0);
+
+            private int nextLive(int from) {
+                while (from < profiles.end() && !profiles.isLive(from))
+                    from++;
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return i < profiles.end();
+            }
 
+            @Override
+            public PatientProf next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                PatientProf profile = profiles.get(i);
+                if ((i & 1023) == 0)
+                    saveProgress = (pass + (double) i / profiles.end()) / passes;
+                i = nextLive(i + 1);
+                return profile;
+            }
+        };
+    }
+
+    /**
+     * Writes all fields of a profile separated by tabs, without joining them into an intermediate String.
+     * @param out Writer to write to
+     * @param p Profile to write
+     * @throws IOException if writing fails, or a field contains a tab or line break the format can't represent
+     */
+    static void writeProfile(Writer out, PatientProf p) throws IOException {
+        MedCond mc = p.getMedCondInfo();
+        writeField(out, p.getAdminID()); out.write('\t');
+        writeField(out, p.getFirstName()); out.write('\t');
+        writeField(out, p.getLastName()); out.write('\t');
+        writeField(out, p.getAddress()); out.write('\t');
+        writeField(out, p.getPhone()); out.write('\t');
+        out.write(String.valueOf(p.getCoPay())); out.write('\t');
+        writeField(out, p.getInsuType()); out.write('\t');
+        writeField(out, p.getPatientType()); out.write('\t');
+        writeField(out, mc.getMdContact()); out.write('\t');
+        writeField(out, mc.getMdPhone()); out.write('\t');
+        writeField(out, mc.getAlgType()); out.write('\t');
+        writeField(out, mc.getIllType());
+    }
+
+    private static void writeField(Writer out, String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\t' || c == '\n' || c == '\r')
+                throw new IOException("Value can't be stored in the tab-separated format: \"" + value + "\"");
+        }
+        out.write(value);
+    }
+
+    /**
+     * Loads all patient profile information from the file name specified at initialization, then replays the
+     * journal of changes made since it was written (This erases the database instance in memory if it succeeds).
+     */
+    public void initializeDatabase() {
+        awaitLoad();
+        long metricsStartTime = metrics.start();
+        try {
+            synchronized (saveLock) { // Not while a save is writing the file
+                loadFile();
+            }
         } catch (IOException e) {
-            System.out.println("Error writing to file: " + DBFileName);
+            metrics.failed(PatientProfMetrics.Operation.INITIALIZE);
+            System.out.println("Error reading from file: " + DBFileName);
             e.printStackTrace();
+        } finally {
+            metrics.end(PatientProfMetrics.Operation.INITIALIZE, metricsStartTime);
         }
     }
 
     /**
-     * Loads all patient profile information from the file name specified at initialization
-     * (This erases the database instance in memory if it succeeds).
+     * Does the work of initializeDatabase() on a thread of its own, and returns at once. Unless there is a journal
+     * to replay (or the file is binary, or the backend LAZY, whose open is quick anyway, or the load mode BUFFERED),
+     * profiles are published in batches as chunks of the file are parsed, so that lookups find each profile as soon
+     * as it is indexed; otherwise they are published all at once at the end, so that lookups never see profiles the
+     * journal has since changed. Until the load finishes, getLoadProgress() tells how far it got and changes wait
+     * for it. If a load is already under way, just returns it.
+     * @return a future completed when the load finishes (at once if there is no file yet), exceptionally with the
+     * IOException if it fails (in which case the database is left empty)
      */
-    public void initializeDatabase() {
+    public synchronized CompletableFuture<Void> initializeDatabaseInBackground() {
+        if (isLoading()) return backgroundLoad;
+
+        CompletableFuture<Void> load = new CompletableFuture<>();
+        loadProgress = 0;
+        Thread thread = new Thread(() -> {
+            long metricsStartTime = metrics.start();
+            try {
+                synchronized (saveLock) { // Not while a save is writing the file
+                    boolean fileExists = new File(DBFileName).exists();
+                    if (!fileExists && !journal.hasRecords()) {
+                        lock.writeLock().lock();
+                        try {
+                            clearProfiles(); // A new database, whose file is written on the first checkpoint
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                    } else if (fileExists && !journal.hasRecords() && !PatientProfBinary.isBinary(DBFileName)
+                            && !(store instanceof LazyProfileStore) && loadMode != LoadMode.BUFFERED) {
+                        loadProgressively();
+                    } else {
+                        loadFile();
+                    }
+                }
+                loadProgress = 1;
+                load.complete(null);
+            } catch (IOException | RuntimeException e) {
+                metrics.failed(PatientProfMetrics.Operation.INITIALIZE);
+                System.out.println("Error reading from file: " + DBFileName);
+                e.printStackTrace();
+                lock.writeLock().lock();
+                try {
+                    clearProfiles(); // Rather than leave part of the file loaded
+                } finally {
+                    lock.writeLock().unlock();
+                }
+                load.completeExceptionally(e);
+            } finally {
+                loader = null;
+                metrics.end(PatientProfMetrics.Operation.INITIALIZE, metricsStartTime);
+            }
+        }, "PatientProfDB loader");
+        thread.setDaemon(true);
+        loader = thread;
+        backgroundLoad = load;
+        thread.start();
+        return load;
+    }
+
+    /**
+     * @return true while a load started by initializeDatabaseInBackground() is under way
+     */
+    public boolean isLoading() {
+        CompletableFuture<Void> load = backgroundLoad;
+        return load != null && !load.isDone();
+    }
+
+    /**
+     * @return the fraction (from 0 to 1) of the database file read by the current or last background load
+     */
+    public double getLoadProgress() {
+        return loadProgress;
+    }
+
+    /**
+     * Waits for a background load to finish, unless called by the loading thread itself (e.g. replaying the
+     * journal) or under the write lock (which the load needs). Called by every change before it takes the write
+     * lock, so that changes apply to the whole database.
+     */
+    void awaitLoad() {
+        CompletableFuture<Void> load = backgroundLoad;
+        if (load == null || load.isDone() || Thread.currentThread() == loader || lock.isWriteLockedByCurrentThread())
+            return;
+        try {
+            load.join();
+        } catch (CompletionException | CancellationException e) {
+            // Reported by the loading thread, which left the database empty
+        }
+    }
+
+    /**
+     * Does the work of initializeDatabase().
+     * @throws IOException if the database file or journal cannot be read
+     */
+    private void loadFile() throws IOException {
+        long startTime = System.nanoTime();
+        dictionary.clear();
+
+        StorageFormat format = PatientProfBinary.isBinary(DBFileName) ? StorageFormat.BINARY : StorageFormat.TEXT;
+        ArrayList<PatientProf> profiles = null;
+        FileChannel channel = null;
+        ProfileRowIndex rows = null; // Set instead of profiles when the rows are left in the file
+        if (!new File(DBFileName).exists() && journal.hasRecords())
+            profiles = new ArrayList<>(); // Nothing was written in full yet; everything is in the journal
+        else if (format == StorageFormat.BINARY)
+            profiles = PatientProfBinary.read(DBFileName, dictionary);
+        else if (store instanceof LazyProfileStore) {
+            channel = FileChannel.open(Paths.get(DBFileName), StandardOpenOption.READ);
+            try {
+                rows = ProfileRowIndex.open(DBFileName, channel, dictionary, rowIndexPersisted);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        else switch (loadMode) {
+            case MAPPED: profiles = PatientProfLoader.loadMapped(DBFileName, dictionary); break;
+            case PARALLEL: profiles = PatientProfLoader.loadParallel(DBFileName, loadThreads, dictionary); break;
+            default: profiles = readProfiles();
+        }
+        int loaded = rows != null ? rows.size() : profiles.size();
+        CompletableFuture<Void> indexBuild = null;
+        lock.writeLock().lock();
+        try {
+            if (rows != null)
+                indexBuild = openRows(channel, rows);
+            else
+                replaceProfiles(profiles);
+            storageFormat = format;
+
+            if (journal.hasRecords()) {
+                replaying = true;
+                try {
+                    System.out.printf("Replayed %d journaled changes%n", journal.replay(this, new File(DBFileName)));
+                } finally {
+                    replaying = false;
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (indexBuild != null)
+            buildIndexesInBackground(indexBuild); // Once the journal is replayed, so the rows are final
+
+        long bytes = rows != null ? rows.bytesRead() : new File(DBFileName).length();
+        String how = rows != null ? StorageBackend.LAZY.name() : storageFormat == StorageFormat.BINARY
+                ? storageFormat.name() : loadMode == LoadMode.PARALLEL ? loadMode + ", " + loadThreads + " threads"
+                : loadMode.name();
+        reportLoad(rows != null ? "Indexed" : "Loaded", loaded, bytes, startTime, how);
+    }
+
+    /**
+     * Loads the text database file like initializeDatabase() does in the MAPPED and PARALLEL load modes, publishing
+     * the profiles of each chunk (see PatientProfLoader.loadParallel()) as soon as it is parsed, in batches of
+     * LOAD_BATCH profiles each stored and indexed under the write lock, so that lookups in between find the
+     * profiles loaded so far. Only used when there is no journal to replay.
+     * @throws IOException if the database file cannot be read
+     */
+    private void loadProgressively() throws IOException {
+        long startTime = System.nanoTime();
+        long length = new File(DBFileName).length();
+        dictionary.clear();
+        lock.writeLock().lock();
+        try {
+            clearProfiles();
+            storageFormat = StorageFormat.TEXT;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        int threads = loadMode == LoadMode.PARALLEL ? loadThreads : 1;
+        int[] loaded = {0};
+        PatientProfLoader.loadParallel(DBFileName, threads, dictionary, (profiles, parsedTo) -> {
+            for (int from = 0; from < profiles.size(); from += LOAD_BATCH) {
+                lock.writeLock().lock();
+                try {
+                    addProfiles(profiles.subList(from, Math.min(from + LOAD_BATCH, profiles.size())));
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            loaded[0] += profiles.size();
+            loadProgress = Math.min(1, parsedTo / (double) Math.max(1, length));
+        });
+        reportLoad("Loaded", loaded[0], length, startTime, "PROGRESSIVE, " + threads + " threads");
+    }
+
+    /**
+     * Records a load in the metrics, and prints its throughput and how much the dictionary saved.
+     */
+    private void reportLoad(String verb, int loaded, long bytes, long startTime, String how) {
+        double seconds = Math.max(System.nanoTime() - startTime, 1) / 1e9;
+        metrics.loaded(bytes, loaded);
+        double megabytes = bytes / (1024.0 * 1024.0);
+        System.out.printf("%s %d profiles (%.1f MB) from %s in %.3f s [%s]: %.0f rows/s, %.1f MB/s%n", verb, loaded,
+                megabytes, DBFileName, seconds, how, loaded / seconds, megabytes / seconds);
+        System.out.printf("Dictionary: %d distinct categorical values shared by %d duplicates, saving ~%.1f MB%n",
+                dictionary.size(), dictionary.getDuplicateCount(), dictionary.getBytesSaved() / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Reads all patient profiles from the database file line by line.
+     * @return loaded profiles in file order
+     * @throws IOException if the file cannot be read
+     */
+    private ArrayList<PatientProf> readProfiles() throws IOException {
         try (BufferedReader br = new BufferedReader(new FileReader(DBFileName))) {
             ArrayList<PatientProf> profiles = new ArrayList<>(); // Temporarily hold loaded profiles here
 
             String line;
-            while ((line = br.readLine()) != null && !line.isBlank()) {
-                String[] items = line.split("\t"); // Split each patient data item at the tab delimiters.
+            while ((line = br.readLine()) != null && !line.isBlank())
+                profiles.add(parseProfile(line, dictionary));
+            return profiles;
+        }
+    }
 
-                profiles.add(new PatientProf(items[0], items[1], items[2], items[3], items[4], Float.parseFloat(items[5]),
-                        items[6], items[7], new MedCond(items[8], items[9], items[10], items[11])));
-            }
+    /**
+     * Decodes one row of the text database file.
+     * @param line The row, without its line terminator
+     * @param dictionary Dictionary to intern the values of categorical fields in
+     * @return a new profile holding the row's fields
+     */
+    static PatientProf parseProfile(String line, StringDictionary dictionary) {
+        String[] items = line.split("\t"); // Split each patient data item at the tab delimiters.
 
-            // Copy loaded profiles into database
-            patientList = profiles.toArray(new PatientProf[0]);
-            next_insert_i = profiles.size();
+        return new PatientProf(dictionary.intern(items[0]), items[1], items[2], items[3], items[4],
+                Float.parseFloat(items[5]), dictionary.intern(items[6]), dictionary.intern(items[7]),
+                new MedCond(items[8], items[9], dictionary.intern(items[10]), dictionary.intern(items[11])));
+    }
 
-        } catch (IOException e) {
-            System.out.println("Error reading from file: " + DBFileName);
-            e.printStackTrace();
+    /**
+     * Replaces the database instance in memory with the given profiles, rebuilding all indexes.
+     * @param profiles profiles to hold, in insertion order
+     */
+    private void replaceProfiles(ArrayList<PatientProf> profiles) {
+        clearProfiles();
+        addProfiles(profiles);
+    }
+
+    /**
+     * Copies loaded profiles into the database, indexing them.
+     * @param profiles profiles to add, in insertion order
+     */
+    private void addProfiles(List<PatientProf> profiles) {
+        for (PatientProf profile : profiles) {
+            int slot = store.add(profile);
+            for (ProfileIndex index : indexes)
+                index.add(slot, profile);
         }
     }
 
     /**
-     * Test suite which initializes, modifies such that it ends up in the initial state, then saves back to the file.
-     * Exercises all functionality of this class directly or indirectly.
+     * Replaces the database instance in memory with the rows of a text database file, left in the file. Only the
+     * indexes which findProfile() and the cursors need are built now, from the row index; the others are left for
+     * buildIndexesInBackground(), which lookups needing them wait for.
+     * @param channel Channel open on the file
+     * @param rows Row index of the file
+     * @return the future of the build of the other indexes, to be passed to buildIndexesInBackground()
+     */
+    private CompletableFuture<Void> openRows(FileChannel channel, ProfileRowIndex rows) {
+        clearProfiles();
+        for (ProfileIndex index : indexes)
+            if (index != keyIndex && index != adminIndex)
+                deferredIndexes.add(index);
+        indexes.removeAll(deferredIndexes);
+        CompletableFuture<Void> build = new CompletableFuture<>();
+        deferredBuild = build;
+
+        ((LazyProfileStore) store).open(channel, rows);
+        for (int slot = 0; slot < rows.size(); slot++) {
+            keyIndex.add(slot, rows.keyHash(slot));
+            adminIndex.add(slot, rows.adminID(slot));
+        }
+        return build;
+    }
+
+    /**
+     * Empties the store, all indexes (no longer deferring any) and rewinds all cursors.
+     */
+    private void clearProfiles() {
+        // Detach profiles of the previous database instance so their updates no longer touch the indexes
+        store.clear();
+        indexes.addAll(deferredIndexes);
+        deferredIndexes.clear();
+        deferredBuilt = 0;
+        if (deferredBuild != null) {
+            deferredBuild.complete(null); // Stops the build, and lets lookups waiting for it go on
+            deferredBuild = null;
+        }
+        for (ProfileIndex index : indexes)
+            index.clear();
+
+        for (Cursor cursor : cursors)
+            cursor.next_access_i = 0;
+
+        // Whatever is loaded next comes from the file, so isn't a change to save (unlike journaled changes replayed)
+        savedChangeCount = changeCount;
+    }
+
+    /**
+     * Test suite which initializes, modifies such that it ends up in the initial state, then saves back to the file
+     * and closes it, which leaves no journal behind. Exercises all functionality of this class directly or indirectly.
+     * The unit tests under test/ cover the journal, the storage backends and the searches in more depth.
      * @param args args[0] contains the database filename used for testing
      */
     public static void main(String[] args) {
@@ -172,7 +1640,8 @@ public class PatientProfDB {
                 new MedCond("CONTACT", "PHONE-5678", "ALLERGIES", "ILLNESSES")));
         db.printArrayDiag();
 
-        assert db.findProfile("Me", "Smith").getLastName().equals("Smith");
+        PatientProf inserted = db.findProfile("SomeAdmin", "LAST_NAME");
+        assert inserted != null && inserted.getFirstName().equals("FirstName");
 
         boolean success = db.deleteProfile("SomeAdmin", "LAST_NAME");
         assert success;
@@ -180,24 +1649,36 @@ public class PatientProfDB {
 
         PatientProf firstNext = db.findNextProfile();
         PatientProf first = db.findFirstProfile();
-        assert firstNext == first;
+        assert sameValues(firstNext, first);
 
-        int n = 1;
-        while (db.findNextProfile() != first)
-            n++;
-        assert n == db.next_insert_i;
+        int n = first == null ? 0 : 1; // An empty database has no first profile
+        for (; db.hasNextProfile(); n++)
+            db.findNextProfile();
+        assert n == db.size();
+        assert sameValues(db.findNextProfile(), first); // Wraps around
 
         PatientProf shouldStillBeFirst = db.findFirstProfile();
-        assert shouldStillBeFirst == first;
+        assert sameValues(shouldStillBeFirst, first);
 
         db.writeAllPatientProf();
+        db.close();
+    }
+
+    /**
+     * TESTING: Compare profiles by value, as the COLUMNAR and OFF_HEAP backends return a new view of a row each time
+     */
+    private static boolean sameValues(PatientProf a, PatientProf b) {
+        if (a == null || b == null) return a == b;
+        for (ProfileField field : ProfileField.values())
+            if (!field.get(a).equals(field.get(b))) return false;
+        return true;
     }
 
     /**
      * TESTING: Print next index and deep String representation of patient array
      */
     private void printArrayDiag() {
-        System.out.printf("Next index: %d, array: %s%n", next_insert_i, Arrays.deepToString(patientList));
+        System.out.printf("Next index: %d, size: %d, array: %s%n", store.end(), store.size(), store);
     }
 
 }
@@ -1,7 +1,18 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.plaf.DimensionUIResource;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import com.med.MedCond;
 
 /**
@@ -10,14 +21,19 @@ import com.med.MedCond;
 public class PatientProfGUI {
 
     private PatientProfDB database; // The underlying in-memory database.
+    private PatientProfAutosave autosave; // Writes the database file in the background as the journal grows
+
+    private static final long AUTOSAVE_QUIET_MILLIS = 2000; // Save once changes pause this long...
+    private static final long AUTOSAVE_MAX_DELAY_MILLIS = 30000; // ...or at the latest this long after the first one
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10; // Longest wait for the last save when exiting
+    private boolean shuttingDown = false;
 
     private String adminID = "0"; // The most recently entered AdminID.
 
     private final JFrame mainMenu = new JFrame() { // Contains main menu.
         @Override
-        public void dispose() { // Writes database to file and exits.
-            database.writeAllPatientProf();
-            System.exit(0);
+        public void dispose() { // Saves any unsaved changes, off the event dispatch thread, and exits.
+            shutdown();
         }
     };
     private final JFrame detailedProfileView = new JFrame(); // Displays all profile info for Create and Display options
@@ -34,6 +50,14 @@ public class PatientProfGUI {
             updateProfileRB,
             findDisplayProfileRB,
             displayAllProfileRB};
+    private final JRadioButton[] changeItems = { // Menu items which change the database, disabled while it loads
+            createProfileRB,
+            deleteProfileRB,
+            updateProfileRB};
+
+    // Progress of the background load of the database, shown in the main menu until it finishes
+    private final JLabel loadStatus = new JLabel();
+    private final JProgressBar loadProgress = new JProgressBar(0, 100);
 
     private final String[] attrNames = { // Interface label text for profile attributes.
             "Admin ID",
@@ -62,6 +86,24 @@ public class PatientProfGUI {
     private final JComboBox<String> attrSelection = new JComboBox<>(attrNames);
     private final JLabel attrSelectLabel = new JLabel("Update Field:");
     private final JButton promptButton = new JButton();
+    private final JPopupMenu lastNameSuggestions = new JPopupMenu(); // Type-ahead matches for lastNameField
+    private boolean fillingSuggestion = false; // Set while a chosen suggestion is copied into the prompt fields
+    private static final int MAX_SUGGESTIONS = 8;
+    private final Timer suggestTimer = new Timer(150, actionEvent -> suggestLastNames()); // Waits for typing to pause
+    private SwingWorker<List<String[]>, Void> lastNameSearch; // Latest search for suggestions, or null
+
+    // Elements for the table of all profiles of an admin. The database sorts and filters them, and the table only
+    // reads the rows scrolled into view.
+    private final JFrame allProfilesView = new JFrame();
+    private final ProfileTableModel allProfilesModel = new ProfileTableModel(attrNames);
+    private final JTable allProfilesTable = new JTable(allProfilesModel);
+    private final JComboBox<String> filterSelection = new JComboBox<>(attrNames);
+    private final JTextField filterField = new JTextField(20);
+    private final JLabel allProfilesStatus = new JLabel();
+    private final Timer filterTimer = new Timer(300, actionEvent -> queryAllProfiles()); // Waits for typing to pause
+    private int sortColumn = -1; // Column the table is sorted by, or -1 for insertion order
+    private boolean sortAscending = true;
+    private SwingWorker<ProfileResultSet, Void> allProfilesQuery; // Latest query for the table, or null
 
     private static final class IllegalInputException extends Exception {
         int errorIndex; // The index of the field containing the error
@@ -127,34 +169,98 @@ public class PatientProfGUI {
     private final ActionListener displayAction = actionEvent -> {
         PatientProf profile = database.findProfile(adminIDField.getText(), lastNameField.getText());
         if (profile == null)
-            JOptionPane.showMessageDialog(multiInfoPrompt, "Profile not found.");
-        else {
-            displayProfile(profile);
-            profileViewTitle.setText("Patient Profile");
-            profileViewButton.setVisible(false);
-            detailedProfileView.setVisible(true);
-            for (JTextField field : profileFields)
-                field.setEditable(false);
-        }
-    };
-    private final ActionListener showNextProfAction = actionEvent -> {
-        PatientProf current;
-        while (true)
-            if ((current = database.findNextProfile()).getAdminID().equals(adminID))
-                break;
-
-        displayProfile(current);
+            JOptionPane.showMessageDialog(multiInfoPrompt, database.isLoading()
+                    ? "Profile not found yet: the database is still loading." : "Profile not found.");
+        else
+            showProfileView(profile);
     };
 
     /**
-     * Load any data from the provided database filename, then prepare (pre-load) interface elements.
+     * Prepare (pre-load) interface elements, and start loading any data from the provided database filename in the
+     * background. Until it is loaded, profiles can be looked up as they are loaded, but not changed.
      * @param dataFile database filename to pass on to the underlying database implementation
      */
     public PatientProfGUI(String dataFile) {
         database = new PatientProfDB(dataFile);
-        database.initializeDatabase();
+        autosave = new PatientProfAutosave(database, AUTOSAVE_QUIET_MILLIS, AUTOSAVE_MAX_DELAY_MILLIS);
 
         preloadGUI();
+        loadDatabase();
+    }
+
+    /**
+     * Loads the database off the event dispatch thread, showing its progress in the main menu and disabling the
+     * menu items which change it until it is loaded.
+     */
+    private void loadDatabase() {
+        for (JRadioButton item : changeItems)
+            item.setEnabled(false);
+        loadStatus.setText("Loading patient profiles...");
+        loadStatus.setVisible(true);
+        loadProgress.setValue(0);
+        loadProgress.setVisible(true);
+
+        Timer progressTimer = new Timer(100, actionEvent ->
+                loadProgress.setValue((int) (database.getLoadProgress() * 100)));
+        progressTimer.start();
+
+        database.initializeDatabaseInBackground().whenComplete((result, error) -> {
+            autosave.start(); // Checks the journal just replayed, if any
+            SwingUtilities.invokeLater(() -> {
+                progressTimer.stop();
+                loadStatus.setVisible(false);
+                loadProgress.setVisible(false);
+                for (JRadioButton item : changeItems)
+                    item.setEnabled(true);
+                if (error != null)
+                    JOptionPane.showMessageDialog(mainMenu, "Error loading patient profiles: " + error.getMessage());
+            });
+        });
+    }
+
+    /**
+     * Hides the interface, then closes the database on the autosave thread, showing the progress of the
+     * checkpoint it may make, and exits. Exits after SHUTDOWN_TIMEOUT_SECONDS even if the save hasn't finished:
+     * the previous database file and the journal still hold every change.
+     */
+    private void shutdown() {
+        if (shuttingDown) return;
+        shuttingDown = true;
+        for (Frame frame : Frame.getFrames())
+            frame.setVisible(false);
+
+        JPanel savePanel = new JPanel();
+        savePanel.setLayout(new BoxLayout(savePanel, BoxLayout.PAGE_AXIS));
+        savePanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        JLabel saveStatus = new JLabel("Saving patient profiles...");
+        saveStatus.setAlignmentX(JComponent.CENTER_ALIGNMENT);
+        savePanel.add(saveStatus);
+        JProgressBar saveProgress = new JProgressBar(0, 100);
+        saveProgress.setStringPainted(true);
+        saveProgress.setAlignmentX(JComponent.CENTER_ALIGNMENT);
+        savePanel.add(saveProgress);
+
+        JDialog saveDialog = new JDialog((Frame) null, "Integrated Patient System");
+        saveDialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+        saveDialog.setContentPane(savePanel);
+        saveDialog.setSize(300, 100);
+        saveDialog.setLocationRelativeTo(null);
+        saveDialog.setVisible(true);
+
+        Timer progressTimer = new Timer(100, actionEvent ->
+                saveProgress.setValue((int) (database.getSaveProgress() * 100)));
+        progressTimer.start();
+
+        Thread closer = new Thread(() -> {
+            try {
+                if (!autosave.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                    System.out.println("Exiting before the database was saved; its journal holds the changes");
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            System.exit(0);
+        }, "PatientProfGUI shutdown");
+        closer.start();
     }
 
     /**
@@ -164,6 +270,7 @@ public class PatientProfGUI {
         preloadMenu();
         preloadProfileView();
         preloadMultiInfoPrompt();
+        preloadAllProfilesView();
     }
 
     private void preloadMenu() {
@@ -208,6 +315,18 @@ public class PatientProfGUI {
         selectButton.setAlignmentX(JComponent.CENTER_ALIGNMENT);
         mainMenuPanel.add(selectButton);
 
+        // Spacer between select button and load progress
+        mainMenuPanel.add(Box.createRigidArea(new DimensionUIResource(0, 25)));
+
+        loadStatus.setAlignmentX(JComponent.CENTER_ALIGNMENT);
+        loadStatus.setVisible(false);
+        mainMenuPanel.add(loadStatus);
+        loadProgress.setStringPainted(true);
+        loadProgress.setMaximumSize(new DimensionUIResource(250, 20));
+        loadProgress.setAlignmentX(JComponent.CENTER_ALIGNMENT);
+        loadProgress.setVisible(false);
+        mainMenuPanel.add(loadProgress);
+
         mainMenu.setContentPane(mainMenuPanel);
         mainMenu.setSize(400, 400);
         mainMenu.setResizable(false);
@@ -282,6 +401,23 @@ public class PatientProfGUI {
         lastNameField.setAlignmentX(JComponent.RIGHT_ALIGNMENT);
         promptPanel.add(lastNameField);
 
+        // Suggest matching profiles once typing the last name pauses, without taking focus from the field
+        lastNameSuggestions.setFocusable(false);
+        suggestTimer.setRepeats(false);
+        lastNameField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                lastNameChanged();
+            }
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                lastNameChanged();
+            }
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+
         mainPanel.add(promptPanel);
 
         // Spacer between prompts and button
@@ -293,6 +429,139 @@ public class PatientProfGUI {
         multiInfoPrompt.setSize(350, 225);
     }
 
+    private void preloadAllProfilesView() {
+        allProfilesView.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
+        allProfilesView.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                releaseAllProfiles(); // The view is only hidden, so drop its results and their snapshot
+            }
+        });
+
+        JPanel mainPanel = new JPanel(new BorderLayout(0, 5));
+
+        // Filter controls and result count
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterPanel.add(new JLabel("Filter:"));
+        filterPanel.add(filterSelection);
+        filterPanel.add(filterField);
+        JButton refreshButton = new JButton("Refresh");
+        refreshButton.addActionListener(actionEvent -> queryAllProfiles());
+        filterPanel.add(refreshButton);
+        filterPanel.add(allProfilesStatus);
+        mainPanel.add(filterPanel, BorderLayout.NORTH);
+
+        filterTimer.setRepeats(false);
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterTimer.restart();
+            }
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        filterSelection.addActionListener(actionEvent -> {
+            if (!filterField.getText().isBlank())
+                queryAllProfiles();
+        });
+
+        // Clicking a column header sorts by it, then reverses the order; the database sorts, not the table
+        allProfilesTable.getTableHeader().setReorderingAllowed(false);
+        allProfilesTable.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = allProfilesTable.columnAtPoint(e.getPoint());
+                if (column < 0) return;
+                sortAscending = column != sortColumn || !sortAscending;
+                sortColumn = column;
+                queryAllProfiles();
+            }
+        });
+
+        // Double-clicking a row shows the profile in the profile view
+        allProfilesTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        allProfilesTable.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = allProfilesTable.rowAtPoint(e.getPoint());
+                if (e.getClickCount() == 2 && row >= 0)
+                    showProfileView(allProfilesModel.getProfile(row));
+            }
+        });
+        allProfilesTable.setFillsViewportHeight(true);
+        mainPanel.add(new JScrollPane(allProfilesTable), BorderLayout.CENTER);
+
+        allProfilesView.setContentPane(mainPanel);
+        allProfilesView.setSize(1000, 500);
+    }
+
+    private void lastNameChanged() {
+        lastNameSuggestions.setVisible(false);
+        if (fillingSuggestion) return;
+        if (lastNameSearch != null)
+            lastNameSearch.cancel(false); // Its suggestions are for text no longer in the field
+        suggestTimer.restart();
+    }
+
+    /**
+     * Searches the profiles matching the last name typed so far off the event dispatch thread, and shows them as
+     * suggestions once done unless the prompt fields changed meanwhile.
+     */
+    private void suggestLastNames() {
+        if (!lastNameField.isShowing() || lastNameField.getText().isBlank()) return;
+
+        String lastNameText = lastNameField.getText();
+        String adminText = adminIDField.getText();
+        String adminFilter = adminText.isBlank() ? null : adminText;
+        lastNameSearch = new SwingWorker<>() {
+            @Override
+            protected List<String[]> doInBackground() {
+                // Read the names here too, as reading a profile may decode its row
+                List<String[]> matches = new ArrayList<>();
+                for (PatientProf profile : database.searchLastName(adminFilter, lastNameText, MAX_SUGGESTIONS))
+                    matches.add(new String[]{profile.getLastName(), profile.getAdminID()});
+                return matches;
+            }
+
+            @Override
+            protected void done() {
+                if (isCancelled() || !lastNameField.getText().equals(lastNameText)
+                        || !adminIDField.getText().equals(adminText) || !lastNameField.isShowing()) return;
+                try {
+                    showSuggestions(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    System.out.println("Error searching patient profiles");
+                    e.printStackTrace();
+                }
+            }
+        };
+        lastNameSearch.execute();
+    }
+
+    private void showSuggestions(List<String[]> matches) {
+        if (matches.isEmpty()) return;
+
+        lastNameSuggestions.removeAll();
+        for (String[] match : matches) {
+            String lastName = match[0];
+            String adminID = match[1];
+            JMenuItem item = new JMenuItem(String.format("%s (%s)", lastName, adminID));
+            item.addActionListener(actionEvent -> {
+                fillingSuggestion = true;
+                adminIDField.setText(adminID);
+                lastNameField.setText(lastName);
+                fillingSuggestion = false;
+            });
+            lastNameSuggestions.add(item);
+        }
+        lastNameSuggestions.show(lastNameField, 0, lastNameField.getHeight());
+    }
+
     private void createProfile() {
         profileViewTitle.setText("Create Profile");
 
@@ -301,7 +570,6 @@ public class PatientProfGUI {
             textField.setEditable(true);
         }
 
-        profileViewButton.removeActionListener(showNextProfAction);
         profileViewButton.removeActionListener(createProfAction);
         profileViewButton.addActionListener(createProfAction);
         profileViewButton.setText("Submit");
@@ -446,30 +714,87 @@ public class PatientProfGUI {
             return;
         }
 
-        profileViewTitle.setText("Patient Profile");
+        allProfilesView.setTitle("Patient Profiles of Admin " + adminID);
+        filterField.setText("");
+        filterTimer.stop();
+        sortColumn = -1;
+        sortAscending = true;
+        allProfilesModel.setResults(null, -1, true);
+        queryAllProfiles();
 
-        for (JTextField textField : profileFields)
-            textField.setEditable(false);
+        allProfilesView.setVisible(true);
+    }
 
-        profileViewButton.removeActionListener(createProfAction);
-        profileViewButton.removeActionListener(showNextProfAction);
-        profileViewButton.addActionListener(showNextProfAction);
-        profileViewButton.setText("Next Profile");
-        profileViewButton.setVisible(true);
+    /**
+     * Stops the query of the profiles table and drops its results, so that the database no longer keeps their snapshot.
+     */
+    private void releaseAllProfiles() {
+        if (allProfilesQuery != null) {
+            allProfilesQuery.cancel(false);
+            allProfilesQuery = null;
+        }
+        allProfilesModel.setResults(null, -1, true);
+    }
 
-        PatientProf firstProfile = database.findFirstProfile();
-        if (firstProfile.getAdminID().equals(adminID))
-            displayProfile(firstProfile);
+    /**
+     * Runs the query of the profiles table off the event dispatch thread, and shows its result once done unless a
+     * later query was started meanwhile. The result is a snapshot, so profiles added or deleted afterwards are
+     * neither skipped nor shown twice while scrolling; Refresh shows them.
+     */
+    private void queryAllProfiles() {
+        if (allProfilesQuery != null)
+            allProfilesQuery.cancel(false); // Its result is no longer wanted
+
+        ProfileQuery query = database.query().admin(adminID);
+        String filterText = filterField.getText().trim().toLowerCase(Locale.ROOT);
+        if (!filterText.isEmpty())
+            query.where(ProfileField.of(filterSelection.getSelectedIndex()),
+                    value -> value.toLowerCase(Locale.ROOT).contains(filterText));
+        int column = sortColumn;
+        boolean ascending = sortAscending;
+        if (column >= 0)
+            query.orderBy(ProfileField.of(column), ascending);
+
+        allProfilesStatus.setText("Searching...");
+        allProfilesQuery = new SwingWorker<>() {
+            @Override
+            protected ProfileResultSet doInBackground() {
+                return query.resultSet();
+            }
 
-        PatientProf nextProfile;
-        while (true)
-            if ((nextProfile = database.findNextProfile()).getAdminID().equals(adminID)) {
-                displayProfile(nextProfile);
-                break;
-            } else if (nextProfile == firstProfile)
-                return;
+            @Override
+            protected void done() {
+                if (isCancelled() || allProfilesQuery != this) return; // A later query replaces it
+                allProfilesQuery = null; // Its result is now only held by the table
+                try {
+                    ProfileResultSet results = get();
+                    allProfilesModel.setResults(results, column, ascending);
+                    if (results.size() > 0)
+                        allProfilesStatus.setText(results.size() + " profiles"
+                                + (database.isLoading() ? " (the database is still loading)" : ""));
+                    else
+                        allProfilesStatus.setText(database.isLoading()
+                                ? "No profiles found yet: the database is still loading." : "No profiles found.");
+                } catch (InterruptedException | ExecutionException e) {
+                    System.out.println("Error querying patient profiles");
+                    e.printStackTrace();
+                    allProfilesStatus.setText("Error querying patient profiles.");
+                }
+            }
+        };
+        allProfilesQuery.execute();
+    }
 
+    /**
+     * Shows a profile, read-only, in the profile view.
+     */
+    private void showProfileView(PatientProf profile) {
+        displayProfile(profile);
+        profileViewTitle.setText("Patient Profile");
+        profileViewButton.setVisible(false);
         detailedProfileView.setVisible(true);
+        for (JTextField field : profileFields)
+            field.setEditable(false);
     }
 
     private void displayProfile(PatientProf profile) {
@@ -1,4 +1,5 @@
 import java.util.InputMismatchException;
+import java.util.List;
 import java.util.Scanner;
 import com.med.MedCond;
 
@@ -90,14 +91,13 @@ public class PatientProfInterface {
      * Displays all profiles belonging to the logged in admin user.
      */
     private void displayAllPatientProf() {
-        PatientProf first = database.findFirstProfile(); // Reset sequential access counter to first item.
-        if (first != null && first.getAdminID().equals(adminID))
-            displayPatientProf(first); // Display the first profile now if it belongs to the current admin user.
-
-        PatientProf next;
-        while ((next = database.findNextProfile()) != first) // Stop looping when we wrap back to the first profile.
-            if (next.getAdminID().equals(adminID))
-                displayPatientProf(next); // Display profile only if it belongs to the current admin user.
+        List<PatientProf> profiles = database.query().admin(adminID).list();
+        if (profiles.isEmpty()) {
+            System.out.println("No patients found.");
+            return;
+        }
+
+        profiles.forEach(this::displayPatientProf);
     }
 
     /**
@@ -159,7 +159,10 @@ public class PatientProfInterface {
                     "0: Exit%n", adminID == null ? "<None>" : adminID), 8);
 
             // Exit if user entered 0
-            if (input == 0) break;
+            if (input == 0) {
+                database.close();
+                break;
+            }
 
             // Prompt for adminID if not already provided
             if (input != 8 && adminID == null)
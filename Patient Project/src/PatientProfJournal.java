@@ -0,0 +1,341 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import com.med.MedCond;
+
+/**
+ * Append-only write-ahead log of the changes made to a PatientProfDB since its file was last written in full.
+ * Each change is appended as one tab-separated record as soon as it happens:
+ * <pre>
+ * I  followed by the twelve fields of an inserted profile, in database file order
+ * D  adminID  lastName                    (deleted profile: the earliest inserted with the key, as deleteProfile()
+ *                                          deletes)
+ * U  adminID  lastName  FIELD  newValue  [earlier]
+ *                                         (updated profile, identified by its key before the update and, if other
+ *                                          profiles inserted before it share the key, by their number)
+ * C  size  crc                            (checkpoint: the records before it are in the database file written
+ *                                          with this size and CRC-32)
+ * </pre>
+ * Values are escaped, tabs, line breaks and backslashes becoming \t, \n, \r and \\, as those of a binary database
+ * file (see PatientProfBinary) may hold any character.
+ * <p>
+ * A checkpoint first moves the records to a numbered segment (journal.1, journal.2, ...), so that changes made while
+ * it writes the database file start a new journal, then appends a C record to the segment just before the new file
+ * replaces the old one, and deletes the segments once it has. A crash at any point thus leaves segments whose
+ * records are either all in the database file (which their last C record matches) or none of them, and replay()
+ * applies each change exactly once. Appends, rotations and closes are synchronized, so the journal may be shared by
+ * several threads.
+ */
+public class PatientProfJournal {
+
+    private final File journalFile;
+    private BufferedWriter writer; // Opened on the first append
+
+    /**
+     * @param journalFileName file holding the journal (may exist or not)
+     */
+    PatientProfJournal(String journalFileName) {
+        journalFile = new File(journalFileName);
+    }
+
+    /**
+     * @return true if the journal file holds at least one record, or segments left by an unfinished checkpoint exist
+     */
+    public boolean hasRecords() {
+        return journalFile.length() > 0 || !segments().isEmpty();
+    }
+
+    /**
+     * @return the size in bytes of the journal file and of any segments
+     */
+    public long length() {
+        long length = journalFile.length();
+        for (File segment : segments())
+            length += segment.length();
+        return length;
+    }
+
+    public void logInsert(PatientProf profile) {
+        StringBuilder record = new StringBuilder("I");
+        for (ProfileField field : ProfileField.values())
+            record.append('\t').append(escape(field.get(profile)));
+        append(record.toString());
+    }
+
+    public void logDelete(String adminID, String lastName) {
+        append(String.join("\t", "D", escape(adminID), escape(lastName)));
+    }
+
+    /**
+     * @param earlier Number of profiles with the same key inserted before the updated one (see KeyIndex.countEarlier())
+     */
+    public void logUpdate(String adminID, String lastName, int earlier, ProfileField field, String newValue) {
+        String record = String.join("\t", "U", escape(adminID), escape(lastName), field.name(), escape(newValue));
+        append(earlier == 0 ? record : record + '\t' + earlier);
+    }
+
+    /**
+     * @return the value with its tabs, line breaks and backslashes escaped, so that it fits in one field of a record
+     */
+    private static String escape(String value) {
+        int i = 0;
+        while (i < value.length() && "\t\n\r\\".indexOf(value.charAt(i)) < 0)
+            i++;
+        if (i == value.length()) return value;
+
+        StringBuilder escaped = new StringBuilder(value.length() + 8).append(value, 0, i);
+        for (; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                case '\\': escaped.append("\\\\"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * @return the value escape() was given
+     */
+    private static String unescape(String field) {
+        int i = field.indexOf('\\');
+        if (i < 0) return field;
+
+        StringBuilder value = new StringBuilder(field.length()).append(field, 0, i);
+        for (; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == '\\' && i + 1 < field.length()) {
+                switch (field.charAt(++i)) {
+                    case 't': c = '\t'; break;
+                    case 'n': c = '\n'; break;
+                    case 'r': c = '\r'; break;
+                    default: c = field.charAt(i);
+                }
+            }
+            value.append(c);
+        }
+        return value.toString();
+    }
+
+    /**
+     * Appends a record and flushes it to the operating system, so it survives the process exiting.
+     */
+    private synchronized void append(String record) {
+        try {
+            if (writer == null)
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journalFile, true), StandardCharsets.UTF_8));
+            writer.write(record);
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing to journal: " + journalFile);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Re-applies every journaled change not yet in the database file, in the order the changes were made: the
+     * records of the segments after their last C record matching the file, then those of the journal file.
+     * A truncated final record (left by a crash during an append) is ignored.
+     * @param database database holding the state of the database file
+     * @param databaseFile the database file
+     * @return number of records replayed
+     * @throws IOException if the journal or database file cannot be read
+     */
+    int replay(PatientProfDB database, File databaseFile) throws IOException {
+        List<File> files = segments();
+
+        // Find the last checkpoint of the database file as it is, whose records are already in it
+        int startFile = 0;
+        long startLine = 0;
+        Long crc = null; // Computed the first time a checkpoint of the right size turns up
+        for (int f = 0; f < files.size(); f++) {
+            try (BufferedReader br = reader(files.get(f))) {
+                String line;
+                for (long n = 1; (line = br.readLine()) != null; n++) {
+                    String[] items = line.split("\t", -1);
+                    if (!items[0].equals("C") || items.length < 3
+                            || Long.parseLong(items[1]) != databaseFile.length()) continue;
+                    if (crc == null) crc = crc(databaseFile);
+                    if (Long.parseLong(items[2]) == crc) {
+                        startFile = f;
+                        startLine = n;
+                    }
+                }
+            }
+        }
+
+        files.add(journalFile);
+        int replayed = 0;
+        for (int f = startFile; f < files.size(); f++) {
+            if (!files.get(f).exists()) continue;
+            try (BufferedReader br = reader(files.get(f))) {
+                String line;
+                for (long n = 1; (line = br.readLine()) != null; n++)
+                    if ((f > startFile || n > startLine) && apply(database, fields(line)))
+                        replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the unescaped fields of a record
+     */
+    private static String[] fields(String line) {
+        String[] items = line.split("\t", -1);
+        for (int i = 1; i < items.length; i++)
+            items[i] = unescape(items[i]);
+        return items;
+    }
+
+    /**
+     * Re-applies one record to the database.
+     * @return false if the record was skipped (a checkpoint, truncated, blank or unrecognized)
+     */
+    private static boolean apply(PatientProfDB database, String[] items) {
+        switch (items[0]) {
+            case "I":
+                if (items.length < 13) return false;
+                database.insertNewProfile(new PatientProf(items[1], items[2], items[3], items[4], items[5],
+                        Float.parseFloat(items[6]), items[7], items[8],
+                        new MedCond(items[9], items[10], items[11], items[12])));
+                return true;
+            case "D":
+                if (items.length < 3) return false;
+                database.deleteProfile(items[1], items[2]);
+                return true;
+            case "U":
+                if (items.length < 5) return false;
+                PatientProf profile = database.findProfile(items[1], items[2],
+                        items.length > 5 ? Integer.parseInt(items[5]) : 0);
+                if (profile != null)
+                    ProfileField.valueOf(items[3]).set(profile, items[4]);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static BufferedReader reader(File file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the CRC-32 of the content of a file
+     */
+    private static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            while (channel.read(buffer) >= 0) {
+                crc.update(buffer.flip());
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Starts a checkpoint: moves the records journaled so far to a new segment, so that the changes made from now on
+     * start a new journal file. Must be called while no change is being made.
+     * @return the segment, which exists even if there were no records
+     * @throws IOException if the segment cannot be created
+     */
+    synchronized File rotate() throws IOException {
+        close();
+        File segment = new File(journalFile.getPath() + "." + (segmentNumber(lastSegment()) + 1));
+        if (journalFile.exists())
+            Files.move(journalFile.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        else
+            Files.createFile(segment.toPath());
+        return segment;
+    }
+
+    /**
+     * Records in a segment that the records before it are in the database file about to be written, and forces the
+     * segment to disk. Called just before the new file replaces the old one.
+     * @param segment Segment returned by rotate()
+     * @param size Size of the new database file
+     * @param crc CRC-32 of the new database file
+     * @throws IOException if the record cannot be written
+     */
+    static void commit(File segment, long size, long crc) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(segment, true)) {
+            out.write(String.join("\t", "C", String.valueOf(size), String.valueOf(crc))
+                    .concat(System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+    }
+
+    /**
+     * Deletes the segments up to the given one, once the database file holds their changes.
+     * @param segment Segment returned by rotate()
+     */
+    void discardSegments(File segment) {
+        for (File old : segments())
+            if (segmentNumber(old) <= segmentNumber(segment) && !old.delete())
+                System.out.println("Error deleting journal: " + old);
+    }
+
+    /**
+     * @return the segments left by checkpoints, in the order they were created
+     */
+    private List<File> segments() {
+        ArrayList<File> segments = new ArrayList<>();
+        File[] files = journalFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null)
+            for (File file : files)
+                if (segmentNumber(file) > 0)
+                    segments.add(file);
+        segments.sort((a, b) -> Long.compare(segmentNumber(a), segmentNumber(b)));
+        return segments;
+    }
+
+    private File lastSegment() {
+        List<File> segments = segments();
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    /**
+     * @return the number of a segment, or 0 if the file isn't a segment of this journal (or is null)
+     */
+    private long segmentNumber(File file) {
+        if (file == null) return 0;
+        String prefix = journalFile.getName() + ".";
+        String name = file.getName();
+        if (!name.startsWith(prefix) || name.length() == prefix.length() || name.length() > prefix.length() + 18)
+            return 0;
+        for (int i = prefix.length(); i < name.length(); i++)
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') return 0;
+        return Long.parseLong(name.substring(prefix.length()));
+    }
+
+    /**
+     * Closes the journal file. It is reopened by the next append.
+     */
+    public synchronized void close() {
+        if (writer == null) return;
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            System.out.println("Error closing journal: " + journalFile);
+            e.printStackTrace();
+        } finally {
+            writer = null;
+        }
+    }
+
+}
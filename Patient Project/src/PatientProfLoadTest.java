@@ -0,0 +1,226 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless load test of PatientProfDB. Many threads replay a random mix of the operations of the GUI (create, find,
+ * update, delete and display all of an admin's profiles) against one database, for a fixed time or number of
+ * operations, after which the throughput and latency percentiles of each operation are printed.
+ * <p>
+ * Finds, updates and deletes pick keys of the profiles in the database when the test started, so some of them miss
+ * profiles deleted meanwhile; those are counted separately. Creates add profiles with new keys.
+ */
+public class PatientProfLoadTest {
+
+    enum Operation {CREATE, FIND, UPDATE, DELETE, DISPLAY_ALL}
+
+    private final PatientProfDB db;
+    private final int threads;
+    private final EnumMap<Operation, Integer> mix;
+    private final ProfileGenerator generator;
+
+    private String[] adminIDs; // Keys of the profiles in the database when the test started
+    private String[] lastNames;
+    private String[] admins; // Distinct admin IDs, for display all
+
+    private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final EnumMap<Operation, AtomicLong> misses = new EnumMap<>(Operation.class);
+    private final AtomicInteger nextSequence = new AtomicInteger();
+
+    /**
+     * @param db Initialized database to load
+     * @param threads Number of threads issuing operations
+     * @param mix Relative frequency of each operation
+     * @param generator Generator of created profiles, with the settings the database was generated with
+     */
+    PatientProfLoadTest(PatientProfDB db, int threads, EnumMap<Operation, Integer> mix, ProfileGenerator generator) {
+        this.db = db;
+        this.threads = threads;
+        this.mix = mix;
+        this.generator = generator;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            misses.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * Runs the load test until duration has passed or operations operations have been issued, whichever is first.
+     * @param durationNanos Longest run time
+     * @param operations Largest number of operations
+     * @return the run time in nanoseconds
+     */
+    long run(long durationNanos, long operations) throws InterruptedException {
+        ProfileSnapshot snapshot = db.snapshot();
+        adminIDs = new String[snapshot.size()];
+        lastNames = new String[snapshot.size()];
+        int n = 0;
+        for (PatientProf profile : snapshot) {
+            adminIDs[n] = profile.getAdminID();
+            lastNames[n++] = profile.getLastName();
+        }
+        admins = Arrays.stream(adminIDs).distinct().toArray(String[]::new);
+        // Generated last names are numbered, so continue after the largest number any loaded profile may have
+        nextSequence.set(Math.max(n, 1 << 24));
+
+        int total = 0;
+        for (int weight : mix.values())
+            total += weight;
+        Operation[] choices = new Operation[total];
+        int c = 0;
+        for (Operation operation : mix.keySet())
+            for (int i = 0; i < mix.get(operation); i++)
+                choices[c++] = operation;
+
+        AtomicLong issued = new AtomicLong();
+        long startTime = System.nanoTime();
+        long endTime = startTime + durationNanos;
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (issued.incrementAndGet() <= operations && System.nanoTime() < endTime) {
+                    Operation operation = choices[random.nextInt(choices.length)];
+                    long opStart = System.nanoTime();
+                    boolean hit = perform(operation, random);
+                    latencies.get(operation).record(System.nanoTime() - opStart);
+                    if (!hit)
+                        misses.get(operation).incrementAndGet();
+                }
+            }, "load-" + t);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return false if the operation found no profile to act on
+     */
+    private boolean perform(Operation operation, ThreadLocalRandom random) {
+        int i = adminIDs.length == 0 ? -1 : random.nextInt(adminIDs.length);
+        switch (operation) {
+            case CREATE:
+                PatientProf profile;
+                synchronized (generator) {
+                    generator.setSequence(nextSequence.getAndIncrement());
+                    profile = generator.next();
+                }
+                db.insertNewProfile(profile);
+                return true;
+            case FIND:
+                return i >= 0 && db.findProfile(adminIDs[i], lastNames[i]) != null;
+            case UPDATE:
+                PatientProf found = i < 0 ? null : db.findProfile(adminIDs[i], lastNames[i]);
+                if (found == null) return false;
+                found.updateAddress(random.nextInt(1, 10000) + " Load Test Ave");
+                return true;
+            case DELETE:
+                return i >= 0 && db.deleteProfile(adminIDs[i], lastNames[i]);
+            case DISPLAY_ALL:
+                return admins.length > 0 && !db.query().admin(admins[random.nextInt(admins.length)]).list().isEmpty();
+            default:
+                throw new AssertionError(operation);
+        }
+    }
+
+    /**
+     * Prints the throughput and latency percentiles of each operation, and of all together.
+     * @param elapsedNanos Run time
+     */
+    void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        LatencyHistogram all = new LatencyHistogram();
+        System.out.printf("%d threads, %.1f s, %d profiles at the end%n", threads, seconds, db.size());
+        System.out.printf("%-12s %10s %10s %8s %10s %10s %10s %10s %10s%n", "operation", "ops/s", "count",
+                "misses", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            if (histogram.getCount() == 0) continue;
+            all.merge(histogram);
+            printRow(operation.name(), histogram, misses.get(operation).get(), seconds);
+        }
+        printRow("ALL", all, 0, seconds);
+    }
+
+    private static void printRow(String name, LatencyHistogram histogram, long misses, double seconds) {
+        System.out.printf(Locale.ROOT, "%-12s %10.0f %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n", name,
+                histogram.getCount() / seconds, histogram.getCount(), misses, histogram.percentile(50) / 1e3,
+                histogram.percentile(90) / 1e3, histogram.percentile(99) / 1e3, histogram.percentile(99.9) / 1e3,
+                histogram.getMax() / 1e3);
+    }
+
+    /**
+     * Runs a load test.
+     * @param args args[0] is the database file, followed by any of the options printed by usage()
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length % 2 != 1) {
+            usage();
+            return;
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        double duration = 10;
+        long operations = Long.MAX_VALUE;
+        int rows = 0;
+        PatientProfDB.StorageBackend backend = PatientProfDB.StorageBackend.OBJECT;
+        EnumMap<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        mix.put(Operation.CREATE, 10);
+        mix.put(Operation.FIND, 60);
+        mix.put(Operation.UPDATE, 20);
+        mix.put(Operation.DELETE, 9);
+        mix.put(Operation.DISPLAY_ALL, 1);
+
+        for (int i = 1; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(value); break;
+                case "--duration": duration = Double.parseDouble(value); break;
+                case "--ops": operations = Long.parseLong(value); break;
+                case "--rows": rows = Integer.parseInt(value); break;
+                case "--storage": backend = PatientProfDB.StorageBackend.valueOf(value.toUpperCase()); break;
+                case "--mix":
+                    mix.clear();
+                    for (String entry : value.split(",")) {
+                        String[] parts = entry.split("=");
+                        mix.put(Operation.valueOf(parts[0].trim().toUpperCase().replace('-', '_')),
+                                Integer.parseInt(parts[1].trim()));
+                    }
+                    break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+
+        ProfileGenerator generator = new ProfileGenerator(1);
+        if (rows > 0) {
+            System.out.printf("Generating %d profiles into %s%n", rows, args[0]);
+            generator.write(args[0], rows, PatientProfDB.StorageFormat.TEXT);
+        }
+
+        PatientProfDB db = new PatientProfDB(args[0], backend);
+        db.setJournalEnabled(false); // Load the database, not the disk; the file is left as it was
+        db.initializeDatabase();
+
+        PatientProfLoadTest test = new PatientProfLoadTest(db, threads, mix, generator);
+        test.report(test.run((long) (duration * 1e9), operations));
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java PatientProfLoadTest <file> [--rows n] [--threads n] [--duration seconds]");
+        System.out.println("       [--ops n] [--storage OBJECT|COLUMNAR|LAZY|OFF_HEAP]");
+        System.out.println("       [--mix create=10,find=60,update=20,delete=9,display-all=1]");
+        System.out.println("--rows first generates a database of that many profiles into the file.");
+    }
+
+}
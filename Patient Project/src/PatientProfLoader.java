@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import com.med.MedCond;
+
+/**
+ * Loads the tab-separated database file by memory-mapping it and scanning the delimiters directly over the mapped
+ * bytes, so no intermediate line String or split array is allocated per row.
+ * Accepts both CRLF and LF line endings. Like PatientProfDB's buffered loader, loading stops at the first blank line.
+ * Large files can also be split into line-aligned chunks which are parsed in parallel on a fork-join pool.
+ * Values of categorical fields are interned through a StringDictionary, usually recognized from their bytes before
+ * any String is decoded.
+ */
+public final class PatientProfLoader {
+
+    static final int FIELD_COUNT = 12; // Number of tab-separated fields in each row
+
+    // Largest region mapped at once. FileChannel.map() cannot map more than Integer.MAX_VALUE bytes.
+    private static final long MAX_WINDOW = Integer.MAX_VALUE;
+
+    // Smallest chunk handed to a parallel worker; smaller files are parsed on the calling thread.
+    private static final long MIN_CHUNK = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4; // Extra chunks let the pool balance rows of uneven length
+
+    // Exact powers of ten used by the float fast path (all are exactly representable as floats).
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    private PatientProfLoader() {
+    }
+
+    /**
+     * Loads every profile in the given file.
+     * @param fileName file to load
+     * @param dictionary dictionary to intern categorical field values with
+     * @return loaded profiles in file order
+     * @throws IOException if the file cannot be read or contains a malformed row
+     */
+    public static ArrayList<PatientProf> loadMapped(String fileName, StringDictionary dictionary) throws IOException {
+        ArrayList<PatientProf> profiles = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            parseRange(channel, 0, channel.size(), profiles, dictionary);
+        }
+        return profiles;
+    }
+
+    /**
+     * Loads every profile in the given file, parsing line-aligned chunks of it in parallel.
+     * The chunks are stitched back together so the profiles are returned in file order.
+     * @param fileName file to load
+     * @param threads number of worker threads to parse with
+     * @param dictionary dictionary to intern categorical field values with
+     * @return loaded profiles in file order
+     * @throws IOException if the file cannot be read or contains a malformed row
+     */
+    public static ArrayList<PatientProf> loadParallel(String fileName, int threads, StringDictionary dictionary)
+            throws IOException {
+        ArrayList<List<PatientProf>> batches = new ArrayList<>();
+        int[] total = {0};
+        loadParallel(fileName, threads, dictionary, (batch, parsedTo) -> {
+            batches.add(batch);
+            total[0] += batch.size();
+        });
+        ArrayList<PatientProf> profiles = new ArrayList<>(total[0]);
+        for (List<PatientProf> batch : batches)
+            profiles.addAll(batch);
+        return profiles;
+    }
+
+    /**
+     * Receives the profiles of the file a chunk at a time, in file order.
+     */
+    @FunctionalInterface
+    public interface BatchConsumer {
+        /**
+         * @param profiles profiles of the next chunk of the file, which the consumer may keep
+         * @param parsedTo offset of the file parsed up to, for reporting progress
+         */
+        void accept(List<PatientProf> profiles, long parsedTo);
+    }
+
+    /**
+     * Loads every profile in the given file, parsing line-aligned chunks of it in parallel, and hands each chunk's
+     * profiles to a consumer as soon as it and every chunk before it are parsed, so that the caller can use them
+     * while later chunks are still being parsed. The consumer runs on the calling thread.
+     * @param fileName file to load
+     * @param threads number of worker threads to parse with
+     * @param dictionary dictionary to intern categorical field values with
+     * @param consumer receives the profiles chunk by chunk, in file order
+     * @throws IOException if the file cannot be read or contains a malformed row
+     */
+    public static void loadParallel(String fileName, int threads, StringDictionary dictionary,
+                                    BatchConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long[] bounds = splitLines(channel, threads * CHUNKS_PER_THREAD);
+
+            if (bounds.length == 2) { // Not worth spinning up a pool
+                ArrayList<PatientProf> profiles = new ArrayList<>();
+                parseRange(channel, 0, bounds[1], profiles, dictionary);
+                consumer.accept(profiles, bounds[1]);
+                return;
+            }
+
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                List<Chunk> chunks = new ArrayList<>();
+                for (int i = 0; i < bounds.length - 1; i++) {
+                    Chunk chunk = new Chunk(channel, bounds[i], bounds[i + 1], dictionary);
+                    chunks.add(chunk);
+                    pool.execute(chunk);
+                }
+
+                // Hand the per-chunk batches over in file order, stopping after a chunk that hit a blank line
+                for (Chunk chunk : chunks) {
+                    consumer.accept(chunk.join(), chunk.end);
+                    if (chunk.stoppedAtBlankLine) break;
+                }
+            } catch (UncheckedIOException e) {
+                // join() may rethrow a copy of the worker's exception, so look for the IOException along the chain
+                for (Throwable cause = e; cause != null; cause = cause.getCause())
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
+                throw e;
+            } finally {
+                pool.shutdownNow(); // Chunks past a blank line (or an error) are of no use
+            }
+        }
+    }
+
+    /**
+     * A line-aligned byte range of the file parsed by one fork-join task into its own batch of profiles.
+     */
+    private static final class Chunk extends RecursiveTask<List<PatientProf>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final StringDictionary dictionary;
+        private final ArrayList<PatientProf> profiles = new ArrayList<>();
+        private boolean stoppedAtBlankLine;
+
+        Chunk(FileChannel channel, long start, long end, StringDictionary dictionary) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        protected List<PatientProf> compute() {
+            try {
+                stoppedAtBlankLine = parseRange(channel, start, end, profiles, dictionary);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return profiles;
+        }
+    }
+
+    /**
+     * Splits the file into at most the given number of byte ranges, each beginning at the start of a line.
+     * @param channel channel of the database file
+     * @param maxChunks upper bound on the number of ranges
+     * @return ascending range boundaries, starting with 0 and ending with the file size
+     * @throws IOException if the file cannot be read
+     */
+    private static long[] splitLines(FileChannel channel, int maxChunks) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, Math.min(maxChunks, size / MIN_CHUNK));
+
+        ArrayList<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(8192);
+        for (int i = 1; i < chunks; i++) {
+            long bound = nextLineStart(channel, Math.max(size * i / chunks, bounds.get(bounds.size() - 1)), probe);
+            if (bound >= size) break;
+            if (bound > bounds.get(bounds.size() - 1))
+                bounds.add(bound);
+        }
+        bounds.add(size);
+
+        return bounds.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /**
+     * @return the offset just past the first '\n' at or after from, or the file size if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long from, ByteBuffer probe) throws IOException {
+        long position = from;
+        while (true) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read < 0) return channel.size();
+
+            for (int i = 0; i < read; i++)
+                if (probe.get(i) == '\n')
+                    return position + i + 1;
+            position += read;
+        }
+    }
+
+    /**
+     * Parses all rows starting in the byte range [start, end) of the channel, mapping at most MAX_WINDOW bytes at a
+     * time. start must be the beginning of a row; a row starting before end is parsed to completion even if it runs
+     * past end.
+     * @param channel channel of the database file
+     * @param start offset of the first row to parse
+     * @param end offset at which no further rows are started
+     * @param out list receiving the parsed profiles
+     * @param dictionary dictionary to intern categorical field values with
+     * @return true if parsing stopped at a blank line, false if it reached end
+     * @throws IOException if the file cannot be read or contains a malformed row
+     */
+    static boolean parseRange(FileChannel channel, long start, long end, List<PatientProf> out,
+                              StringDictionary dictionary) throws IOException {
+        Parser parser = new Parser(dictionary);
+        long fileSize = channel.size();
+
+        while (start < end) {
+            long windowSize = Math.min(MAX_WINDOW, fileSize - start);
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, windowSize);
+            boolean lastWindow = start + windowSize >= fileSize;
+
+            int rowStart = 0;
+            while (start + rowStart < end) {
+                int rowEnd = parser.scanRow(window, rowStart);
+                if (rowEnd < 0) {
+                    if (!lastWindow) break; // Row continues past this window; remap starting at it.
+                    rowEnd = window.limit(); // Final row without a line terminator
+                }
+
+                if (parser.fieldCount < FIELD_COUNT) {
+                    if (parser.isBlank(window, rowStart, rowEnd))
+                        return true;
+                    throw new IOException(String.format("Malformed row at offset %d: expected %d fields, found %d",
+                            start + rowStart, FIELD_COUNT, parser.fieldCount));
+                }
+                out.add(parser.toProfile(window));
+
+                rowStart = rowEnd + 1; // Skip the '\n'
+            }
+
+            if (rowStart == 0 && start + rowStart < end)
+                throw new IOException("Row longer than " + MAX_WINDOW + " bytes at offset " + start);
+            start += rowStart;
+        }
+        return false;
+    }
+
+    /**
+     * Per-thread decoding state: a scratch buffer that field bytes are copied into before being decoded, and a cache
+     * mapping the encoded bytes of recently seen categorical values to their interned String.
+     */
+    private static final class Parser {
+        private static final int CACHE_SIZE = 1024; // Must be a power of two
+
+        private byte[] scratch = new byte[256];
+        private final int[] fieldStarts = new int[FIELD_COUNT];
+        private final int[] fieldEnds = new int[FIELD_COUNT];
+
+        private final StringDictionary dictionary;
+        private final byte[][] cachedBytes = new byte[CACHE_SIZE][];
+        private final String[] cachedValues = new String[CACHE_SIZE];
+
+        Parser(StringDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        private int fieldCount; // Number of fields found by the last call to scanRow()
+
+        /**
+         * Records the field boundaries of the row starting at from in a single pass over its bytes.
+         * @return the index of the row's terminating '\n', or -1 if the buffer ends first
+         */
+        int scanRow(MappedByteBuffer buf, int from) {
+            int field = 0;
+            fieldStarts[0] = from;
+            for (int i = from, limit = buf.limit(); i < limit; i++) {
+                byte b = buf.get(i);
+                if (b == '\t') {
+                    if (field < FIELD_COUNT - 1) {
+                        fieldEnds[field++] = i;
+                        fieldStarts[field] = i + 1;
+                    } else if (field == FIELD_COUNT - 1) {
+                        fieldEnds[field++] = i; // Ignore any extra trailing fields, as String.split() indexing did
+                    }
+                } else if (b == '\n') {
+                    closeRow(buf, field, from, i);
+                    return i;
+                }
+            }
+            closeRow(buf, field, from, buf.limit());
+            return -1;
+        }
+
+        private void closeRow(MappedByteBuffer buf, int field, int from, int end) {
+            if (field <= FIELD_COUNT - 1) {
+                if (end > from && buf.get(end - 1) == '\r')
+                    end--; // Drop the CR of a CRLF terminator
+                fieldEnds[field++] = end;
+            }
+            fieldCount = field;
+        }
+
+        boolean isBlank(MappedByteBuffer buf, int from, int to) {
+            for (int i = from; i < to; i++) {
+                byte b = buf.get(i);
+                if (b != ' ' && b != '\t' && b != '\r')
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Decodes the row whose field boundaries were recorded by the last call to scanRow().
+         */
+        PatientProf toProfile(MappedByteBuffer buf) {
+            return new PatientProf(categorical(buf, 0), string(buf, 1), string(buf, 2), string(buf, 3),
+                    string(buf, 4), parseFloat(buf, 5), categorical(buf, 6), categorical(buf, 7),
+                    new MedCond(string(buf, 8), string(buf, 9), categorical(buf, 10), categorical(buf, 11)));
+        }
+
+        /**
+         * Decodes a categorical field, returning the cached interned String without decoding if its bytes were seen
+         * recently.
+         */
+        private String categorical(MappedByteBuffer buf, int field) {
+            int start = fieldStarts[field];
+            int length = fieldEnds[field] - start;
+
+            int hash = length;
+            for (int i = 0; i < length; i++)
+                hash = 31 * hash + buf.get(start + i);
+            int slot = (hash ^ (hash >>> 16)) & (CACHE_SIZE - 1);
+
+            byte[] cached = cachedBytes[slot];
+            if (cached != null && cached.length == length && matches(buf, start, cached)) {
+                dictionary.recordDuplicates(cachedValues[slot], 1);
+                return cachedValues[slot];
+            }
+
+            String value = dictionary.intern(string(buf, field));
+            cachedBytes[slot] = Arrays.copyOf(scratch, length); // string() left the field's bytes in scratch
+            cachedValues[slot] = value;
+            return value;
+        }
+
+        private static boolean matches(MappedByteBuffer buf, int start, byte[] bytes) {
+            for (int i = 0; i < bytes.length; i++)
+                if (buf.get(start + i) != bytes[i])
+                    return false;
+            return true;
+        }
+
+        private String string(MappedByteBuffer buf, int field) {
+            int length = fieldEnds[field] - fieldStarts[field];
+            if (length > scratch.length)
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+
+            buf.get(fieldStarts[field], scratch, 0, length);
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Parses a plain decimal such as "20.0" directly from the bytes. Values with at most 7 significant digits
+         * are computed as one correctly rounded float division, which gives the same result as Float.parseFloat();
+         * anything else (exponents, long mantissas, NaN...) falls back to Float.parseFloat().
+         */
+        private float parseFloat(MappedByteBuffer buf, int field) {
+            int i = fieldStarts[field];
+            int end = fieldEnds[field];
+            boolean negative = i < end && buf.get(i) == '-';
+            if (negative || (i < end && buf.get(i) == '+'))
+                i++;
+
+            int mantissa = 0;
+            int digits = 0; // Significant digits seen so far
+            boolean sawDigit = false;
+            int fractionDigits = -1; // -1 until the decimal point is seen
+            for (; i < end; i++) {
+                byte b = buf.get(i);
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    sawDigit = true;
+                    if (mantissa != 0 && ++digits > 7) break;
+                    if (fractionDigits >= 0) fractionDigits++;
+                } else if (b == '.' && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else break;
+            }
+
+            if (i != end || !sawDigit || fractionDigits >= POWERS_OF_TEN.length)
+                return Float.parseFloat(string(buf, field).trim());
+
+            float value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+            return negative ? -value : value;
+        }
+    }
+
+}
@@ -0,0 +1,375 @@
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Operation metrics of a PatientProfDB: for each kind of operation, how often it ran and failed and a histogram of
+ * its latencies (see LatencyHistogram), plus the bytes and rows the database file was loaded from and written to.
+ * They can be read through getters, through JMX (as com.med:type=PatientProfDB MBeans, e.g. in JConsole) and in
+ * a text dump printed periodically.
+ * <p>
+ * Metrics are disabled by default, in which case timing an operation costs a read of a volatile flag. The system
+ * properties patientdb.metrics=true and patientdb.metrics.dumpSeconds=n enable them and the dump without code.
+ */
+public final class PatientProfMetrics {
+
+    /**
+     * Kinds of timed operations, by the PatientProfDB methods performing them. Errors are only counted for those
+     * which can fail; a lookup which finds nothing has not failed.
+     */
+    public enum Operation {
+        INITIALIZE(true), // initializeDatabase(), which fails if the file or journal cannot be read
+        WRITE_ALL(true), // writeAllPatientProf() and checkpoint(), which fail if the file cannot be written
+        INSERT(false), // insertNewProfile()
+        DELETE(true), // deleteProfile(), which fails if there is no such profile
+        UPDATE(true), // The update methods of PatientProf and MedCond, which fail if an evicted row was deleted
+        FIND(false), // findProfile()
+        WALK(false), // findFirstProfile() and findNextProfile(), with or without an admin ID
+        SEARCH_LAST_NAME(false), // searchLastName()
+        SNAPSHOT(false), // snapshot() and the lookups of ProfileQuery.list() and stream()
+        COUNT(false), // countProfiles() and the index-only counts of ProfileQuery.count()
+        CO_PAY_STATS(false), // coPayStats() and coPayStatsByInsuType()
+        COMPACT(false), // compact()
+        CLOSE(true); // close(), which fails if its checkpoint does
+
+        private final boolean fallible;
+
+        Operation(boolean fallible) {
+            this.fallible = fallible;
+        }
+
+        /**
+         * @return true if operations of this kind can fail, so that their errors are counted
+         */
+        public boolean isFallible() {
+            return fallible;
+        }
+    }
+
+    /**
+     * Management interface of the metrics of the whole database.
+     */
+    public interface DatabaseMBean {
+        boolean isEnabled();
+        void setEnabled(boolean enabled);
+        int getProfiles();
+        long getBytesRead();
+        long getBytesWritten();
+        long getRowsLoaded();
+        long getRowsWritten();
+        long getJournalBytes();
+        long getDictionaryBytesSaved();
+        long getRowCacheHits();
+        long getRowCacheMisses();
+        long getHeapUsedBytes();
+        long getOffHeapBytes();
+        String dump();
+        void reset();
+    }
+
+    /**
+     * Management interface of the metrics of one kind of operation. Latencies are in microseconds.
+     */
+    public interface OperationMBean {
+        long getCount();
+        long getErrors();
+        double getMeanMicros();
+        double getP50Micros();
+        double getP90Micros();
+        double getP99Micros();
+        double getP999Micros();
+        double getMaxMicros();
+    }
+
+    private static final long NOT_TIMED = Long.MIN_VALUE; // Returned by start() while disabled
+
+    private final PatientProfDB db;
+    private volatile boolean enabled = false;
+
+    private final EnumMap<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final EnumMap<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong rowsLoaded = new AtomicLong();
+    private final AtomicLong rowsWritten = new AtomicLong();
+
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+    private ScheduledExecutorService dumper;
+
+    /**
+     * @param db Database whose operations are measured
+     */
+    PatientProfMetrics(PatientProfDB db) {
+        this.db = db;
+        for (Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    /**
+     * Called at the start of an operation.
+     * @return the time the operation started, to be passed to end()
+     */
+    long start() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Called at the end of an operation, successful or not.
+     * @param operation Kind of the operation
+     * @param startTime What start() returned at its start
+     */
+    void end(Operation operation, long startTime) {
+        if (startTime != NOT_TIMED)
+            latencies.get(operation).record(System.nanoTime() - startTime);
+    }
+
+    /**
+     * Called when an operation fails, besides end().
+     * @param operation Kind of the operation, which must be fallible
+     */
+    void failed(Operation operation) {
+        if (enabled)
+            errors.get(operation).incrementAndGet();
+    }
+
+    /**
+     * Called after the database file was loaded.
+     * @param bytes Size of the file
+     * @param rows Number of profiles in it
+     */
+    void loaded(long bytes, long rows) {
+        if (enabled) {
+            bytesRead.addAndGet(bytes);
+            rowsLoaded.addAndGet(rows);
+        }
+    }
+
+    /**
+     * Called after the database file was written.
+     * @param bytes Size of the file
+     * @param rows Number of profiles in it
+     */
+    void written(long bytes, long rows) {
+        if (enabled) {
+            bytesWritten.addAndGet(bytes);
+            rowsWritten.addAndGet(rows);
+        }
+    }
+
+    /**
+     * @return true if operations are being measured
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts or stops measuring operations. What was measured so far is kept.
+     * @param enabled true to measure operations from now on
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param operation A kind of operation
+     * @return the latencies, in nanoseconds, of the operations of that kind measured so far
+     */
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies.get(operation);
+    }
+
+    /**
+     * @param operation A kind of operation
+     * @return how many operations of that kind failed, always 0 unless it is fallible
+     */
+    public long getErrors(Operation operation) {
+        return errors.get(operation).get();
+    }
+
+    /**
+     * @return the total size of the database files loaded
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return the total size of the database files written
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return the number of profiles loaded from database files
+     */
+    public long getRowsLoaded() {
+        return rowsLoaded.get();
+    }
+
+    /**
+     * @return the number of profiles written to database files
+     */
+    public long getRowsWritten() {
+        return rowsWritten.get();
+    }
+
+    /**
+     * @return the heap in use by the whole JVM right now, of which the database is usually most
+     */
+    public long getHeapUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Forgets everything measured so far.
+     */
+    public void reset() {
+        for (Operation operation : Operation.values()) {
+            latencies.get(operation).reset();
+            errors.get(operation).set(0);
+        }
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        rowsLoaded.set(0);
+        rowsWritten.set(0);
+    }
+
+    /**
+     * @return a text dump of the counters and of the latencies of each kind of operation that ran
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("PatientProfDB metrics: %d profiles, read %d bytes / %d rows, wrote %d bytes / %d "
+                        + "rows, journal %d bytes, row cache %d hits / %d misses, heap used %.1f MB, off-heap %.1f "
+                        + "MB%n", db.size(), getBytesRead(), getRowsLoaded(), getBytesWritten(), getRowsWritten(),
+                db.journalLength(), db.getRowCacheHits(), db.getRowCacheMisses(),
+                getHeapUsedBytes() / (1024.0 * 1024.0), db.getOffHeapBytes() / (1024.0 * 1024.0)));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            if (histogram.getCount() > 0 && operation.isFallible())
+                sb.append(String.format("  %-16s errors=%d %s%n", operation, getErrors(operation), histogram));
+            else if (histogram.getCount() > 0)
+                sb.append(String.format("  %-16s %s%n", operation, histogram));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints dump() every period, on a daemon thread, until stopDump() is called.
+     * @param periodSeconds Time between dumps
+     * @param out Stream to print to
+     */
+    public synchronized void startDump(long periodSeconds, PrintStream out) {
+        stopDump();
+        dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PatientProfDB metrics dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> out.print(dump()), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops printing dumps started by startDump(), if any.
+     */
+    public synchronized void stopDump() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dumper = null;
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, as com.med:type=PatientProfDB,file=fileName for the
+     * database and with an added operation key for each kind of operation. Does nothing if already registered.
+     * @param fileName Name of the database file, which tells databases apart
+     */
+    synchronized void registerMBeans(String fileName) {
+        if (!registeredNames.isEmpty()) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String prefix = "com.med:type=PatientProfDB,file=" + ObjectName.quote(fileName);
+        try {
+            register(server, new ObjectName(prefix), new StandardMBean(new DatabaseView(), DatabaseMBean.class));
+            for (Operation operation : Operation.values())
+                register(server, new ObjectName(prefix + ",operation=" + operation),
+                        new StandardMBean(new OperationView(operation), OperationMBean.class));
+        } catch (JMException e) {
+            System.out.println("Error registering metrics MBeans of " + fileName);
+            e.printStackTrace();
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, StandardMBean mbean) throws JMException {
+        // Replace the MBeans of an earlier database instance of the same file
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(mbean, name);
+        registeredNames.add(name);
+    }
+
+    /**
+     * Unregisters the MBeans registered by registerMBeans(), if any.
+     */
+    synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already replaced by another database instance of the same file
+            }
+        }
+        registeredNames.clear();
+    }
+
+    private final class DatabaseView implements DatabaseMBean {
+        public boolean isEnabled() { return enabled; }
+        public void setEnabled(boolean enabled) { PatientProfMetrics.this.setEnabled(enabled); }
+        public int getProfiles() { return db.size(); }
+        public long getBytesRead() { return PatientProfMetrics.this.getBytesRead(); }
+        public long getBytesWritten() { return PatientProfMetrics.this.getBytesWritten(); }
+        public long getRowsLoaded() { return PatientProfMetrics.this.getRowsLoaded(); }
+        public long getRowsWritten() { return PatientProfMetrics.this.getRowsWritten(); }
+        public long getJournalBytes() { return db.journalLength(); }
+        public long getDictionaryBytesSaved() { return db.getDictionary().getBytesSaved(); }
+        public long getRowCacheHits() { return db.getRowCacheHits(); }
+        public long getRowCacheMisses() { return db.getRowCacheMisses(); }
+        public long getHeapUsedBytes() { return PatientProfMetrics.this.getHeapUsedBytes(); }
+        public long getOffHeapBytes() { return db.getOffHeapBytes(); }
+        public String dump() { return PatientProfMetrics.this.dump(); }
+        public void reset() { PatientProfMetrics.this.reset(); }
+    }
+
+    private final class OperationView implements OperationMBean {
+        private final Operation operation;
+
+        OperationView(Operation operation) {
+            this.operation = operation;
+        }
+
+        public long getCount() { return latencies.get(operation).getCount(); }
+        public long getErrors() { return PatientProfMetrics.this.getErrors(operation); }
+        public double getMeanMicros() { return latencies.get(operation).getMean() / 1e3; }
+        public double getP50Micros() { return latencies.get(operation).percentile(50) / 1e3; }
+        public double getP90Micros() { return latencies.get(operation).percentile(90) / 1e3; }
+        public double getP99Micros() { return latencies.get(operation).percentile(99) / 1e3; }
+        public double getP999Micros() { return latencies.get(operation).percentile(99.9) / 1e3; }
+        public double getMaxMicros() { return latencies.get(operation).getMax() / 1e3; }
+    }
+
+}
@@ -0,0 +1,100 @@
+import com.med.MedCond;
+
+/**
+ * The twelve attributes of a patient profile, in the column order of the database file.
+ */
+public enum ProfileField {
+    ADMIN_ID(true),
+    FIRST_NAME(false),
+    LAST_NAME(false),
+    ADDRESS(false),
+    PHONE(false),
+    CO_PAY(false),
+    INSU_TYPE(true),
+    PATIENT_TYPE(true),
+    MD_CONTACT(false),
+    MD_PHONE(false),
+    ALG_TYPE(true),
+    ILL_TYPE(true);
+
+    private static final ProfileField[] VALUES = values();
+
+    private final boolean categorical;
+
+    ProfileField(boolean categorical) {
+        this.categorical = categorical;
+    }
+
+    /**
+     * @return true if this field takes one of a handful of distinct values shared by many profiles
+     */
+    public boolean isCategorical() {
+        return categorical;
+    }
+
+    /**
+     * @param index column index in the database file
+     * @return the field stored in that column
+     */
+    public static ProfileField of(int index) {
+        return VALUES[index];
+    }
+
+    /**
+     * @param medCondField one of the MedCond.MD_CONTACT... field constants
+     * @return the profile field corresponding to that MedCond field
+     */
+    public static ProfileField ofMedCond(int medCondField) {
+        return VALUES[MD_CONTACT.ordinal() + medCondField];
+    }
+
+    /**
+     * Reads this field of a profile as it is written to the database file.
+     * @param profile profile to read
+     * @return the field's value
+     */
+    public String get(PatientProf profile) {
+        MedCond mc = profile.getMedCondInfo();
+        switch (this) {
+            case ADMIN_ID: return profile.getAdminID();
+            case FIRST_NAME: return profile.getFirstName();
+            case LAST_NAME: return profile.getLastName();
+            case ADDRESS: return profile.getAddress();
+            case PHONE: return profile.getPhone();
+            case CO_PAY: return String.valueOf(profile.getCoPay());
+            case INSU_TYPE: return profile.getInsuType();
+            case PATIENT_TYPE: return profile.getPatientType();
+            case MD_CONTACT: return mc.getMdContact();
+            case MD_PHONE: return mc.getMdPhone();
+            case ALG_TYPE: return mc.getAlgType();
+            default: return mc.getIllType();
+        }
+    }
+
+    /**
+     * Updates this field of a profile through its update method, parsing the value as it is written to the
+     * database file.
+     * @param profile profile to update
+     * @param value new value of the field
+     * @throws UnsupportedOperationException for ADMIN_ID, which cannot be changed
+     * @throws NumberFormatException if this is CO_PAY and value is not a number
+     */
+    public void set(PatientProf profile, String value) {
+        MedCond mc = profile.getMedCondInfo();
+        switch (this) {
+            case ADMIN_ID: throw new UnsupportedOperationException("The admin ID of a profile cannot be changed");
+            case FIRST_NAME: profile.updateFirstName(value); break;
+            case LAST_NAME: profile.updateLastName(value); break;
+            case ADDRESS: profile.updateAddress(value); break;
+            case PHONE: profile.updatePhone(value); break;
+            case CO_PAY: profile.updateCoPay(Float.parseFloat(value)); break;
+            case INSU_TYPE: profile.updateInsuType(value); break;
+            case PATIENT_TYPE: profile.updatePatientType(value); break;
+            case MD_CONTACT: mc.updateMdContact(value); break;
+            case MD_PHONE: mc.updateMdPhone(value); break;
+            case ALG_TYPE: mc.updateAlgType(value); break;
+            default: mc.updateIllType(value);
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import com.med.MedCond;
+
+/**
+ * Generates synthetic patient profiles shaped like those of the bundled db file, so that databases of any size can
+ * be built for benchmarks and load tests. The same seed and settings always yield the same profiles, and no two
+ * profiles share an (adminID, lastName) key.
+ * <p>
+ * The number of admins, the number of distinct values of each categorical field and of copays, and how unevenly
+ * they are used can all be set. Skew is the exponent of a Zipf distribution: 0 uses every value equally often, 1
+ * makes the k-th most common value about k times rarer than the most common one, as real data tends to be.
+ */
+public class ProfileGenerator {
+
+    private static final String[] FIRST_NAMES = {"Munira", "Marloes", "Payam", "Mirinda", "Intan", "Javi", "Bento",
+            "Baihu", "Elfa", "Fato", "Amy", "Ellis", "Emily", "Ali", "Sarvesh", "Visnja"};
+    private static final String[] LAST_NAMES = {"Vlaho", "Velibor", "Zeus", "Floro", "Roosevelt", "Safa", "Ayna",
+            "Roza", "Brown", "Payne", "Okafor", "Lindqvist", "Moreau", "Tanaka", "Castillo", "Novak"};
+    private static final String[] STREETS = {"Brown Blvd", "Little Street", "Needmore Ave", "Nearest Street",
+            "Brown Ave", "Research Ave", "Broadway", "Willington Ave"};
+
+    // Values of the categorical fields, extended with numbered ones when more are asked for
+    private static final EnumMap<ProfileField, String[]> VALUES = new EnumMap<>(ProfileField.class);
+    static {
+        VALUES.put(ProfileField.INSU_TYPE, new String[]{"Government", "Private", "Medicare", "Medicaid", "Employer"});
+        VALUES.put(ProfileField.PATIENT_TYPE, new String[]{"Adult", "Pediatric", "Senior"});
+        VALUES.put(ProfileField.ALG_TYPE, new String[]{"None", "Food", "Medication", "Other", "Pollen", "Latex"});
+        VALUES.put(ProfileField.ILL_TYPE, new String[]{"None", "CHD", "Diabetes", "Asthma", "Hypertension"});
+    }
+
+    private final long seed;
+    private Random random;
+    private int sequence = 0; // Number of the next profile, from which its last name is made
+
+    private int admins = 100;
+    private double adminSkew = 0;
+    private final EnumMap<ProfileField, Integer> cardinalities = new EnumMap<>(ProfileField.class);
+    private int coPays = 2;
+    private double valueSkew = 0;
+
+    // Cumulative probabilities of each admin, value and copay, built by the first call to next() after a change
+    private double[] adminDistribution;
+    private EnumMap<ProfileField, double[]> valueDistributions;
+    private double[] coPayDistribution;
+
+    /**
+     * Creates a generator with the db file's cardinalities: two insurance types and copays, three patient types,
+     * four allergy and three illness types, and 100 admins, all used equally often.
+     * @param seed Seed of the random choices
+     */
+    public ProfileGenerator(long seed) {
+        this.seed = seed;
+        random = new Random(seed);
+        cardinalities.put(ProfileField.INSU_TYPE, 2);
+        cardinalities.put(ProfileField.PATIENT_TYPE, 3);
+        cardinalities.put(ProfileField.ALG_TYPE, 4);
+        cardinalities.put(ProfileField.ILL_TYPE, 3);
+    }
+
+    /**
+     * Creates a generator with the same seed and settings as another, which generates the same profiles from the
+     * start.
+     * @param other Generator to copy
+     */
+    public ProfileGenerator(ProfileGenerator other) {
+        this(other.seed);
+        admins = other.admins;
+        adminSkew = other.adminSkew;
+        cardinalities.putAll(other.cardinalities);
+        coPays = other.coPays;
+        valueSkew = other.valueSkew;
+    }
+
+    /**
+     * @param admins Number of distinct admin IDs
+     * @param skew Zipf exponent of the admins' shares of the profiles
+     */
+    public void setAdmins(int admins, double skew) {
+        if (admins < 1)
+            throw new IllegalArgumentException("admins must be at least 1: " + admins);
+        this.admins = admins;
+        adminSkew = skew;
+        adminDistribution = null;
+    }
+
+    /**
+     * @param field INSU_TYPE, PATIENT_TYPE, ALG_TYPE or ILL_TYPE
+     * @param cardinality Number of distinct values of the field
+     */
+    public void setCardinality(ProfileField field, int cardinality) {
+        if (!VALUES.containsKey(field))
+            throw new IllegalArgumentException("Not a generated categorical field: " + field);
+        if (cardinality < 1)
+            throw new IllegalArgumentException("cardinality must be at least 1: " + cardinality);
+        cardinalities.put(field, cardinality);
+        valueDistributions = null;
+    }
+
+    /**
+     * @param coPays Number of distinct copays, which are multiples of 20
+     */
+    public void setCoPays(int coPays) {
+        if (coPays < 1)
+            throw new IllegalArgumentException("coPays must be at least 1: " + coPays);
+        this.coPays = coPays;
+        coPayDistribution = null;
+    }
+
+    /**
+     * @param skew Zipf exponent of the frequencies of the values of the categorical fields and of the copays
+     */
+    public void setValueSkew(double skew) {
+        valueSkew = skew;
+        valueDistributions = null;
+        coPayDistribution = null;
+    }
+
+    /**
+     * Makes the next profile the one with the given number, so that generators with different sequence numbers (say,
+     * one per thread) generate different keys.
+     * @param sequence Number of the next profile
+     */
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return a new profile, whose last name no earlier profile from this generator has
+     */
+    public PatientProf next() {
+        if (adminDistribution == null)
+            adminDistribution = zipf(admins, adminSkew);
+        if (valueDistributions == null) {
+            valueDistributions = new EnumMap<>(ProfileField.class);
+            for (ProfileField field : cardinalities.keySet())
+                valueDistributions.put(field, zipf(cardinalities.get(field), valueSkew));
+        }
+        if (coPayDistribution == null)
+            coPayDistribution = zipf(coPays, valueSkew);
+
+        // Cycle through the last names, appending a distinct letter suffix on each pass
+        int n = sequence++;
+        String lastName = LAST_NAMES[n % LAST_NAMES.length] + letters(n / LAST_NAMES.length);
+
+        return new PatientProf(String.format("%05d", 1 + sample(adminDistribution)), pick(FIRST_NAMES), lastName,
+                (1 + random.nextInt(9999)) + " " + pick(STREETS), phone(), 20.0f * (1 + sample(coPayDistribution)),
+                value(ProfileField.INSU_TYPE), value(ProfileField.PATIENT_TYPE),
+                new MedCond(pick(FIRST_NAMES) + " " + pick(LAST_NAMES), phone(), value(ProfileField.ALG_TYPE),
+                        value(ProfileField.ILL_TYPE)));
+    }
+
+    private String value(ProfileField field) {
+        int i = sample(valueDistributions.get(field));
+        String[] values = VALUES.get(field);
+        return i < values.length ? values[i] : values[i % values.length] + " " + (i / values.length + 1);
+    }
+
+    private String pick(String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private String phone() {
+        return "800" + (1000000 + random.nextInt(9000000));
+    }
+
+    /**
+     * @return cumulative probabilities of 0..n-1 under a Zipf distribution with the given exponent
+     */
+    private static double[] zipf(int n, double skew) {
+        double[] cumulative = new double[n];
+        double total = 0;
+        for (int k = 0; k < n; k++)
+            cumulative[k] = total += 1 / Math.pow(k + 1, skew);
+        for (int k = 0; k < n; k++)
+            cumulative[k] /= total;
+        return cumulative;
+    }
+
+    private int sample(double[] cumulative) {
+        int i = Arrays.binarySearch(cumulative, random.nextDouble());
+        return Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1);
+    }
+
+    /**
+     * @return "" for 0, then "a".."z", "ba".."zz", ... (base 26 in letters)
+     */
+    private static String letters(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (; n > 0; n /= 26)
+            sb.append((char) ('a' + n % 26));
+        return sb.reverse().toString();
+    }
+
+    /**
+     * @param rows Number of profiles
+     * @return the first rows profiles this generator's settings yield, generated afresh on each iteration
+     */
+    public Iterable<PatientProf> profiles(int rows) {
+        return () -> new Iterator<PatientProf>() {
+            private final ProfileGenerator generator = new ProfileGenerator(ProfileGenerator.this);
+            private int generated = 0;
+
+            @Override
+            public boolean hasNext() {
+                return generated < rows;
+            }
+
+            @Override
+            public PatientProf next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                generated++;
+                return generator.next();
+            }
+        };
+    }
+
+    /**
+     * Writes a database file of the first rows profiles this generator's settings yield.
+     * @param fileName File to write (overwritten if it exists)
+     * @param rows Number of profiles
+     * @param format Format of the file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String fileName, int rows, PatientProfDB.StorageFormat format) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16)) {
+            if (format == PatientProfDB.StorageFormat.BINARY) {
+                PatientProfBinary.write(out, profiles(rows), rows);
+                return;
+            }
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (PatientProf profile : profiles(rows)) {
+                PatientProfDB.writeProfile(bw, profile);
+                bw.newLine();
+            }
+            bw.flush();
+        }
+    }
+
+    /**
+     * Writes a text database file of generated profiles with the default settings.
+     * @param fileName File to write (overwritten if it exists)
+     * @param rows Number of profiles
+     * @param seed Seed of the random choices
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(String fileName, int rows, long seed) throws IOException {
+        new ProfileGenerator(seed).write(fileName, rows, PatientProfDB.StorageFormat.TEXT);
+    }
+
+    /**
+     * Writes a database file of generated profiles.
+     * @param args args[0] is the file to write and args[1] the number of profiles, followed by any of the options
+     * printed by usage()
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length % 2 != 0) {
+            usage();
+            return;
+        }
+
+        long seed = 1;
+        PatientProfDB.StorageFormat format = PatientProfDB.StorageFormat.TEXT;
+        for (int i = 2; i < args.length; i += 2)
+            if (args[i].equals("--seed"))
+                seed = Long.parseLong(args[i + 1]);
+        ProfileGenerator generator = new ProfileGenerator(seed);
+        for (int i = 2; i < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--seed": break;
+                case "--admins": generator.setAdmins(Integer.parseInt(value), generator.adminSkew); break;
+                case "--admin-skew": generator.setAdmins(generator.admins, Double.parseDouble(value)); break;
+                case "--insu-types": generator.setCardinality(ProfileField.INSU_TYPE, Integer.parseInt(value)); break;
+                case "--patient-types":
+                    generator.setCardinality(ProfileField.PATIENT_TYPE, Integer.parseInt(value));
+                    break;
+                case "--allergies": generator.setCardinality(ProfileField.ALG_TYPE, Integer.parseInt(value)); break;
+                case "--illnesses": generator.setCardinality(ProfileField.ILL_TYPE, Integer.parseInt(value)); break;
+                case "--copays": generator.setCoPays(Integer.parseInt(value)); break;
+                case "--skew": generator.setValueSkew(Double.parseDouble(value)); break;
+                case "--format": format = PatientProfDB.StorageFormat.valueOf(value.toUpperCase()); break;
+                default:
+                    usage();
+                    return;
+            }
+        }
+
+        long startTime = System.nanoTime();
+        int rows = Integer.parseInt(args[1]);
+        generator.write(args[0], rows, format);
+        System.out.printf("Wrote %d profiles to %s in %.1f s%n", rows, args[0], (System.nanoTime() - startTime) / 1e9);
+    }
+
+    private static void usage() {
+        System.out.println("Usage: java ProfileGenerator <file> <rows> [--seed n] [--admins n] [--admin-skew s]");
+        System.out.println("       [--insu-types n] [--patient-types n] [--allergies n] [--illnesses n] [--copays n]");
+        System.out.println("       [--skew s] [--format TEXT|BINARY]");
+    }
+
+}
@@ -0,0 +1,38 @@
+/**
+ * Secondary index over the slots of a ProfileStore, kept up to date by PatientProfDB as profiles are inserted,
+ * deleted, updated and compacted.
+ */
+interface ProfileIndex {
+
+    /**
+     * @param slot Slot the profile was stored in
+     * @param profile Profile just inserted
+     */
+    void add(int slot, PatientProf profile);
+
+    /**
+     * @param slot Slot the profile is being deleted from
+     * @param profile Profile being deleted, still holding its current values
+     */
+    void remove(int slot, PatientProf profile);
+
+    /**
+     * @param slot Slot of the updated profile
+     * @param profile Profile holding its new values
+     * @param field The field which changed
+     * @param oldValue Value of the field before the change
+     */
+    void update(int slot, PatientProf profile, ProfileField field, String oldValue);
+
+    /**
+     * Renumbers indexed slots after ProfileStore.compact().
+     * @param newSlots Array returned by compact()
+     */
+    void remap(int[] newSlots);
+
+    /**
+     * Removes all entries.
+     */
+    void clear();
+
+}
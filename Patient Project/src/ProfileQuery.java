@@ -0,0 +1,348 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Query over the profiles of a PatientProfDB, built with PatientProfDB.query(), e.g.
+ * <pre>
+ * db.query().where(ProfileField.INSU_TYPE, "Government").where(ProfileField.ILL_TYPE, "CHD")
+ *         .orderBy(ProfileField.LAST_NAME).parallel(true).list();
+ * </pre>
+ * Each terminal operation runs over a fresh snapshot of the database (see ProfileSnapshot), so it sees every
+ * matching profile exactly once regardless of concurrent changes. Conditions requiring a field to hold given values
+ * are answered from the database's indexes where one covers the field (ALG_TYPE, ILL_TYPE, INSU_TYPE and
+ * PATIENT_TYPE), as are copay ranges, so that only the matching slots are visited. Other field conditions are
+ * tested against the store before a profile is materialized, and a parallel query splits the store across the
+ * common fork/join pool.
+ */
+public final class ProfileQuery {
+
+    private final PatientProfDB database;
+
+    private String adminID; // Admin whose profiles are searched, or null to search all profiles
+    private final ArrayList<ProfileSnapshot.SlotFilter> conditions = new ArrayList<>();
+    private final ArrayList<ValueCondition> valueConditions = new ArrayList<>(); // Candidates for index lookups
+    private CoPayRange coPayRange; // Range set by whereCoPay(), or null
+    private boolean otherConditions = false; // true if some condition is neither a value condition nor coPayRange
+    private Predicate<PatientProf> filter; // Condition on whole profiles, or null
+    private Comparator<PatientProf> order; // Sort order, or null for insertion order
+    private final ArrayList<SortKey> sortKeys = new ArrayList<>(); // Fields order sorts by, for resultSet()
+    private boolean otherOrder = false; // true if order has a key other than a field
+    private long limit = -1; // Maximum number of results, or -1 for no limit
+    private boolean parallel = false;
+
+    /**
+     * Condition that a field holds one of a set of values.
+     */
+    static final class ValueCondition {
+        final ProfileField field;
+        final Set<String> values;
+
+        ValueCondition(ProfileField field, Set<String> values) {
+            this.field = field;
+            this.values = values;
+        }
+    }
+
+    /**
+     * Condition that the copay lies within [min, max].
+     */
+    static final class CoPayRange {
+        final float min;
+        final float max;
+
+        CoPayRange(float min, float max) {
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    /**
+     * Field the results are sorted by, and in which direction.
+     */
+    private static final class SortKey {
+        final ProfileField field;
+        final boolean ascending;
+
+        SortKey(ProfileField field, boolean ascending) {
+            this.field = field;
+            this.ascending = ascending;
+        }
+    }
+
+    ProfileQuery(PatientProfDB database) {
+        this.database = database;
+    }
+
+    /**
+     * Restricts the query to the profiles created by one admin, which are found through the admin index rather than
+     * by testing every profile.
+     * @param adminID Admin ID of the creator of the profiles
+     * @return this query
+     */
+    public ProfileQuery admin(String adminID) {
+        this.adminID = adminID;
+        return this;
+    }
+
+    /**
+     * Keeps only profiles whose field equals the given value.
+     * @param field Field to test
+     * @param value Value the field must hold, as it is written to the database file
+     * @return this query
+     */
+    public ProfileQuery where(ProfileField field, String value) {
+        return whereAny(field, value);
+    }
+
+    /**
+     * Keeps only profiles whose field equals any of the given values. Calls to where() and whereAny() combine with
+     * AND, so e.g. whereAny(ALG_TYPE, "Food", "Medication").where(ILL_TYPE, "CHD") finds patients with CHD who are
+     * allergic to food or medication.
+     * @param field Field to test
+     * @param values Values the field may hold, as they are written to the database file
+     * @return this query
+     */
+    public ProfileQuery whereAny(ProfileField field, String... values) {
+        Set<String> accepted = new HashSet<>(Arrays.asList(values));
+        if (accepted.contains(null))
+            throw new NullPointerException("values must not contain null");
+        valueConditions.add(new ValueCondition(field, accepted));
+        conditions.add((store, slot) -> accepted.contains(store.get(slot, field)));
+        return this;
+    }
+
+    /**
+     * Keeps only profiles whose field meets a condition.
+     * @param field Field to test
+     * @param condition Condition on the field's value, as it is written to the database file
+     * @return this query
+     */
+    public ProfileQuery where(ProfileField field, Predicate<String> condition) {
+        Objects.requireNonNull(condition);
+        conditions.add((store, slot) -> condition.test(store.get(slot, field)));
+        otherConditions = true;
+        return this;
+    }
+
+    /**
+     * Keeps only profiles whose copay lies within a range.
+     * @param min Lowest copay to keep
+     * @param max Highest copay to keep
+     * @return this query
+     */
+    public ProfileQuery whereCoPay(float min, float max) {
+        conditions.add((store, slot) -> {
+            float coPay = store.getCoPay(slot);
+            return coPay >= min && coPay <= max;
+        });
+        coPayRange = coPayRange == null ? new CoPayRange(min, max)
+                : new CoPayRange(Math.max(min, coPayRange.min), Math.min(max, coPayRange.max));
+        return this;
+    }
+
+    /**
+     * Keeps only profiles meeting a condition. Conditions on single fields are better expressed with where(), which
+     * can be tested without materializing each profile.
+     * @param condition Condition on the whole profile
+     * @return this query
+     */
+    public ProfileQuery filter(Predicate<? super PatientProf> condition) {
+        Objects.requireNonNull(condition);
+        Predicate<PatientProf> previous = filter;
+        filter = previous == null ? condition::test : profile -> previous.test(profile) && condition.test(profile);
+        return this;
+    }
+
+    /**
+     * Sorts the results by a field, numerically for CO_PAY and alphabetically otherwise. Calling this again adds a
+     * further sort key.
+     * @param field Field to sort by, in ascending order
+     * @return this query
+     */
+    public ProfileQuery orderBy(ProfileField field) {
+        return orderBy(field, true);
+    }
+
+    /**
+     * Sorts the results by a field, numerically for CO_PAY and alphabetically otherwise. Calling this again adds a
+     * further sort key.
+     * @param field Field to sort by
+     * @param ascending true for ascending order, false for descending order
+     * @return this query
+     */
+    public ProfileQuery orderBy(ProfileField field, boolean ascending) {
+        Comparator<PatientProf> comparator = field == ProfileField.CO_PAY
+                ? Comparator.comparingDouble(PatientProf::getCoPay) : Comparator.comparing(field::get);
+        addOrder(ascending ? comparator : comparator.reversed());
+        sortKeys.add(new SortKey(field, ascending));
+        return this;
+    }
+
+    /**
+     * Sorts the results. Calling this again adds a further sort key.
+     * @param comparator Order of the results
+     * @return this query
+     */
+    public ProfileQuery orderBy(Comparator<? super PatientProf> comparator) {
+        Objects.requireNonNull(comparator);
+        addOrder(comparator);
+        otherOrder = true;
+        return this;
+    }
+
+    private void addOrder(Comparator<? super PatientProf> comparator) {
+        order = order == null ? comparator::compare : order.thenComparing(comparator);
+    }
+
+    /**
+     * @param limit Maximum number of results (after sorting)
+     * @return this query
+     */
+    public ProfileQuery limit(long limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * @param parallel true to run the query on all cores
+     * @return this query
+     */
+    public ProfileQuery parallel(boolean parallel) {
+        this.parallel = parallel;
+        return this;
+    }
+
+    /**
+     * Runs the query.
+     * @return a stream of the matching profiles, in insertion order unless sorted
+     */
+    public Stream<PatientProf> stream() {
+        ProfileSnapshot snapshot = database.snapshot(adminID, valueConditions, coPayRange);
+        Stream<PatientProf> results = snapshot.stream(slotFilter(), parallel);
+
+        if (filter != null)
+            results = results.filter(filter);
+        if (order != null)
+            results = results.sorted(order);
+        if (limit >= 0)
+            results = results.limit(limit);
+        return results;
+    }
+
+    /**
+     * @return a test of all the field conditions, or null if there are none
+     */
+    private ProfileSnapshot.SlotFilter slotFilter() {
+        ProfileSnapshot.SlotFilter[] tests = conditions.toArray(new ProfileSnapshot.SlotFilter[0]);
+        return tests.length == 0 ? null : (store, slot) -> {
+            for (ProfileSnapshot.SlotFilter test : tests)
+                if (!test.test(store, slot)) return false;
+            return true;
+        };
+    }
+
+    /**
+     * Runs the query.
+     * @return the matching profiles, in insertion order unless sorted
+     */
+    public List<PatientProf> list() {
+        return stream().collect(Collectors.toList());
+    }
+
+    /**
+     * Runs the query. If every condition is on an indexed field and there is no filter(), the profiles are counted
+     * from the indexes alone, without materializing any of them.
+     * @return the number of matching profiles
+     */
+    public long count() {
+        if (!otherConditions && filter == null) {
+            long count = database.count(adminID, valueConditions, coPayRange);
+            if (count >= 0)
+                return limit >= 0 ? Math.min(count, limit) : count;
+        }
+        return stream().count();
+    }
+
+    /**
+     * Runs the query without materializing any profile: the matching slots of a snapshot are found and sorted by
+     * reading only the fields which the conditions and orderBy() keys test, and the profiles are read one at a time
+     * when asked for. This suits views of large results which only show a few profiles at once. The query must not
+     * have a filter() or an orderBy(Comparator), which need whole profiles.
+     * @return the matching profiles, in insertion order unless sorted
+     * @throws IllegalStateException if the query has a filter() or an orderBy(Comparator)
+     */
+    public ProfileResultSet resultSet() {
+        if (filter != null || otherOrder)
+            throw new IllegalStateException("resultSet() can't run a query with filter() or orderBy(Comparator)");
+
+        ProfileSnapshot snapshot = database.snapshot(adminID, valueConditions, coPayRange);
+        ProfileStore.Frozen store = snapshot.store();
+        int[] slots = snapshot.slots(slotFilter());
+        if (!sortKeys.isEmpty())
+            slots = sort(store, slots);
+        if (limit >= 0 && limit < slots.length)
+            slots = Arrays.copyOf(slots, (int) limit);
+        return new ProfileResultSet(store, slots);
+    }
+
+    /**
+     * Sorts slots by the sort keys, reading each key once per slot rather than once per comparison. Like the sort
+     * of stream(), it is stable.
+     */
+    private int[] sort(ProfileStore.Frozen store, int[] slots) {
+        Comparator<Integer> comparator = null; // Compares positions in slots
+        for (SortKey key : sortKeys) {
+            Comparator<Integer> byKey;
+            if (key.field == ProfileField.CO_PAY) {
+                float[] values = new float[slots.length];
+                for (int i = 0; i < slots.length; i++)
+                    values[i] = store.getCoPay(slots[i]);
+                byKey = (a, b) -> Double.compare(values[a], values[b]);
+            } else {
+                String[] values = new String[slots.length];
+                for (int i = 0; i < slots.length; i++)
+                    values[i] = store.get(slots[i], key.field);
+                byKey = (a, b) -> values[a].compareTo(values[b]);
+            }
+            if (!key.ascending)
+                byKey = byKey.reversed();
+            comparator = comparator == null ? byKey : comparator.thenComparing(byKey);
+        }
+
+        Integer[] positions = new Integer[slots.length];
+        for (int i = 0; i < slots.length; i++)
+            positions[i] = i;
+        Arrays.sort(positions, comparator);
+
+        int[] sorted = new int[slots.length];
+        for (int i = 0; i < slots.length; i++)
+            sorted[i] = slots[positions[i]];
+        return sorted;
+    }
+
+    /**
+     * Runs the query, projecting each matching profile onto some of its fields.
+     * @param fields Fields to return
+     * @return one array per matching profile, holding the values of fields in the given order
+     */
+    public Stream<String[]> select(ProfileField... fields) {
+        ProfileField[] projection = fields.clone();
+        return stream().map(profile -> {
+            String[] row = new String[projection.length];
+            for (int i = 0; i < projection.length; i++)
+                row[i] = projection[i].get(profile);
+            return row;
+        });
+    }
+
+}
@@ -0,0 +1,45 @@
+/**
+ * Results of a ProfileQuery run by ProfileQuery.resultSet(): the matching profiles of a snapshot of the database, in
+ * query order, with random access by position. Nothing is materialized until asked for, so a view can show a window
+ * of a result of any size, e.g. the rows of a table scrolled into view.
+ * <p>
+ * Like a ProfileSnapshot, a result set is not changed by later inserts and deletes, and may be read by several
+ * threads at once without holding any lock.
+ */
+public final class ProfileResultSet {
+
+    private final ProfileStore.Frozen store;
+    private final int[] slots; // Slot of the profile at each position
+
+    ProfileResultSet(ProfileStore.Frozen store, int[] slots) {
+        this.store = store;
+        this.slots = slots;
+    }
+
+    /**
+     * @return number of profiles in the result
+     */
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * @param position Position of a profile in the result, from 0 to size() - 1
+     * @return the profile at that position, as the ProfileSnapshot it was taken from would yield it
+     * @throws IndexOutOfBoundsException if position is out of range
+     */
+    public PatientProf get(int position) {
+        return store.get(slots[position]);
+    }
+
+    /**
+     * @param position Position of a profile in the result, from 0 to size() - 1
+     * @param field Field to read
+     * @return the value of the field, as it is written to the database file
+     * @throws IndexOutOfBoundsException if position is out of range
+     */
+    public String get(int position, ProfileField field) {
+        return store.get(slots[position], field);
+    }
+
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Where each row of a text database file starts, with its admin ID and the hash of its (adminID, lastName) key: all
+ * that the LAZY backend needs to open a file without decoding its profiles. Found in one pass over the file, which
+ * parses only the first three fields of each row, and saved next to it as (database file).idx, so that the next
+ * open of the unchanged file reads the index instead.
+ */
+final class ProfileRowIndex {
+
+    private static final int MAGIC = 0x50504958; // "PPIX"
+    private static final int VERSION = 1;
+
+    private long[] offsets = new long[1024];
+    private String[] adminIDs = new String[1024];
+    private int[] keyHashes = new int[1024];
+    private int size = 0;
+    private long bytesRead = 0; // Bytes of the database file or index file read to build this index
+
+    private ProfileRowIndex() {
+    }
+
+    /**
+     * Reads the row index of a database file from its index file, or builds it by scanning the file if the index
+     * file is missing or older than the database file.
+     * @param fileName Database file
+     * @param channel Channel open on the database file
+     * @param dictionary Dictionary to intern admin IDs in
+     * @param persist true to save a built index to the index file
+     * @return the row index of the file as it is now
+     * @throws IOException if the database file cannot be read
+     */
+    static ProfileRowIndex open(String fileName, FileChannel channel, StringDictionary dictionary, boolean persist)
+            throws IOException {
+        Path indexFile = Paths.get(fileName + ".idx");
+        long fileSize = channel.size();
+        long lastModified = Files.getLastModifiedTime(Paths.get(fileName)).toMillis();
+
+        if (persist && Files.exists(indexFile)) {
+            try {
+                ProfileRowIndex rows = read(indexFile, fileSize, lastModified, dictionary);
+                if (rows != null) return rows;
+            } catch (IOException | RuntimeException e) {
+                // A damaged index file is just rebuilt, e.g. one with a negative count or an admin ID out of range
+                System.out.println("Ignoring unreadable row index: " + indexFile);
+            }
+        }
+
+        ProfileRowIndex rows = scan(channel, dictionary);
+        if (persist) {
+            try {
+                SnapshotWriter.write(indexFile, out -> rows.write(out, fileSize, lastModified));
+            } catch (IOException e) {
+                System.out.println("Error writing row index: " + indexFile);
+                e.printStackTrace();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Finds the rows of a text database file, stopping at the first blank line as the line-by-line loader does.
+     */
+    private static ProfileRowIndex scan(FileChannel channel, StringDictionary dictionary) throws IOException {
+        ProfileRowIndex rows = new ProfileRowIndex();
+        byte[] buf = new byte[1 << 16];
+        int length = 0; // Bytes in buf
+        long bufStart = 0; // File offset of buf[0]
+        boolean eof = false;
+
+        while (true) {
+            // Index every complete row in buf, and the last row once the whole file has been read
+            int lineStart = 0;
+            while (lineStart < length) {
+                int newline = indexOf(buf, (byte) '\n', lineStart, length);
+                if (newline < 0 && !eof) break;
+                int lineEnd = newline < 0 ? length : newline;
+                if (!rows.addRow(buf, lineStart, lineEnd, bufStart + lineStart, dictionary)) {
+                    rows.bytesRead = bufStart + length;
+                    return rows;
+                }
+                lineStart = lineEnd + 1;
+            }
+            if (eof) {
+                rows.bytesRead = bufStart + length;
+                return rows;
+            }
+
+            // Move the partial row to the front and read more after it
+            System.arraycopy(buf, lineStart, buf, 0, length - lineStart);
+            bufStart += lineStart;
+            length -= lineStart;
+            if (length == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            int n = channel.read(ByteBuffer.wrap(buf, length, buf.length - length), bufStart + length);
+            if (n < 0) eof = true;
+            else length += n;
+        }
+    }
+
+    private static int indexOf(byte[] buf, byte b, int from, int to) {
+        for (int i = from; i < to; i++)
+            if (buf[i] == b)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Indexes the row in buf[start, end) found at the given file offset.
+     * @return false if the row is blank, which ends the database
+     */
+    private boolean addRow(byte[] buf, int start, int end, long offset, StringDictionary dictionary)
+            throws IOException {
+        boolean blank = true;
+        for (int i = start; i < end && blank; i++)
+            blank = (buf[i] & 0xff) <= ' ';
+        if (blank) return false;
+
+        int tab1 = indexOf(buf, (byte) '\t', start, end);
+        int tab2 = tab1 < 0 ? -1 : indexOf(buf, (byte) '\t', tab1 + 1, end);
+        int tab3 = tab2 < 0 ? -1 : indexOf(buf, (byte) '\t', tab2 + 1, end);
+        if (tab3 < 0)
+            throw new IOException("Row with fewer than 12 fields at offset " + offset);
+
+        String adminID = dictionary.intern(new String(buf, start, tab1 - start, StandardCharsets.UTF_8));
+        String lastName = new String(buf, tab2 + 1, tab3 - tab2 - 1, StandardCharsets.UTF_8);
+        add(offset, adminID, KeyIndex.hash(adminID, lastName));
+        return true;
+    }
+
+    private void add(long offset, String adminID, int keyHash) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, size * 2);
+            adminIDs = Arrays.copyOf(adminIDs, size * 2);
+            keyHashes = Arrays.copyOf(keyHashes, size * 2);
+        }
+        offsets[size] = offset;
+        adminIDs[size] = adminID;
+        keyHashes[size++] = keyHash;
+    }
+
+    /**
+     * Writes the index, tagged with the size and modification time of the database file it describes.
+     */
+    private void write(OutputStream out, long fileSize, long lastModified) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeLong(fileSize);
+        data.writeLong(lastModified);
+        data.writeInt(size);
+
+        // Admin IDs are few, so each row refers to one by its number
+        HashMap<String, Integer> codes = new HashMap<>();
+        ArrayList<String> admins = new ArrayList<>();
+        for (int i = 0; i < size; i++)
+            if (codes.putIfAbsent(adminIDs[i], admins.size()) == null)
+                admins.add(adminIDs[i]);
+        data.writeInt(admins.size());
+        for (String admin : admins)
+            data.writeUTF(admin);
+
+        for (int i = 0; i < size; i++) {
+            data.writeLong(offsets[i]);
+            data.writeInt(codes.get(adminIDs[i]));
+            data.writeInt(keyHashes[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * @return the index saved in indexFile, or null if it describes another version of the database file
+     */
+    private static ProfileRowIndex read(Path indexFile, long fileSize, long lastModified,
+                                        StringDictionary dictionary) throws IOException {
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile),
+                1 << 16))) {
+            if (data.readInt() != MAGIC || data.readInt() != VERSION
+                    || data.readLong() != fileSize || data.readLong() != lastModified)
+                return null;
+
+            int rows = data.readInt();
+            if (rows < 0)
+                throw new IOException("Negative row count: " + rows);
+            String[] admins = new String[data.readInt()];
+            for (int i = 0; i < admins.length; i++)
+                admins[i] = dictionary.intern(data.readUTF());
+
+            ProfileRowIndex index = new ProfileRowIndex();
+            index.offsets = new long[Math.max(1, rows)];
+            index.adminIDs = new String[Math.max(1, rows)];
+            index.keyHashes = new int[Math.max(1, rows)];
+            for (int i = 0; i < rows; i++) {
+                long offset = data.readLong();
+                if (offset < (i == 0 ? 0 : index.offsets[i - 1]) || offset >= fileSize)
+                    throw new IOException("Row offset out of order or past the end of the file: " + offset);
+                index.add(offset, admins[data.readInt()], data.readInt());
+            }
+            index.bytesRead = Files.size(indexFile);
+            return index;
+        }
+    }
+
+    /**
+     * @return the number of rows
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the file offset at which each row starts, in file order; may be longer than size()
+     */
+    long[] offsets() {
+        return offsets;
+    }
+
+    /**
+     * @param row Row number
+     * @return the row's admin ID
+     */
+    String adminID(int row) {
+        return adminIDs[row];
+    }
+
+    /**
+     * @param row Row number
+     * @return the hash of the row's key, as computed by KeyIndex.hash()
+     */
+    int keyHash(int row) {
+        return keyHashes[row];
+    }
+
+    /**
+     * @return the bytes read to build this index: the scanned part of the database file, or the index file
+     */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+}
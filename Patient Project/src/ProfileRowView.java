@@ -0,0 +1,213 @@
+import com.med.MedCond;
+
+/**
+ * A row of a store which holds profiles encoded rather than as objects (see ColumnarProfileStore and
+ * OffHeapProfileStore), seen as a PatientProf. Getters decode the row and update methods re-encode it (and notify the
+ * database just like a stored PatientProf would). A view is only valid until the store next renumbers its slots.
+ * Views take the database's read lock to read and its write lock to write, so they may be used from any thread.
+ */
+final class ProfileRowView extends PatientProf {
+
+    /**
+     * Access to the encoded rows of a store.
+     */
+    interface Rows {
+
+        /**
+         * @return the value of a field of the row in a slot
+         */
+        String get(int slot, ProfileField field);
+
+        /**
+         * @return the copay of the row in a slot
+         */
+        float getCoPay(int slot);
+
+        /**
+         * Writes a field of the row in a slot.
+         * @return the field's previous value
+         */
+        String set(int slot, ProfileField field, String value);
+
+        /**
+         * Writes the copay of the row in a slot.
+         */
+        void setCoPay(int slot, float coPay);
+
+        /**
+         * @return true if the slot holds a live row
+         */
+        boolean isLive(int slot);
+
+        /**
+         * @return a number which changes whenever the store renumbers its slots, invalidating outstanding views
+         */
+        int generation();
+    }
+
+    private final Rows rows;
+    private final int generation;
+
+    /**
+     * @param rows Store holding the row
+     * @param database Database the store belongs to
+     * @param slot Slot of the row
+     */
+    ProfileRowView(Rows rows, PatientProfDB database, int slot) {
+        super(null, null, null, null, null, 0, null, null, new MedCondView());
+        this.rows = rows;
+        this.generation = rows.generation();
+        this.slot = slot;
+        this.database = database;
+    }
+
+    /**
+     * @param store A store
+     * @return true if this is a view of a row of store which is still valid
+     */
+    boolean isCurrent(Rows store) {
+        return store == rows && generation == rows.generation();
+    }
+
+    /**
+     * @throws IllegalStateException if slots were renumbered since this view was created
+     */
+    private void checkGeneration() {
+        if (generation != rows.generation())
+            throw new IllegalStateException("Profile view is stale: the database was compacted or reloaded");
+    }
+
+    /**
+     * @throws IllegalStateException if slots were renumbered since this view was created, or its row was deleted
+     */
+    private void checkLive() {
+        checkGeneration();
+        if (!rows.isLive(slot))
+            throw new IllegalStateException("Profile was deleted from the database");
+    }
+
+    private String read(ProfileField field) {
+        database.readLock().lock();
+        try {
+            checkGeneration();
+            return rows.get(slot, field);
+        } finally {
+            database.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes a field and notifies the database, like the update methods of a stored PatientProf.
+     */
+    private void write(ProfileField field, String value) {
+        database.awaitLoad();
+        database.writeLock().lock();
+        try {
+            checkLive();
+            String oldValue = rows.set(slot, field, value);
+            database.profileUpdated(this, field, oldValue);
+        } finally {
+            database.writeLock().unlock();
+        }
+    }
+
+    @Override public String getAdminID() { return read(ProfileField.ADMIN_ID); }
+    @Override public String getFirstName() { return read(ProfileField.FIRST_NAME); }
+    @Override public String getLastName() { return read(ProfileField.LAST_NAME); }
+    @Override public String getAddress() { return read(ProfileField.ADDRESS); }
+    @Override public String getPhone() { return read(ProfileField.PHONE); }
+    @Override public String getInsuType() { return read(ProfileField.INSU_TYPE); }
+    @Override public String getPatientType() { return read(ProfileField.PATIENT_TYPE); }
+
+    @Override
+    public float getCoPay() {
+        database.readLock().lock();
+        try {
+            checkGeneration();
+            return rows.getCoPay(slot);
+        } finally {
+            database.readLock().unlock();
+        }
+    }
+
+    @Override public void updateFirstName(String firstName) { write(ProfileField.FIRST_NAME, firstName); }
+    @Override public void updateLastName(String lastName) { write(ProfileField.LAST_NAME, lastName); }
+    @Override public void updateAddress(String address) { write(ProfileField.ADDRESS, address); }
+    @Override public void updatePhone(String phone) { write(ProfileField.PHONE, phone); }
+    @Override public void updateInsuType(String insuType) { write(ProfileField.INSU_TYPE, insuType); }
+    @Override public void updatePatientType(String patientType) { write(ProfileField.PATIENT_TYPE, patientType); }
+
+    @Override
+    public void updateCoPay(float coPay) {
+        database.awaitLoad();
+        database.writeLock().lock();
+        try {
+            checkLive();
+            String oldValue = String.valueOf(rows.getCoPay(slot));
+            rows.setCoPay(slot, coPay);
+            database.profileUpdated(this, ProfileField.CO_PAY, oldValue);
+        } finally {
+            database.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the values of medCondInfo into the row, all four or (if the view is stale or its row deleted) none.
+     * Unlike with a stored PatientProf, medCondInfo itself does not become part of the profile; later updates go
+     * through getMedCondInfo().
+     */
+    @Override
+    public void updateMedCondInfo(MedCond medCondInfo) {
+        database.awaitLoad();
+        database.writeLock().lock();
+        try {
+            checkLive(); // Stores don't renumber slots in the middle of an update, so the writes below all succeed
+            write(ProfileField.MD_CONTACT, medCondInfo.getMdContact());
+            write(ProfileField.MD_PHONE, medCondInfo.getMdPhone());
+            write(ProfileField.ALG_TYPE, medCondInfo.getAlgType());
+            write(ProfileField.ILL_TYPE, medCondInfo.getIllType());
+        } finally {
+            database.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The medical condition fields of the row seen as a MedCond. Its owner is always the view of the row (which
+     * overrides updateMedCondInfo() so as to keep it), through which it reads and writes, and which forwards
+     * updates to the database.
+     */
+    private static final class MedCondView extends MedCond {
+
+        MedCondView() {
+            super(null, null, null, null);
+        }
+
+        private ProfileRowView view() {
+            return (ProfileRowView) getOwner();
+        }
+
+        private void write(int field, String value) {
+            ProfileRowView view = view();
+            view.database.awaitLoad();
+            view.database.writeLock().lock();
+            try {
+                view.checkLive();
+                String oldValue = view.rows.set(view.slot, ProfileField.ofMedCond(field), value);
+                view.database.profileUpdated(view, ProfileField.ofMedCond(field), oldValue);
+            } finally {
+                view.database.writeLock().unlock();
+            }
+        }
+
+        @Override public String getMdContact() { return view().read(ProfileField.MD_CONTACT); }
+        @Override public String getMdPhone() { return view().read(ProfileField.MD_PHONE); }
+        @Override public String getAlgType() { return view().read(ProfileField.ALG_TYPE); }
+        @Override public String getIllType() { return view().read(ProfileField.ILL_TYPE); }
+
+        @Override public void updateMdContact(String mdContact) { write(MD_CONTACT, mdContact); }
+        @Override public void updateMdPhone(String mdPhone) { write(MD_PHONE, mdPhone); }
+        @Override public void updateAlgType(String algType) { write(ALG_TYPE, algType); }
+        @Override public void updateIllType(String illType) { write(ILL_TYPE, illType); }
+    }
+
+}
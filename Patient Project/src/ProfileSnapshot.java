@@ -0,0 +1,161 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Point-in-time view of the profiles in a PatientProfDB, or of those created by one admin, in insertion order.
+ * Inserts and deletes made after the snapshot was taken never cause a profile to be skipped or returned twice.
+ * A snapshot may be iterated any number of times, by several threads at once, without holding any lock, and splits
+ * for parallel streams.
+ * <p>
+ * With every backend the snapshot yields detached copies of the profiles as they were when it was taken, so it shows
+ * none of their later updates; to update a profile, look it up with PatientProfDB.findProfile().
+ */
+public final class ProfileSnapshot implements Iterable<PatientProf> {
+
+    // Ranges smaller than this are not split further, as the hand-off would cost more than walking them
+    private static final int MIN_SPLIT = 1024;
+
+    /**
+     * Condition on a slot of the snapshot, tested before the profile in it is materialized.
+     */
+    interface SlotFilter {
+        boolean test(ProfileStore.Frozen store, int slot);
+    }
+
+    private final ProfileStore.Frozen store;
+    private final int[] slots; // Slots to walk in ascending order, or null to walk all slots of store
+    private final int size;
+
+    ProfileSnapshot(ProfileStore.Frozen store, int[] slots) {
+        this.store = store;
+        this.slots = slots;
+        size = slots == null ? store.size() : slots.length;
+    }
+
+    /**
+     * @return number of profiles in the snapshot
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the snapshot holds no profiles
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<PatientProf> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    @Override
+    public Spliterator<PatientProf> spliterator() {
+        return new SlotSpliterator(0, slots == null ? store.end() : slots.length, null);
+    }
+
+    /**
+     * @return a sequential stream of the profiles in insertion order
+     */
+    public Stream<PatientProf> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * @return a parallel stream of the profiles
+     */
+    public Stream<PatientProf> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
+
+    /**
+     * @param filter Condition a slot must meet for its profile to be materialized and streamed
+     * @param parallel true for a parallel stream
+     * @return a stream of the profiles meeting the condition
+     */
+    Stream<PatientProf> stream(SlotFilter filter, boolean parallel) {
+        return StreamSupport.stream(new SlotSpliterator(0, slots == null ? store.end() : slots.length, filter),
+                parallel);
+    }
+
+    /**
+     * @param filter Condition a slot must meet, or null to accept every live slot
+     * @return the live slots meeting the condition, in ascending order
+     */
+    int[] slots(SlotFilter filter) {
+        int end = slots == null ? store.end() : slots.length;
+        int[] matching = new int[size];
+        int count = 0;
+        for (int i = 0; i < end; i++) {
+            int slot = slots == null ? i : slots[i];
+            if (store.isLive(slot) && (filter == null || filter.test(store, slot)))
+                matching[count++] = slot;
+        }
+        return count == matching.length ? matching : Arrays.copyOf(matching, count);
+    }
+
+    /**
+     * @return the frozen store the snapshot reads from
+     */
+    ProfileStore.Frozen store() {
+        return store;
+    }
+
+    /**
+     * Walks a range of positions, each a slot of store (or an index into slots), skipping tombstones and slots
+     * rejected by the filter.
+     */
+    private final class SlotSpliterator implements Spliterator<PatientProf> {
+        private int i;
+        private final int end;
+        private final SlotFilter filter; // null to accept every live slot
+
+        SlotSpliterator(int i, int end, SlotFilter filter) {
+            this.i = i;
+            this.end = end;
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super PatientProf> action) {
+            while (i < end) {
+                int slot = slots == null ? i : slots[i];
+                i++;
+                if (store.isLive(slot) && (filter == null || filter.test(store, slot))) {
+                    action.accept(store.get(slot));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<PatientProf> trySplit() {
+            int mid = (i + end) >>> 1;
+            if (mid - i < MIN_SPLIT) return null;
+
+            Spliterator<PatientProf> prefix = new SlotSpliterator(i, mid, filter);
+            i = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            // Exact for an admin's unfiltered slots; an upper bound when tombstones or filtered slots are skipped
+            return end - i;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE | (slots != null && filter == null ? SIZED | SUBSIZED : 0);
+        }
+    }
+
+}
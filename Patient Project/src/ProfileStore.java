@@ -0,0 +1,146 @@
+/**
+ * Slot-addressed storage backend of a PatientProfDB. Profiles occupy slots in insertion order; deleting a profile
+ * leaves a tombstone in its slot until the next compaction, which renumbers the remaining slots without reordering
+ * them. Slot numbers are what the database's indexes refer to.
+ */
+interface ProfileStore {
+
+    /**
+     * Appends a profile in the next free slot.
+     * @param profile Profile to store
+     * @return the slot the profile was stored in
+     */
+    int add(PatientProf profile);
+
+    /**
+     * @param slot Slot to read
+     * @return the live profile in the slot (bound to the database, so its updates are indexed and journaled),
+     * or null if the slot holds a tombstone
+     */
+    PatientProf get(int slot);
+
+    /**
+     * Reads one field of the profile in a slot, without materializing the profile where the backend allows it.
+     * @param slot Slot holding a live profile
+     * @param field Field to read
+     * @return the field's value, as it is written to the database file
+     */
+    String get(int slot, ProfileField field);
+
+    /**
+     * @param slot Slot holding a live profile
+     * @return the profile's copay
+     */
+    float getCoPay(int slot);
+
+    /**
+     * @param slot Slot to check
+     * @return true if the slot holds a live profile
+     */
+    boolean isLive(int slot);
+
+    /**
+     * @param profile Profile returned by get()
+     * @return true if the profile is still live in the slot it was returned from
+     */
+    boolean contains(PatientProf profile);
+
+    /**
+     * Called holding the write lock before fields of a live profile returned by get() change, so that the store can
+     * keep them as they are for its snapshots.
+     * @param profile The profile about to change
+     */
+    default void beforeUpdate(PatientProf profile) {
+    }
+
+    /**
+     * Called after a field of a live profile returned by get() changed, before the indexes are updated.
+     * @param profile The updated profile
+     */
+    default void updated(PatientProf profile) {
+    }
+
+    /**
+     * Leaves a tombstone in a slot.
+     * @param slot Slot holding a live profile
+     */
+    void remove(int slot);
+
+    /**
+     * @return one past the highest slot in use; all live profiles are in slots [0, end())
+     */
+    int end();
+
+    /**
+     * @return number of live profiles
+     */
+    int size();
+
+    /**
+     * @return true if enough slots are wasted on tombstones for compact() to be worthwhile
+     */
+    boolean wantsCompaction();
+
+    /**
+     * Squeezes out tombstones, preserving the order of the live profiles.
+     * @return array mapping each old slot below the old end() to its new slot, or to -1 for tombstones
+     */
+    int[] compact();
+
+    /**
+     * Removes all profiles, unbinding them from the database.
+     */
+    void clear();
+
+    /**
+     * Captures the current contents of the store. The store copies its arrays before it next changes them in place,
+     * and the profiles it holds as objects before they change (see ProfileVersions), so taking a snapshot costs
+     * little and later changes cost at most one copy per snapshot.
+     * @return a snapshot which may be read without locking while the store goes on changing
+     */
+    Frozen freeze();
+
+    /**
+     * Read-only, point-in-time contents of a ProfileStore.
+     */
+    interface Frozen {
+
+        /**
+         * @param slot Slot to check
+         * @return true if the slot held a live profile when the snapshot was taken
+         */
+        boolean isLive(int slot);
+
+        /**
+         * @param slot Slot to read
+         * @return a detached copy of the profile the slot held, as it was when the snapshot was taken, or null if the
+         * slot held a tombstone
+         */
+        PatientProf get(int slot);
+
+        /**
+         * Reads one field without materializing the profile where the backend allows it.
+         * @param slot Slot which held a live profile
+         * @param field Field to read
+         * @return the field's value, as it is written to the database file
+         */
+        String get(int slot, ProfileField field);
+
+        /**
+         * @param slot Slot which held a live profile
+         * @return the profile's copay
+         */
+        float getCoPay(int slot);
+
+        /**
+         * @return one past the highest slot in use when the snapshot was taken
+         */
+        int end();
+
+        /**
+         * @return number of live profiles when the snapshot was taken
+         */
+        int size();
+    }
+
+}
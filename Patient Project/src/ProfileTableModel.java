@@ -0,0 +1,107 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.table.AbstractTableModel;
+
+/**
+ * Table model of a ProfileResultSet, with a column per ProfileField. Rows are read from the result set a page at a
+ * time, only when the table asks for them (i.e. when they are scrolled into view), and a few recently shown pages
+ * are kept so that repainting doesn't read them again. Sorting and filtering are left to the query which produced
+ * the result set.
+ * <p>
+ * The result set reads a snapshot of the database, which has the database keep a copy of each profile changed since
+ * (see ProfileVersions). Show no results once the table is no longer shown, so that the snapshot can be dropped.
+ */
+final class ProfileTableModel extends AbstractTableModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int PAGE_ROWS = 128;
+    private static final int CACHED_PAGES = 16;
+    private static final ProfileField[] FIELDS = ProfileField.values();
+
+    private final String[] columnNames;
+    private ProfileResultSet results;
+    private int sortColumn = -1; // Column the results are sorted by, or -1 if unsorted
+    private boolean ascending = true;
+
+    // Recently read pages of rows, least recently used first, keyed by page number
+    private final LinkedHashMap<Integer, String[][]> pages = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+            return size() > CACHED_PAGES;
+        }
+    };
+
+    /**
+     * @param columnNames Name of each column, in ProfileField order (so column i shows ProfileField.of(i))
+     */
+    ProfileTableModel(String[] columnNames) {
+        this.columnNames = columnNames.clone();
+    }
+
+    /**
+     * Shows other results.
+     * @param results Rows to show, or null to show none
+     * @param sortColumn Column the results are sorted by, or -1 if unsorted
+     * @param ascending true if they are sorted in ascending order
+     */
+    void setResults(ProfileResultSet results, int sortColumn, boolean ascending) {
+        this.results = results;
+        this.sortColumn = sortColumn;
+        this.ascending = ascending;
+        pages.clear();
+        fireTableStructureChanged();
+    }
+
+    /**
+     * @param row A row of the table
+     * @return the profile shown in the row
+     */
+    PatientProf getProfile(int row) {
+        return results.get(row);
+    }
+
+    @Override
+    public int getRowCount() {
+        return results == null ? 0 : results.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return FIELDS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        if (column != sortColumn) return columnNames[column];
+        return columnNames[column] + (ascending ? " \u25B2" : " \u25BC");
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        int page = row / PAGE_ROWS;
+        String[][] rows = pages.get(page);
+        if (rows == null) {
+            rows = readPage(page);
+            pages.put(page, rows);
+        }
+        return rows[row - page * PAGE_ROWS][column];
+    }
+
+    /**
+     * Reads the rows of a page, materializing each profile once.
+     */
+    private String[][] readPage(int page) {
+        int first = page * PAGE_ROWS;
+        String[][] rows = new String[Math.min(PAGE_ROWS, results.size() - first)][];
+        for (int i = 0; i < rows.length; i++) {
+            PatientProf profile = results.get(first + i);
+            String[] row = new String[FIELDS.length];
+            for (int column = 0; column < FIELDS.length; column++)
+                row[column] = FIELDS[column].get(profile);
+            rows[i] = row;
+        }
+        return rows;
+    }
+
+}
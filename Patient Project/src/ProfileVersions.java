@@ -0,0 +1,109 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copy-on-write of the mutable PatientProf objects a store holds (every profile of the OBJECT backend, and those the
+ * LAZY backend holds in memory), which keeps its snapshots consistent. Snapshots taken between two changes share an
+ * Epoch; before a profile changes, or is deleted, a detached copy of it is put in every epoch still in use, and a
+ * snapshot reads a profile from its epoch's copy if there is one.
+ * <p>
+ * Both sides synchronize on the profile: the copy is made and put in the epochs, and later the change is made (see
+ * PatientProfDB.updateProfile()), each synchronized on it, so that a reader synchronized on it sees either the
+ * profile untouched or its copy.
+ */
+final class ProfileVersions {
+
+    /**
+     * Profiles as they were when a group of snapshots was taken, for those which changed since.
+     */
+    static final class Epoch {
+        // Keyed by identity, as PatientProf doesn't override equals()
+        private final ConcurrentHashMap<PatientProf, PatientProf> copies = new ConcurrentHashMap<>();
+
+        /**
+         * @param profile Profile the snapshot holds
+         * @return a detached copy of the profile as it was when the snapshot was taken
+         */
+        PatientProf get(PatientProf profile) {
+            synchronized (profile) {
+                return version(profile).detachedCopy();
+            }
+        }
+
+        /**
+         * @param profile Profile the snapshot holds
+         * @param field Field to read
+         * @return the field's value when the snapshot was taken
+         */
+        String get(PatientProf profile, ProfileField field) {
+            synchronized (profile) {
+                return field.get(version(profile));
+            }
+        }
+
+        /**
+         * @param profile Profile the snapshot holds
+         * @return the profile's copay when the snapshot was taken
+         */
+        float getCoPay(PatientProf profile) {
+            synchronized (profile) {
+                return version(profile).getCoPay();
+            }
+        }
+
+        private PatientProf version(PatientProf profile) {
+            PatientProf copy = copies.get(profile);
+            return copy != null ? copy : profile;
+        }
+    }
+
+    // Epochs which snapshots may still read, weakly so that they go once their snapshots do. Guarded by this.
+    private final ArrayList<WeakReference<Epoch>> epochs = new ArrayList<>();
+    private Epoch current; // Epoch of the snapshots taken since the last change, or null
+
+    /**
+     * Called by freeze(), which may run in several threads at once under the read lock.
+     * @return the epoch for a snapshot taken now
+     */
+    synchronized Epoch freeze() {
+        if (current == null) {
+            current = new Epoch();
+            epochs.add(new WeakReference<>(current));
+        }
+        return current;
+    }
+
+    /**
+     * Called holding the write lock before a profile changes or is detached, so that the snapshots taken so far go
+     * on seeing it as it is now.
+     * @param profile Profile about to change
+     */
+    void preserve(PatientProf profile) {
+        synchronized (profile) {
+            synchronized (this) {
+                current = null; // Snapshots taken from now on see the change
+                PatientProf copy = null;
+                for (Iterator<WeakReference<Epoch>> i = epochs.iterator(); i.hasNext(); ) {
+                    Epoch epoch = i.next().get();
+                    if (epoch == null) {
+                        i.remove();
+                        continue;
+                    }
+                    if (copy == null) copy = profile.detachedCopy();
+                    epoch.copies.putIfAbsent(profile, copy); // An earlier copy is older, so it stays
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if some snapshot may still read an epoch, so that changes must be preserved
+     */
+    synchronized boolean inUse() {
+        epochs.removeIf(epoch -> epoch.get() == null);
+        return !epochs.isEmpty();
+    }
+
+}
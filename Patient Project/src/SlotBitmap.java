@@ -0,0 +1,347 @@
+import java.util.Arrays;
+
+/**
+ * Compressed set of slots in the manner of a Roaring bitmap. Slots are grouped by their high 16 bits into
+ * containers, each holding the low 16 bits either as a sorted array, while there are few of them, or as a 65536-bit
+ * bitmap (8 KB) once an array would be larger. Intersections, unions and their sizes are computed container by
+ * container, a word of 64 slots at a time where both sides are bitmaps.
+ */
+final class SlotBitmap {
+
+    // Containers holding more slots than this are kept as bitmaps, which are smaller from that size on
+    private static final int MAX_ARRAY_SIZE = 4096;
+
+    private int[] keys = new int[4]; // High 16 bits of the slots in each container, ascending
+    private Container[] containers = new Container[4];
+    private int size = 0; // Number of containers
+    private int cardinality = 0; // Number of slots
+
+    /**
+     * The slots sharing their high 16 bits.
+     */
+    private static final class Container {
+        private char[] array; // Low 16 bits in ascending order, or null in bitmap form
+        private long[] words; // Bit i set if low bits i are present, or null in array form
+        private int cardinality;
+
+        Container(char[] array, long[] words, int cardinality) {
+            this.array = array;
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        Container copy() {
+            return new Container(array == null ? null : Arrays.copyOf(array, cardinality),
+                    words == null ? null : words.clone(), cardinality);
+        }
+
+        boolean contains(char low) {
+            return words != null ? (words[low >>> 6] & (1L << low)) != 0
+                    : Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+        }
+
+        boolean add(char low) {
+            if (words != null) {
+                long bit = 1L << low;
+                if ((words[low >>> 6] & bit) != 0) return false;
+                words[low >>> 6] |= bit;
+                cardinality++;
+                return true;
+            }
+
+            // Slots are mostly added in ascending order, so check the end before searching
+            int i = cardinality == 0 || array[cardinality - 1] < low ? -cardinality - 1
+                    : Arrays.binarySearch(array, 0, cardinality, low);
+            if (i >= 0) return false;
+            if (cardinality == MAX_ARRAY_SIZE) {
+                toWords();
+                return add(low);
+            }
+
+            i = -i - 1;
+            if (cardinality == array.length)
+                array = Arrays.copyOf(array, Math.min(MAX_ARRAY_SIZE, Math.max(4, cardinality * 2)));
+            System.arraycopy(array, i, array, i + 1, cardinality - i);
+            array[i] = low;
+            cardinality++;
+            return true;
+        }
+
+        boolean remove(char low) {
+            if (words != null) {
+                long bit = 1L << low;
+                if ((words[low >>> 6] & bit) == 0) return false;
+                words[low >>> 6] &= ~bit;
+                // Switch back only well below the limit, so that slots added and removed at the limit don't make
+                // the container convert back and forth
+                if (--cardinality <= MAX_ARRAY_SIZE / 2)
+                    toArray();
+                return true;
+            }
+
+            int i = Arrays.binarySearch(array, 0, cardinality, low);
+            if (i < 0) return false;
+            System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+            cardinality--;
+            return true;
+        }
+
+        private void toWords() {
+            words = new long[1 << 10];
+            for (int i = 0; i < cardinality; i++)
+                words[array[i] >>> 6] |= 1L << array[i];
+            array = null;
+        }
+
+        private void toArray() {
+            array = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < words.length; w++)
+                for (long word = words[w]; word != 0; word &= word - 1)
+                    array[n++] = (char) (w << 6 | Long.numberOfTrailingZeros(word));
+            words = null;
+        }
+
+        /**
+         * @return a new container holding the low bits in both this and other, or null if there are none
+         */
+        Container and(Container other) {
+            if (words != null && other.words != null) {
+                long[] result = new long[words.length];
+                int n = 0;
+                for (int w = 0; w < words.length; w++)
+                    n += Long.bitCount(result[w] = words[w] & other.words[w]);
+                if (n == 0) return null;
+                Container container = new Container(null, result, n);
+                if (n <= MAX_ARRAY_SIZE)
+                    container.toArray();
+                return container;
+            }
+
+            Container small = array != null ? this : other, large = small == this ? other : this;
+            char[] result = new char[small.cardinality];
+            int n = 0;
+            for (int i = 0; i < small.cardinality; i++)
+                if (large.contains(small.array[i]))
+                    result[n++] = small.array[i];
+            return n == 0 ? null : new Container(result, null, n);
+        }
+
+        /**
+         * @return the number of low bits in both this and other
+         */
+        int andCardinality(Container other) {
+            int n = 0;
+            if (words != null && other.words != null) {
+                for (int w = 0; w < words.length; w++)
+                    n += Long.bitCount(words[w] & other.words[w]);
+                return n;
+            }
+
+            Container small = array != null ? this : other, large = small == this ? other : this;
+            for (int i = 0; i < small.cardinality; i++)
+                if (large.contains(small.array[i]))
+                    n++;
+            return n;
+        }
+
+        /**
+         * @return a new container holding the low bits in this or other
+         */
+        Container or(Container other) {
+            if (array != null && other.array != null && cardinality + other.cardinality <= MAX_ARRAY_SIZE) {
+                char[] result = new char[cardinality + other.cardinality];
+                int i = 0, j = 0, n = 0;
+                while (i < cardinality && j < other.cardinality) {
+                    if (array[i] < other.array[j]) result[n++] = array[i++];
+                    else if (array[i] > other.array[j]) result[n++] = other.array[j++];
+                    else {
+                        result[n++] = array[i++];
+                        j++;
+                    }
+                }
+                while (i < cardinality) result[n++] = array[i++];
+                while (j < other.cardinality) result[n++] = other.array[j++];
+                return new Container(result, null, n);
+            }
+
+            Container base = words != null ? this : other, rest = base == this ? other : this;
+            Container result = base.copy();
+            if (result.words == null)
+                result.toWords();
+            if (rest.words != null) {
+                int n = 0;
+                for (int w = 0; w < result.words.length; w++)
+                    n += Long.bitCount(result.words[w] |= rest.words[w]);
+                result.cardinality = n;
+            } else {
+                for (int i = 0; i < rest.cardinality; i++)
+                    result.add(rest.array[i]);
+            }
+            return result;
+        }
+
+        /**
+         * Writes the slots of this container, in ascending order, to out from position n.
+         * @return the position after the last slot written
+         */
+        int toSlots(int high, int[] out, int n) {
+            if (array != null) {
+                for (int i = 0; i < cardinality; i++)
+                    out[n++] = high << 16 | array[i];
+            } else {
+                for (int w = 0; w < words.length; w++)
+                    for (long word = words[w]; word != 0; word &= word - 1)
+                        out[n++] = high << 16 | w << 6 | Long.numberOfTrailingZeros(word);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * @return the number of slots in this set
+     */
+    int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * @param slot A slot
+     * @return true if slot is in this set
+     */
+    boolean contains(int slot) {
+        int i = Arrays.binarySearch(keys, 0, size, slot >>> 16);
+        return i >= 0 && containers[i].contains((char) slot);
+    }
+
+    /**
+     * @param slot Slot to add to this set
+     */
+    void add(int slot) {
+        int high = slot >>> 16;
+        // Slots are mostly added in ascending order, so check the last container before searching
+        int i = size > 0 && keys[size - 1] == high ? size - 1 : Arrays.binarySearch(keys, 0, size, high);
+        if (i < 0) {
+            i = -i - 1;
+            insertContainer(i, high, new Container(new char[4], null, 0));
+        }
+        if (containers[i].add((char) slot))
+            cardinality++;
+    }
+
+    /**
+     * @param slot Slot to remove from this set
+     */
+    void remove(int slot) {
+        int i = Arrays.binarySearch(keys, 0, size, slot >>> 16);
+        if (i < 0 || !containers[i].remove((char) slot)) return;
+
+        cardinality--;
+        if (containers[i].cardinality == 0) {
+            System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+            System.arraycopy(containers, i + 1, containers, i, size - i - 1);
+            containers[--size] = null;
+        }
+    }
+
+    private void insertContainer(int i, int high, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = high;
+        containers[i] = container;
+        size++;
+        cardinality += container.cardinality;
+    }
+
+    /**
+     * @param other Another set
+     * @return a new set holding the slots in both this and other
+     */
+    SlotBitmap and(SlotBitmap other) {
+        SlotBitmap result = new SlotBitmap();
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else {
+                Container container = containers[i++].and(other.containers[j++]);
+                if (container != null)
+                    result.insertContainer(result.size, keys[i - 1], container);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param other Another set
+     * @return the number of slots in both this and other, computed without building their intersection
+     */
+    int andCardinality(SlotBitmap other) {
+        int n = 0;
+        for (int i = 0, j = 0; i < size && j < other.size; ) {
+            if (keys[i] < other.keys[j]) i++;
+            else if (keys[i] > other.keys[j]) j++;
+            else n += containers[i++].andCardinality(other.containers[j++]);
+        }
+        return n;
+    }
+
+    /**
+     * @param other Another set
+     * @return a new set holding the slots in this or other
+     */
+    SlotBitmap or(SlotBitmap other) {
+        SlotBitmap result = new SlotBitmap();
+        int i = 0, j = 0;
+        while (i < size || j < other.size) {
+            if (j == other.size || (i < size && keys[i] < other.keys[j])) {
+                result.insertContainer(result.size, keys[i], containers[i++].copy());
+            } else if (i == size || keys[i] > other.keys[j]) {
+                result.insertContainer(result.size, other.keys[j], other.containers[j++].copy());
+            } else {
+                result.insertContainer(result.size, keys[i], containers[i++].or(other.containers[j++]));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the slots in this set, in ascending order
+     */
+    int[] toArray() {
+        int[] slots = new int[cardinality];
+        int n = 0;
+        for (int i = 0; i < size; i++)
+            n = containers[i].toSlots(keys[i], slots, n);
+        return slots;
+    }
+
+    /**
+     * @param slots Slots in ascending order
+     * @return those of slots which are in this set, in ascending order
+     */
+    int[] retain(int[] slots) {
+        int[] result = new int[slots.length];
+        int n = 0;
+        for (int slot : slots)
+            if (contains(slot))
+                result[n++] = slot;
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @param slots Slots in ascending order
+     * @return how many of slots are in this set
+     */
+    int countIn(int[] slots) {
+        int n = 0;
+        for (int slot : slots)
+            if (contains(slot))
+                n++;
+        return n;
+    }
+
+}
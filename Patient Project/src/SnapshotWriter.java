@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Replaces a file crash-safely: the new content is streamed to a temporary file in the same directory, forced to
+ * disk, and then atomically renamed over the original. At every point the original path holds either the complete
+ * old content or the complete new content.
+ */
+public final class SnapshotWriter {
+
+    /**
+     * Produces the content of a snapshot.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Told about the new content once it is on disk, before it replaces the file.
+     */
+    public interface BeforeReplace {
+        /**
+         * @param size Size of the new content in bytes
+         * @param crc CRC-32 of the new content
+         * @throws IOException to leave the file untouched
+         */
+        void accept(long size, long crc) throws IOException;
+    }
+
+    private SnapshotWriter() {
+    }
+
+    /**
+     * Atomically replaces target with the content produced by the given writer.
+     * @param target file to replace (may exist or not)
+     * @param content writes the new content of the file
+     * @return number of bytes written
+     * @throws IOException if writing fails, in which case target is left untouched
+     */
+    public static long write(Path target, Content content) throws IOException {
+        return write(target, content, null);
+    }
+
+    /**
+     * Atomically replaces target with the content produced by the given writer, telling beforeReplace about the
+     * content just before.
+     * @param target file to replace (may exist or not)
+     * @param content writes the new content of the file
+     * @param beforeReplace called once the content is on disk, before it replaces target (may be null)
+     * @return number of bytes written
+     * @throws IOException if writing fails, in which case target is left untouched
+     */
+    public static long write(Path target, Content content, BeforeReplace beforeReplace) throws IOException {
+        Path absolute = target.toAbsolutePath();
+        Path directory = absolute.getParent();
+        Path temp = Files.createTempFile(directory, absolute.getFileName().toString(), ".tmp");
+
+        try {
+            long size;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                CRC32 crc = new CRC32();
+                OutputStream out = new CheckedOutputStream(Channels.newOutputStream(channel), crc);
+                content.writeTo(out);
+                out.flush();
+                channel.force(true); // Data must be on disk before the rename makes it visible
+                size = channel.size();
+                if (beforeReplace != null)
+                    beforeReplace.accept(size, crc.getValue());
+            }
+
+            try {
+                Files.move(temp, absolute, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING);
+            }
+            forceDirectory(directory);
+            return size;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Forces the directory entry of the rename to disk. Not every platform allows opening a directory, in which case
+     * the rename is left to be persisted by the operating system.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directory sync isn't supported here (e.g. on Windows)
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Interns the values of low-cardinality profile fields (ProfileField.isCategorical()) so that every profile holding
+ * e.g. "Government" shares a single String instance. Keeps an estimate of the heap saved by doing so.
+ * Safe for use by several loader threads at once.
+ */
+public class StringDictionary {
+
+    private final ConcurrentHashMap<String, String> values = new ConcurrentHashMap<>();
+    private final LongAdder duplicates = new LongAdder(); // Strings replaced by an existing instance
+    private final LongAdder bytesSaved = new LongAdder(); // Estimated heap held by those strings
+
+    /**
+     * @param value value to intern (may be null)
+     * @return the dictionary's instance equal to value, which is value itself the first time it is seen
+     */
+    public String intern(String value) {
+        if (value == null) return null;
+
+        String canonical = values.putIfAbsent(value, value);
+        if (canonical == null) return value;
+
+        if (canonical != value) // Interning the dictionary's own instance again saves nothing
+            recordDuplicates(canonical, 1);
+        return canonical;
+    }
+
+    /**
+     * Records that copies of an interned value were avoided without going through intern(), e.g. by a loader which
+     * recognized the value's encoded bytes before decoding them.
+     * @param canonical the interned value
+     * @param count number of copies avoided
+     */
+    void recordDuplicates(String canonical, long count) {
+        duplicates.add(count);
+        bytesSaved.add(count * estimateSize(canonical));
+    }
+
+    /**
+     * Estimates the heap taken by a String on a 64-bit JVM with compressed references and compact strings: a 24-byte
+     * String object plus its backing byte array (16-byte header, one byte per Latin-1 char, padded to 8 bytes).
+     * @param value the string
+     * @return estimated size in bytes
+     */
+    static long estimateSize(String value) {
+        return 24 + ((16 + value.length() + 7) & ~7);
+    }
+
+    /**
+     * @return number of distinct values in the dictionary
+     */
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * @return number of duplicate strings that were replaced by a shared instance
+     */
+    public long getDuplicateCount() {
+        return duplicates.sum();
+    }
+
+    /**
+     * @return estimated heap, in bytes, that the duplicate strings would have taken
+     */
+    public long getBytesSaved() {
+        return bytesSaved.sum();
+    }
+
+    /**
+     * Forgets all values and statistics.
+     */
+    public void clear() {
+        values.clear();
+        duplicates.reset();
+        bytesSaved.reset();
+    }
+
+}
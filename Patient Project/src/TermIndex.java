@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+
+/**
+ * Inverted index from each value (term) of some fields to the set of slots holding it, for finding every patient
+ * with an allergy or illness without testing every profile. The sets are compressed bitmaps (see SlotBitmap), so
+ * that adding or removing a slot costs the same however common the term, e.g. "None". A query combining several
+ * terms merges (OR) their sets, or filters the shortest list through the others (AND).
+ */
+final class TermIndex implements ProfileIndex {
+
+    private final EnumMap<ProfileField, HashMap<String, SlotBitmap>> fields = new EnumMap<>(ProfileField.class);
+
+    /**
+     * @param indexedFields Fields whose values are indexed
+     */
+    TermIndex(ProfileField... indexedFields) {
+        for (ProfileField field : indexedFields)
+            fields.put(field, new HashMap<>());
+    }
+
+    /**
+     * @param field A profile field
+     * @return true if the values of field are indexed
+     */
+    boolean covers(ProfileField field) {
+        return fields.containsKey(field);
+    }
+
+    /**
+     * @param field An indexed field
+     * @param term Value of the field
+     * @return the number of profiles whose field holds term
+     */
+    int count(ProfileField field, String term) {
+        SlotBitmap postings = fields.get(field).get(term);
+        return postings == null ? 0 : postings.cardinality();
+    }
+
+    /**
+     * @param field An indexed field
+     * @param terms Values of the field
+     * @return the slots, in ascending order, of the profiles whose field holds any of terms
+     */
+    int[] any(ProfileField field, Collection<String> terms) {
+        HashMap<String, SlotBitmap> index = fields.get(field);
+        SlotBitmap result = null;
+        for (String term : terms) {
+            SlotBitmap postings = index.get(term);
+            if (postings != null)
+                result = result == null ? postings : result.or(postings);
+        }
+        return result == null ? new int[0] : result.toArray();
+    }
+
+    /**
+     * @param field An indexed field
+     * @param terms Distinct values of the field
+     * @return the number of profiles whose field holds any of terms
+     */
+    int countAny(ProfileField field, Collection<String> terms) {
+        int count = 0;
+        for (String term : terms)
+            count += count(field, term);
+        return count;
+    }
+
+    /**
+     * Filters a list of slots, which is cheaper than intersecting it with any(field, terms) when it is the shorter:
+     * each slot is looked up in the sets of the terms, without copying them.
+     * @param field An indexed field
+     * @param terms Values of the field
+     * @param slots Slots in ascending order
+     * @return those of slots whose profile's field holds any of terms, in ascending order
+     */
+    int[] retainAny(ProfileField field, Collection<String> terms, int[] slots) {
+        HashMap<String, SlotBitmap> index = fields.get(field);
+        ArrayList<SlotBitmap> sets = new ArrayList<>();
+        for (String term : terms)
+            if (index.containsKey(term))
+                sets.add(index.get(term));
+
+        int[] result = new int[slots.length];
+        int n = 0;
+        for (int slot : slots) {
+            for (SlotBitmap postings : sets) {
+                if (postings.contains(slot)) {
+                    result[n++] = slot;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    @Override
+    public void add(int slot, PatientProf profile) {
+        for (ProfileField field : fields.keySet())
+            put(field, field.get(profile), slot);
+    }
+
+    private void put(ProfileField field, String term, int slot) {
+        fields.get(field).computeIfAbsent(term, t -> new SlotBitmap()).add(slot);
+    }
+
+    @Override
+    public void remove(int slot, PatientProf profile) {
+        for (ProfileField field : fields.keySet())
+            delete(field, field.get(profile), slot);
+    }
+
+    private void delete(ProfileField field, String term, int slot) {
+        HashMap<String, SlotBitmap> index = fields.get(field);
+        SlotBitmap postings = index.get(term);
+        if (postings == null) return;
+        postings.remove(slot);
+        if (postings.cardinality() == 0)
+            index.remove(term);
+    }
+
+    @Override
+    public void update(int slot, PatientProf profile, ProfileField field, String oldValue) {
+        if (covers(field)) {
+            delete(field, oldValue, slot);
+            put(field, field.get(profile), slot);
+        }
+    }
+
+    @Override
+    public void remap(int[] newSlots) {
+        // Slots move down by varying amounts, so rebuild each set; they come out in ascending order
+        for (HashMap<String, SlotBitmap> index : fields.values()) {
+            for (HashMap.Entry<String, SlotBitmap> entry : index.entrySet()) {
+                SlotBitmap remapped = new SlotBitmap();
+                for (int slot : entry.getValue().toArray())
+                    remapped.add(newSlots[slot]);
+                entry.setValue(remapped);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (HashMap<String, SlotBitmap> index : fields.values())
+            index.clear();
+    }
+
+}
@@ -1,10 +1,39 @@
+
 package com.med;
 
 public class MedCond {
+    // Field identifiers passed to Owner.updateMedCond()
+    public static final int MD_CONTACT = 0;
+    public static final int MD_PHONE = 1;
+    public static final int ALG_TYPE = 2;
+    public static final int ILL_TYPE = 3;
+
+    /**
+     * Makes the updates of an owned MedCond.
+     */
+    public interface Owner {
+        /**
+         * Updates a field of an owned MedCond by running the given change, so that the owner can make it together
+         * with whatever else the update calls for (e.g. re-indexing the field) rather than after the fact.
+         * @param medCond The MedCond to update
+         * @param field The field the change sets (one of MD_CONTACT...)
+         * @param change Sets the field
+         */
+        void updateMedCond(MedCond medCond, int field, Runnable change);
+
+        /**
+         * Gives the owner a chance to replace a new field value with an equal shared instance before it is stored.
+         */
+        default String intern(int field, String value) {
+            return value;
+        }
+    }
+
     String mdContact;
     String mdPhone;
     String algType;
     String illType;
+    Owner owner;
 
     public MedCond(String mdContact,String mdPhone,String algType,String illType){
         this.mdContact=mdContact;
@@ -29,25 +58,36 @@ public class MedCond {
         return this.illType;
     }
 
+    public Owner getOwner(){
+        return this.owner;
+    }
+
+    public void setOwner(Owner owner){
+        this.owner=owner;
+    }
+
     public void updateMdContact(String mdContact){
-        this.mdContact=mdContact;
+        update(MD_CONTACT,()->this.mdContact=mdContact);
     }
 
     public void updateMdPhone(String mdPhone){
-        this.mdPhone=mdPhone;
+        update(MD_PHONE,()->this.mdPhone=mdPhone);
     }
 
     public void updateAlgType(String algType){
-        this.algType=algType;
+        String value=owner!=null ? owner.intern(ALG_TYPE,algType) : algType;
+        update(ALG_TYPE,()->this.algType=value);
     }
 
     public void updateIllType(String illType){
-        this.illType=illType;
+        String value=owner!=null ? owner.intern(ILL_TYPE,illType) : illType;
+        update(ILL_TYPE,()->this.illType=value);
     }
 
-
-
-
+    private void update(int field,Runnable change){
+        Owner owner=this.owner;
+        if(owner!=null) owner.updateMedCond(this,field,change);
+        else change.run();
+    }
 
 }
-
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The per-admin slot lists behind the admin cursors, which mark removed entries and drop them later: walks, copies
+ * and counts must only ever see the live slots, through removals in any order and remapping.
+ */
+class AdminIndexTest extends DatabaseTestCase {
+
+    private static void assertMatches(TreeSet<Integer> expected, AdminIndex index, String adminID) {
+        assertEquals(expected.size(), index.count(adminID));
+        assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), index.slots(adminID));
+        List<Integer> walked = new ArrayList<>();
+        for (int slot = index.nextSlot(adminID, 0); slot >= 0; slot = index.nextSlot(adminID, slot + 1))
+            walked.add(slot);
+        assertEquals(new ArrayList<>(expected), walked);
+    }
+
+    @Test
+    void removalsInAnyOrderAndRemapping() {
+        AdminIndex index = new AdminIndex();
+        TreeSet<Integer> a = new TreeSet<>();
+        TreeSet<Integer> b = new TreeSet<>();
+        for (int slot = 0; slot < 10000; slot++) {
+            String adminID = slot % 5 == 0 ? "b" : "a";
+            index.add(slot, adminID);
+            (slot % 5 == 0 ? b : a).add(slot);
+        }
+
+        List<Integer> order = new ArrayList<>(a);
+        Collections.shuffle(order, new Random(1));
+        for (int k = 0; k < order.size() * 3 / 4; k++) {
+            index.remove(order.get(k), profile("a", "Last" + order.get(k)));
+            a.remove(order.get(k));
+            if (k % 1000 == 0) assertMatches(a, index, "a");
+        }
+        assertMatches(a, index, "a");
+        assertMatches(b, index, "b");
+
+        // Compaction squeezes out every slot no longer in either list
+        int[] newSlots = new int[10000];
+        int next = 0;
+        for (int slot = 0; slot < 10000; slot++)
+            newSlots[slot] = a.contains(slot) || b.contains(slot) ? next++ : -1;
+        index.remap(newSlots);
+        TreeSet<Integer> remappedA = new TreeSet<>();
+        for (int slot : a) remappedA.add(newSlots[slot]);
+        TreeSet<Integer> remappedB = new TreeSet<>();
+        for (int slot : b) remappedB.add(newSlots[slot]);
+        assertMatches(remappedA, index, "a");
+        assertMatches(remappedB, index, "b");
+
+        for (int slot : remappedB)
+            index.remove(slot, profile("b", "Last" + slot));
+        assertEquals(0, index.count("b"));
+        assertEquals(-1, index.nextSlot("b", 0));
+    }
+
+    @Test
+    void deletingManyProfilesOfOneAdmin() {
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.OBJECT);
+        for (int i = 0; i < 20000; i++)
+            db.insertNewProfile(profile(i % 2 == 0 ? "big" : "other", "Last" + i));
+        for (int i = 0; i < 20000; i += 4)
+            assertTrue(db.deleteProfile("big", "Last" + i));
+
+        assertEquals(5000, db.snapshot("big").size());
+        PatientProf first = db.findFirstProfile("big");
+        assertEquals("Last2", first.getLastName());
+        int n = 1;
+        for (; db.hasNextProfile("big"); n++)
+            assertEquals("big", db.findNextProfile("big").getAdminID());
+        assertEquals(5000, n);
+    }
+
+}
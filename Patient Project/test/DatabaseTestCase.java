@@ -0,0 +1,49 @@
+import com.med.MedCond;
+import java.nio.file.Path;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Fixture shared by the tests of PatientProfDB: a database file in a directory of its own for each test, and
+ * profiles to fill it with.
+ */
+abstract class DatabaseTestCase {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * @return the database file, which doesn't exist until a database writes it
+     */
+    Path file() {
+        return dir.resolve("db.tsv");
+    }
+
+    /**
+     * Opens the database file, journaling changes as PatientProfDB does by default.
+     */
+    PatientProfDB open(PatientProfDB.StorageBackend backend) {
+        PatientProfDB db = new PatientProfDB(file().toString(), backend);
+        db.initializeDatabase();
+        return db;
+    }
+
+    /**
+     * Opens the database file without a journal, for tests of the in-memory operations.
+     */
+    PatientProfDB openWithoutJournal(PatientProfDB.StorageBackend backend) {
+        PatientProfDB db = new PatientProfDB(file().toString(), backend);
+        db.setJournalEnabled(false);
+        db.initializeDatabase();
+        return db;
+    }
+
+    static PatientProf profile(String adminID, String lastName) {
+        return profile(adminID, lastName, "address", 10);
+    }
+
+    static PatientProf profile(String adminID, String lastName, String address, float coPay) {
+        return new PatientProf(adminID, "First", lastName, address, "555-0100", coPay, "Private", "Adult",
+                new MedCond("Dr", "555-0199", "None", "None"));
+    }
+
+}
@@ -0,0 +1,75 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Search of last names as they are typed (see PatientProfDB.searchLastName()), in particular short queries, whose
+ * one-typo variants must not match unrelated names.
+ */
+class LastNameIndexTest extends DatabaseTestCase {
+
+    private PatientProfDB db;
+
+    @BeforeEach
+    void setUp() {
+        db = openWithoutJournal(PatientProfDB.StorageBackend.OBJECT);
+        String[][] profiles = {{"a1", "Smith"}, {"a1", "Smyth"}, {"a2", "Schmidt"}, {"a2", "Adams"},
+                {"a1", "Jones"}, {"a2", "O'Brien"}, {"a1", "M\u00fcller"}};
+        for (String[] profile : profiles)
+            db.insertNewProfile(profile(profile[0], profile[1]));
+    }
+
+    private List<String> search(String adminID, String query) {
+        List<String> lastNames = new ArrayList<>();
+        for (PatientProf profile : db.searchLastName(adminID, query, 10))
+            lastNames.add(profile.getLastName());
+        return lastNames;
+    }
+
+    @Test
+    void shortQueryWithoutMatchFindsNothing() {
+        assertEquals(List.of(), search(null, "q"));
+        assertEquals(List.of(), search(null, "x"));
+        assertEquals(List.of(), search(null, "zq"));
+    }
+
+    @Test
+    void singleLetterMatchesPrefixOnly() {
+        List<String> found = search(null, "s");
+        assertEquals(3, found.size(), found.toString());
+        assertTrue(found.containsAll(List.of("Smith", "Smyth", "Schmidt")));
+        assertEquals(List.of("Jones"), search(null, "J"));
+    }
+
+    @Test
+    void prefixMatchesComeFirst() {
+        List<String> found = search(null, "Smi");
+        assertEquals("Smith", found.get(0));
+        assertTrue(found.contains("Smyth"), found.toString()); // One typo away
+        assertFalse(found.contains("Jones"));
+    }
+
+    @Test
+    void correctsOneTypo() {
+        assertTrue(search(null, "Smtih").contains("Smith"));
+        assertTrue(search(null, "Jnes").contains("Jones"));
+        assertEquals(List.of(), search(null, "Xyzzy"));
+    }
+
+    @Test
+    void ignoresCaseAccentsAndPunctuation() {
+        assertEquals(List.of("O'Brien"), search(null, "obri"));
+        assertEquals(List.of("M\u00fcller"), search(null, "MULL"));
+    }
+
+    @Test
+    void filtersByAdmin() {
+        assertEquals(List.of("Schmidt"), search("a2", "S"));
+        assertFalse(search("a1", "Sm").contains("Schmidt"));
+        assertEquals(List.of(), search("nobody", "Smith"));
+    }
+
+}
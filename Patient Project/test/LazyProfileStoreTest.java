@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The LAZY backend: updates of profiles evicted from its cache, and opening a file whose row index is damaged.
+ */
+class LazyProfileStoreTest extends DatabaseTestCase {
+
+    @AfterEach
+    void resetCache() {
+        System.clearProperty("patientdb.cacheRows");
+    }
+
+    private void writeFile(PatientProf... profiles) {
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.OBJECT);
+        for (PatientProf profile : profiles)
+            db.insertNewProfile(profile);
+        assertTrue(db.writeAllPatientProf());
+        db.close();
+    }
+
+    @Test
+    void evictedProfileUpdatesItsOwnRowWhenKeysRepeat() {
+        writeFile(profile("admin", "Same", "first row", 1), profile("admin", "Same", "second row", 2));
+        System.setProperty("patientdb.cacheRows", "1");
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.LAZY);
+
+        assertEquals("first row", db.findFirstProfile().getAddress());
+        PatientProf second = db.findNextProfile();
+        assertEquals("second row", second.getAddress());
+        db.findFirstProfile(); // Evicts the second
+        second.updateAddress("updated");
+
+        assertEquals("first row", db.findFirstProfile().getAddress());
+        assertEquals("updated", db.findNextProfile().getAddress());
+        db.close();
+    }
+
+    @Test
+    void evictedProfileOfDeletedRowCannotBeUpdated() {
+        writeFile(profile("admin", "A"), profile("admin", "B"));
+        System.setProperty("patientdb.cacheRows", "1");
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.LAZY);
+
+        PatientProf first = db.findFirstProfile();
+        db.findNextProfile();
+        assertTrue(db.deleteProfile("admin", "A"));
+        db.insertNewProfile(profile("admin", "A"));
+        assertThrows(IllegalStateException.class, () -> first.updateAddress("updated"));
+        assertEquals("address", db.findProfile("admin", "A").getAddress());
+        db.close();
+    }
+
+    @Test
+    void rebuildsRowIndexWithAdminIDOutOfRange() throws IOException {
+        writeFile(profile("admin", "A"), profile("admin", "B"));
+        Path indexFile = dir.resolve(file().getFileName() + ".idx");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(indexFile))) {
+            out.writeInt(0x50504958);
+            out.writeInt(1);
+            out.writeLong(Files.size(file()));
+            out.writeLong(Files.getLastModifiedTime(file()).toMillis());
+            out.writeInt(1); // Rows
+            out.writeInt(0); // Admin IDs
+            out.writeLong(0);
+            out.writeInt(5); // Admin ID of the row, which is not one of the 0 above
+            out.writeInt(0);
+        }
+
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.LAZY);
+        assertEquals(2, db.size());
+        assertNotNull(db.findProfile("admin", "B"));
+        db.close();
+    }
+
+}
@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Allocation of the direct memory of the OFF_HEAP backend for rows too long for any size class (over 1 KB), whose
+ * blocks must be reused like the others, and for rows longer than an arena.
+ */
+class OffHeapProfileStoreTest extends DatabaseTestCase {
+
+    private static final int ARENA_SIZE = 1 << 22;
+
+    @Test
+    void reusesBlocksOfLongRows() {
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.OFF_HEAP);
+        String padding = "x".repeat(3000);
+        for (int i = 0; i < 100; i++)
+            db.insertNewProfile(profile("admin", "Last" + i, i + padding, i));
+
+        // Each update writes the row into a new block and frees the old one, which the next update reuses
+        PatientProf profile = db.findProfile("admin", "Last7");
+        for (int i = 0; i < 20000; i++)
+            profile.updateAddress(String.format("%05d", i) + padding);
+        assertEquals(ARENA_SIZE, db.getOffHeapBytes()); // Rather than ~60 MB of abandoned blocks
+
+        assertEquals("19999" + padding, db.findProfile("admin", "Last7").getAddress());
+        for (int i = 0; i < 100; i++)
+            if (i != 7) assertEquals(i + padding, db.findProfile("admin", "Last" + i).getAddress());
+
+        // Blocks of deleted rows are reused as well
+        for (int i = 0; i < 100; i += 2)
+            db.deleteProfile("admin", "Last" + i);
+        db.compact();
+        for (int i = 0; i < 100; i += 2)
+            db.insertNewProfile(profile("admin", "New" + i, i + padding, i));
+        assertEquals(ARENA_SIZE, db.getOffHeapBytes());
+        assertEquals(98 + padding, db.findProfile("admin", "New98").getAddress());
+        db.close();
+    }
+
+    @Test
+    void rowLongerThanArenaKeepsCarvingCurrentArena() {
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.OFF_HEAP);
+        db.insertNewProfile(profile("admin", "Before"));
+        String huge = "y".repeat(ARENA_SIZE + 1000);
+        db.insertNewProfile(profile("admin", "Huge", huge, 1));
+        for (int i = 0; i < 1000; i++)
+            db.insertNewProfile(profile("admin", "After" + i));
+
+        // One arena for the short rows, and one of the long row's block size for it
+        long hugeBlock = db.getOffHeapBytes() - ARENA_SIZE;
+        assertTrue(hugeBlock >= huge.length() && hugeBlock < huge.length() + 2048, String.valueOf(hugeBlock));
+        assertEquals(huge, db.findProfile("admin", "Huge").getAddress());
+        assertEquals("address", db.findProfile("admin", "After999").getAddress());
+
+        // Its block is reused by the next row of its size
+        db.findProfile("admin", "Huge").updateAddress(huge.replace('y', 'z'));
+        assertEquals(ARENA_SIZE + hugeBlock, db.getOffHeapBytes());
+        db.close();
+    }
+
+}
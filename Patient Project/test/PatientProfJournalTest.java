@@ -0,0 +1,192 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Replay of the journal (see PatientProfJournal) after the process exits without writing the database file, and
+ * after a crash at each step of a checkpoint: every change must be applied exactly once, whether or not the new
+ * database file replaced the old one.
+ */
+class PatientProfJournalTest extends DatabaseTestCase {
+
+    private Path journal() {
+        return dir.resolve("db.tsv.journal");
+    }
+
+    private Path segment() {
+        return dir.resolve("db.tsv.journal.1");
+    }
+
+    private PatientProfDB open() {
+        return open(PatientProfDB.StorageBackend.OBJECT);
+    }
+
+    /**
+     * Appends to the segment the C record a checkpoint writes just before the new file replaces the old one.
+     */
+    private void commit(byte[] newFile) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(newFile);
+        Files.write(segment(), ("C\t" + newFile.length + "\t" + crc.getValue() + System.lineSeparator())
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    @Test
+    void checkpointAndCloseLeaveNoJournal() {
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith"));
+        assertTrue(Files.exists(journal()));
+        assertTrue(db.checkpoint());
+        db.close();
+        assertFalse(Files.exists(journal()));
+        assertFalse(Files.exists(segment()));
+
+        db = open();
+        assertNotNull(db.findProfile("admin", "Smith"));
+        assertFalse(db.isDirty());
+        db.close();
+    }
+
+    @Test
+    void replaysJournalAfterExitWithoutCheckpoint() {
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith"));
+        db.insertNewProfile(profile("admin", "Jones"));
+        db.findProfile("admin", "Smith").updateCoPay(25);
+        db.deleteProfile("admin", "Jones");
+        // The process exits without writing the database file
+
+        db = open();
+        assertEquals(1, db.size());
+        assertEquals(25, db.findProfile("admin", "Smith").getCoPay());
+        assertTrue(db.isDirty());
+        db.close();
+    }
+
+    @Test
+    void replaysUpdatesOfProfilesSharingAKey() {
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith", "first", 10));
+        db.insertNewProfile(profile("admin", "Smith", "second", 10));
+        db.insertNewProfile(profile("admin", "Smith", "third", 10));
+        db.findFirstProfile();
+        db.findNextProfile().updateAddress("second, updated");
+        db.deleteProfile("admin", "Smith"); // The first
+        db.findFirstProfile();
+        db.findNextProfile().updateCoPay(25);
+
+        db = open();
+        assertEquals(2, db.size());
+        PatientProf second = db.findFirstProfile();
+        assertEquals("second, updated", second.getAddress());
+        assertEquals(10, second.getCoPay());
+        PatientProf third = db.findNextProfile();
+        assertEquals("third", third.getAddress());
+        assertEquals(25, third.getCoPay());
+        db.close();
+    }
+
+    private static void assertEscapedValues(PatientProfDB db, String address) {
+        assertEquals(1, db.size());
+        PatientProf profile = db.findProfile("admin", "Smith\tJones");
+        assertEquals(address, profile.getAddress());
+        assertEquals("555\n0100", profile.getPhone());
+    }
+
+    @Test
+    void replaysValuesWithTabsAndLineBreaks() {
+        // Only the binary format can hold such values, but the journal must too
+        String address = "1 Main St\tApt 2\r\nSpringfield \\ \\t";
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith\tJones", address, 10));
+        db.findProfile("admin", "Smith\tJones").updatePhone("555\n0100");
+        db.insertNewProfile(profile("admin", "Doe\\"));
+        db.deleteProfile("admin", "Doe\\");
+
+        db = open();
+        assertEscapedValues(db, address);
+        db.setStorageFormat(PatientProfDB.StorageFormat.BINARY);
+        assertTrue(db.checkpoint());
+        db.close();
+
+        db = open();
+        assertEscapedValues(db, address);
+        db.close();
+    }
+
+    @Test
+    void ignoresTruncatedRecord() throws IOException {
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith"));
+        db.close();
+        // Crash in the middle of an append
+        Files.write(journal(), "I\tadmin\tFirst\tJon".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        db = open();
+        assertEquals(1, db.size());
+        assertNotNull(db.findProfile("admin", "Smith"));
+        db.close();
+    }
+
+    @Test
+    void replaysSegmentAfterCrashBeforeFileReplaced() throws IOException {
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith"));
+        db.insertNewProfile(profile("admin", "Jones"));
+        assertTrue(db.checkpoint());
+        byte[] oldFile = Files.readAllBytes(file());
+        db.insertNewProfile(profile("admin", "Brown"));
+        db.findProfile("admin", "Smith").updateLastName("Smyth");
+        byte[] records = Files.readAllBytes(journal());
+        assertTrue(db.checkpoint());
+        byte[] newFile = Files.readAllBytes(file());
+        db.close();
+
+        // Crash after the C record was appended, before the new file replaced the old one, while a change made
+        // meanwhile went to the new journal
+        Files.write(file(), oldFile);
+        Files.write(segment(), records);
+        commit(newFile);
+        Files.write(journal(), ("D\tadmin\tJones" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+
+        db = open();
+        assertEquals(2, db.size());
+        assertNotNull(db.findProfile("admin", "Smyth"));
+        assertNotNull(db.findProfile("admin", "Brown"));
+        assertNull(db.findProfile("admin", "Smith"));
+        assertNull(db.findProfile("admin", "Jones"));
+        db.close();
+    }
+
+    @Test
+    void skipsSegmentAfterCrashAfterFileReplaced() throws IOException {
+        PatientProfDB db = open();
+        db.insertNewProfile(profile("admin", "Smith"));
+        db.insertNewProfile(profile("admin", "Jones"));
+        db.deleteProfile("admin", "Jones");
+        byte[] records = Files.readAllBytes(journal());
+        assertTrue(db.checkpoint());
+        byte[] newFile = Files.readAllBytes(file());
+        db.close();
+
+        // Crash after the new file replaced the old one, before the segment was deleted: replaying its records
+        // again would insert Smith twice
+        Files.write(segment(), records);
+        commit(newFile);
+
+        db = open();
+        assertEquals(1, db.size());
+        assertNotNull(db.findProfile("admin", "Smith"));
+        assertTrue(db.checkpoint());
+        db.close();
+        assertFalse(Files.exists(segment()));
+    }
+
+}
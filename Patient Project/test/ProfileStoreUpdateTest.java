@@ -0,0 +1,80 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.med.MedCond;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Updates of profiles on every storage backend, across the space reclaimed by the COLUMNAR and OFF_HEAP backends
+ * and across compaction: an update must change all the fields it sets and leave every other profile intact.
+ */
+class ProfileStoreUpdateTest extends DatabaseTestCase {
+
+    private static final int PROFILES = 2000;
+
+    private PatientProfDB openFilled(PatientProfDB.StorageBackend backend) {
+        PatientProfDB db = openWithoutJournal(backend);
+        for (int i = 0; i < PROFILES; i++)
+            db.insertNewProfile(profile("admin", "Last" + i, "address " + i, i));
+        return db;
+    }
+
+    private static void assertUntouched(PatientProfDB db, int i) {
+        PatientProf profile = db.findProfile("admin", "Last" + i);
+        assertNotNull(profile, "Last" + i);
+        assertEquals("address " + i, profile.getAddress());
+        assertEquals("Dr", profile.getMedCondInfo().getMdContact());
+    }
+
+    @ParameterizedTest
+    @EnumSource(PatientProfDB.StorageBackend.class)
+    void medCondUpdatesSurviveReclaim(PatientProfDB.StorageBackend backend) {
+        PatientProfDB db = openFilled(backend);
+
+        // Each update leaves its old text behind, so that these pass the point where the space is reclaimed
+        String padding = "x".repeat(500);
+        PatientProf profile = db.findProfile("admin", "Last7");
+        for (int i = 0; i < 10000; i++)
+            profile.updateMedCondInfo(new MedCond("Dr" + i + padding, "555-" + i, "Food", "Heart"));
+
+        profile = db.findProfile("admin", "Last7");
+        assertEquals("Dr9999" + padding, profile.getMedCondInfo().getMdContact());
+        assertEquals("555-9999", profile.getMedCondInfo().getMdPhone());
+        assertEquals("Food", profile.getMedCondInfo().getAlgType());
+        assertEquals("Heart", profile.getMedCondInfo().getIllType());
+        assertEquals("address 7", profile.getAddress());
+        for (int i = 0; i < PROFILES; i += 97)
+            if (i != 7) assertUntouched(db, i);
+        db.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(PatientProfDB.StorageBackend.class)
+    void updatesSurviveCompaction(PatientProfDB.StorageBackend backend) {
+        PatientProfDB db = openFilled(backend);
+        for (int i = 0; i < PROFILES; i += 2)
+            assertTrue(db.deleteProfile("admin", "Last" + i));
+        db.compact();
+
+        // Profiles are looked up again after compacting, as the COLUMNAR and OFF_HEAP backends require
+        for (int i = 1; i < PROFILES; i += 2) {
+            PatientProf profile = db.findProfile("admin", "Last" + i);
+            profile.updateMedCondInfo(new MedCond("Dr " + i, "555-" + i, "Food", "Heart"));
+            profile.updateCoPay(i + 0.5f);
+        }
+        db.compact();
+
+        assertEquals(PROFILES / 2, db.size());
+        for (int i = 1; i < PROFILES; i += 2) {
+            PatientProf profile = db.findProfile("admin", "Last" + i);
+            assertEquals("Dr " + i, profile.getMedCondInfo().getMdContact());
+            assertEquals("Heart", profile.getMedCondInfo().getIllType());
+            assertEquals(i + 0.5f, profile.getCoPay());
+            assertEquals("address " + i, profile.getAddress());
+        }
+        assertEquals(PROFILES / 2, db.query().where(ProfileField.ALG_TYPE, "Food").list().size());
+        assertNull(db.findProfile("admin", "Last0"));
+        db.close();
+    }
+
+}
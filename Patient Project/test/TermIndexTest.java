@@ -0,0 +1,62 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.med.MedCond;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The inverted index over allergy and illness types: its sets must follow inserts, updates and deletes of common
+ * terms, and compaction.
+ */
+class TermIndexTest extends DatabaseTestCase {
+
+    private static final int PROFILES = 30000;
+
+    private static String allergy(int i) {
+        return i % 10 == 0 ? "Pollen" : "None";
+    }
+
+    @Test
+    void followsUpdatesDeletesAndCompaction() {
+        PatientProfDB db = openWithoutJournal(PatientProfDB.StorageBackend.OBJECT);
+        for (int i = 0; i < PROFILES; i++)
+            db.insertNewProfile(new PatientProf("admin", "First", "Last" + i, "address", "555-0100", i, "Private",
+                    "Adult", new MedCond("Dr", "555-0199", allergy(i), "None")));
+
+        // Move a third of the common term to another, and delete half the rest
+        for (int i = 1; i < PROFILES; i += 3)
+            if (allergy(i).equals("None"))
+                db.findProfile("admin", "Last" + i).getMedCondInfo().updateAlgType("Dust");
+        int none = 0, dust = 0, pollen = 0, cheapNone = 0;
+        for (int i = 0; i < PROFILES; i++) {
+            boolean moved = i % 3 == 1 && allergy(i).equals("None");
+            if (i % 2 == 0 && !moved) {
+                assertTrue(db.deleteProfile("admin", "Last" + i));
+                continue;
+            }
+            if (moved) dust++;
+            else if (allergy(i).equals("None")) {
+                none++;
+                if (i <= 100) cheapNone++;
+            }
+            else pollen++;
+        }
+        db.compact();
+
+        assertEquals(none, db.query().where(ProfileField.ALG_TYPE, "None").list().size());
+        assertEquals(dust, db.query().where(ProfileField.ALG_TYPE, "Dust").list().size());
+        assertEquals(pollen + dust, db.query().whereAny(ProfileField.ALG_TYPE, "Pollen", "Dust").list().size());
+        for (PatientProf profile : db.query().where(ProfileField.ALG_TYPE, "Dust").list())
+            assertEquals("Dust", profile.getMedCondInfo().getAlgType());
+
+        // Combined with another condition, the shorter list is filtered through the sets
+        List<PatientProf> cheap = db.query().where(ProfileField.ALG_TYPE, "None").whereCoPay(0, 100).list();
+        assertEquals(cheapNone, cheap.size());
+        for (PatientProf profile : cheap) {
+            assertEquals("None", profile.getMedCondInfo().getAlgType());
+            assertTrue(profile.getCoPay() <= 100);
+        }
+        db.close();
+    }
+
+}